@@ -0,0 +1,250 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * A directory of files sent as one transfer.
+ *
+ * The files are concatenated in the order of the manifest into one stream of
+ * bytes, and segments are cut from that stream as from a single file, so one
+ * window, one set of ACKs and one metadata round trip carry all of them and
+ * small files share segments. The manifest lists the name, relative to the
+ * directory, and the size of every file; a file starts in the stream where
+ * the ones before it end. The sender sends it in chunks after the metadata
+ * (see WireFormat), the server creates the files from it and writes every
+ * segment across the files it spans. The server creates a file when its first
+ * bytes arrive, replacing an older one, and the empty files once it closes
+ * the batch, so taking the manifest costs no disk work.
+ *
+ * Files are opened on first use and only the OPEN_FILES used last stay open,
+ * so a batch of many thousands of files does not run out of file
+ * descriptors. Reads and writes hold the lock of the batch, which makes them
+ * safe from the senders of several streams.
+ */
+final class Batch implements Closeable {
+
+	static final int OPEN_FILES = 64;     // files kept open at a time
+	static final int ENTRY_HEADER = 10;   // size and name length of a manifest entry, the name follows
+
+	private final Path root;            // the directory the names are relative to
+	private final boolean writable;     // whether the files are written (server) or read (sender)
+	private final String[] names;       // file names relative to root, with / as the separator
+	private final long[] offsets;       // where each file starts in the stream, and at the end where the stream ends
+	private final Map<Integer, FileChannel> open = new LinkedHashMap<>(OPEN_FILES, 0.75f, true);   // open files by index, least recently used first
+	private boolean forced;             // whether files are forced to disk before they are closed
+	private final BitSet created = new BitSet();   // files a writable batch has created, the others still hold an older content or do not exist
+
+	/* the batch of the given files, with their sizes, under root. A writable batch checks that every name stays below root. */
+	Batch(Path root, String[] names, long[] sizes, boolean writable) throws IOException {
+		this.root = root.toAbsolutePath().normalize();
+		this.writable = writable;
+		this.names = names;
+		this.offsets = new long[names.length + 1];
+		for (int i = 0; i < names.length; i++) {
+			if (sizes[i] < 0) {
+				throw new IOException("Invalid size " + sizes[i] + " of " + names[i]);
+			}
+			offsets[i + 1] = offsets[i] + sizes[i];
+		}
+		if (writable) {
+			for (String name : names) {
+				Path file = this.root.resolve(name).normalize();
+				if (name.isEmpty() || Paths.get(name).isAbsolute() || !file.startsWith(this.root) || file.equals(this.root)) {
+					throw new IOException("Invalid file name in the manifest: " + name);
+				}
+			}
+		}
+	}
+
+	/* the batch of every regular file below the given directory, in name order */
+	static Batch of(Path directory) throws IOException {
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(directory)) {
+			files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		String[] names = new String[files.size()];
+		long[] sizes = new long[files.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = directory.relativize(files.get(i)).toString().replace(directory.getFileSystem().getSeparator(), "/");
+			sizes[i] = Files.size(files.get(i));
+		}
+		return new Batch(directory, names, sizes, false);
+	}
+
+	/* the number of files */
+	int files() {
+		return names.length;
+	}
+
+	/* the size of all files together, the size of the stream */
+	long size() {
+		return offsets[names.length];
+	}
+
+	/*
+	 * puts the manifest entries of the files from the given one on into buf, as many as fit,
+	 * and returns the file after the last one put
+	 */
+	int encode(int from, ByteBuffer buf) {
+		int file = from;
+		for (; file < names.length; file++) {
+			byte[] name = names[file].getBytes(StandardCharsets.UTF_8);
+			if (buf.remaining() < ENTRY_HEADER + name.length) {
+				break;
+			}
+			buf.putLong(offsets[file + 1] - offsets[file]);
+			buf.putShort((short) name.length);
+			buf.put(name);
+		}
+		return file;
+	}
+
+	/* reads the manifest entries from buf at its position to its limit, adding them to names and sizes */
+	static void decode(ByteBuffer buf, List<String> names, List<Long> sizes) throws IOException {
+		while (buf.hasRemaining()) {
+			if (buf.remaining() < ENTRY_HEADER) {
+				throw new IOException("Truncated manifest entry");
+			}
+			long size = buf.getLong();
+			int length = buf.getShort() & 0xFFFF;
+			if (length > buf.remaining()) {
+				throw new IOException("Truncated file name in the manifest");
+			}
+			names.add(new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8));
+			sizes.add(size);
+			buf.position(buf.position() + length);
+		}
+	}
+
+	/* copies the stream from the given offset into dst until it is full or the stream ends, and returns the number of bytes read */
+	synchronized int read(ByteBuffer dst, long position) throws IOException {
+		int read = 0;
+		int limit = dst.limit();
+		try {
+			while (dst.hasRemaining() && position + read < size()) {
+				int file = fileAt(position + read);
+				dst.limit((int) Math.min(limit, dst.position() + offsets[file + 1] - position - read));
+				int n = channel(file).read(dst, position + read - offsets[file]);
+				if (n < 0) {
+					throw new IOException(names[file] + " shrank during the transfer");
+				}
+				read += n;
+				dst.limit(limit);
+			}
+		} finally {
+			dst.limit(limit);
+		}
+		return read;
+	}
+
+	/* writes src into the stream at the given offset, across the files it spans */
+	synchronized void write(ByteBuffer src, long position) throws IOException {
+		int limit = src.limit();
+		try {
+			while (src.hasRemaining()) {
+				if (position >= size()) {
+					throw new IOException("Write past the end of the batch at " + position);
+				}
+				int file = fileAt(position);
+				src.limit((int) Math.min(limit, src.position() + offsets[file + 1] - position));
+				while (src.hasRemaining()) {
+					position += channel(file).write(src, position - offsets[file]);
+				}
+				src.limit(limit);
+			}
+		} finally {
+			src.limit(limit);
+		}
+	}
+
+	/* the file the given offset of the stream lies in, skipping empty files that start there */
+	private int fileAt(long position) {
+		int file = Arrays.binarySearch(offsets, 0, names.length, position);
+		if (file < 0) {
+			return -file - 2;
+		}
+		while (file + 1 < names.length && offsets[file + 1] == position) {
+			file++;
+		}
+		return file;
+	}
+
+	/* the open channel of the given file, opening it and closing the one used longest ago if too many are open */
+	private FileChannel channel(int file) throws IOException {
+		FileChannel channel = open.get(file);
+		if (channel == null) {
+			Path path = root.resolve(names[file]);
+			if (!writable) {
+				channel = FileChannel.open(path, StandardOpenOption.READ);
+			} else if (created.get(file)) {
+				channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			} else {
+				Files.createDirectories(path.getParent());
+				channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				created.set(file);
+			}
+			if (open.size() >= OPEN_FILES) {
+				Iterator<FileChannel> eldest = open.values().iterator();
+				FileChannel closed = eldest.next();
+				eldest.remove();
+				if (forced) {
+					closed.force(false);
+				}
+				closed.close();
+			}
+			open.put(file, channel);
+		}
+		return channel;
+	}
+
+	/* forces the open files to disk, and from now on every file before it is closed */
+	synchronized void force() throws IOException {
+		forced = true;
+		for (FileChannel channel : open.values()) {
+			channel.force(false);
+		}
+	}
+
+	/* closes the open files; a writable batch creates its empty files first */
+	@Override
+	public synchronized void close() throws IOException {
+		IOException failure = null;
+		for (int file = 0; writable && file < names.length; file++) {
+			if (offsets[file + 1] == offsets[file] && !created.get(file)) {
+				try {
+					Path path = root.resolve(names[file]);
+					Files.createDirectories(path.getParent());
+					FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).close();
+					created.set(file);
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		}
+		for (FileChannel channel : open.values()) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		open.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/*
+ * Loopback end-to-end throughput, to choose payload and window settings and
+ * to catch regressions: a file sent to an in-process NioServer over the
+ * loopback interface in every mode, reported in MB/s and packets/s. The micro
+ * benchmarks of the hot paths (checksums, wire format, reads) are JMH
+ * benchmarks in jmh/.
+ *
+ * start as:
+ *
+ *      java Benchmark [size=MB] [iterations=N] [port=N] [window=N]
+ *
+ * where
+ *      size=MB is the size of the generated input file (default 64)
+ *      iterations=N is the number of measured runs after one warm-up run,
+ *          the best one is reported (default 5)
+ *      port=N is the port of the loopback server (default 5999)
+ *      window=N is the window of gbn and sr on the loopback (default 64)
+ *
+ * Every run feeds its result into a sink, so the JIT cannot drop the work.
+ */
+public class Benchmark {
+
+	static final int[] PAYLOAD_SIZES = {1400, 8192, 65000};   // payload sizes every mode runs with
+
+	/* one operation of a benchmark */
+	@FunctionalInterface
+	interface Task {
+		long run() throws Exception;
+	}
+
+	private static long sink;              // results of the measured operations, printed at the end
+	private static int iterations = 5;     // measured runs of every benchmark
+	private static int sizeMb = 64;        // size of the generated input file
+	private static int port = 5999;        // port of the loopback server
+	private static int window = 64;        // window of gbn and sr on the loopback
+
+	/* the main method */
+	public static void main(String[] args) throws Exception {
+		for (String arg : args) {
+			if (arg.startsWith("size=")) {
+				sizeMb = Integer.parseInt(arg.substring(5));
+			} else if (arg.startsWith("iterations=")) {
+				iterations = Integer.parseInt(arg.substring(11));
+			} else if (arg.startsWith("port=")) {
+				port = Integer.parseInt(arg.substring(5));
+			} else if (arg.startsWith("window=")) {
+				window = Integer.parseInt(arg.substring(7));
+			}
+		}
+		Log.setLevel("quiet");
+
+		// below the working directory, the only place the server writes to
+		Path dir = Files.createTempDirectory(Paths.get(""), "benchmark");
+		File input = dir.resolve("input.bin").toFile();
+		try {
+			writeInput(input, (long) sizeMb << 20);
+			System.out.printf("%-28s %10s %14s %10s %12s%n", "benchmark", "payload", "ns/op", "MB/s", "packets/s");
+			loopback(input, dir);
+		} finally {
+			try (Stream<Path> files = Files.list(dir)) {
+				files.forEach(file -> file.toFile().delete());
+			}
+			Files.delete(dir);
+		}
+		System.out.println("(sink " + sink + ")");
+	}
+
+	/* the whole input file sent to an in-process NioServer over the loopback interface, in every mode */
+	private static void loopback(File input, Path dir) throws Exception {
+		NioServer server = new NioServer(port, 1, DiskWriter.SYNC_NONE);
+		Thread thread = new Thread(() -> {
+			try {
+				server.run();
+			} catch (IOException e) {
+				System.err.println("ERROR --> Loopback server failed: " + e.getMessage());
+			}
+		}, "benchmark-server");
+		thread.setDaemon(true);
+		thread.start();
+
+		String output = dir.resolve("output.bin").toString();
+		for (String mode : new String[] {Protocol.NORMAL_MODE, Protocol.TIMEOUT_MODE, Protocol.GBN_MODE, Protocol.SR_MODE}) {
+			for (int size : PAYLOAD_SIZES) {
+				long segments = (input.length() + size - 1) / size;
+				try {
+					loopbackRun(mode, size, input, output, segments);
+				} catch (IOException e) {
+					// a transfer that gives up is a result too, the other settings still get measured
+					System.out.printf("%-28s %10d %14s%n", "loopback " + mode, size, "failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/* one loopback setting, measured as a file run */
+	private static void loopbackRun(String mode, int size, File input, String output, long segments) throws Exception {
+		run("loopback " + mode, size, input.length(), segments, () -> {
+			Protocol proto = new Protocol();
+			proto.initProtocol("127.0.0.1", Integer.toString(port), input.getPath(), output, Integer.toString(size), mode);
+			proto.setResume(false);   // every run sends the whole file
+			proto.setWindow(window);
+			proto.sendMetadata();
+			switch (mode) {
+			case Protocol.NORMAL_MODE:
+				proto.sendFileNormal();
+				break;
+			case Protocol.TIMEOUT_MODE:
+				proto.sendFileWithTimeout();
+				break;
+			case Protocol.GBN_MODE:
+				proto.sendFileNormalGBN(window);
+				break;
+			default:
+				proto.sendFileSelectiveRepeat(window);
+			}
+			proto.close();
+			return Files.size(Paths.get(output));
+		});
+	}
+
+	/* runs a task that processes the given bytes and packets, reporting the best of iterations after one warm-up run */
+	private static void run(String name, int payload, long bytes, long packets, Task task) throws Exception {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i <= iterations; i++) {
+			long t = System.nanoTime();
+			sink += task.run();
+			if (i > 0) {
+				best = Math.min(best, System.nanoTime() - t);
+			}
+		}
+		report(name, payload, best, bytes, packets);
+	}
+
+	/* prints one result: nanoseconds per operation of the given bytes and packets */
+	private static void report(String name, int payload, double nanos, long bytes, long packets) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%-28s %10d %14.1f %10.1f %12.0f%n", name, payload, nanos, bytes / seconds / (1 << 20), packets / seconds);
+	}
+
+	/* writes an input file of the given size of random bytes */
+	private static void writeInput(File file, long size) throws IOException {
+		byte[] block = new byte[1 << 20];
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			for (long written = 0; written < size; written += block.length) {
+				ThreadLocalRandom.current().nextBytes(block);
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+	}
+}
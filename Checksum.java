@@ -0,0 +1,64 @@
+import java.nio.ByteBuffer;
+
+/*
+ * The algorithms a segment checksum can be computed with, agreed per transfer
+ * in the metadata.
+ *
+ * SUM is the original sum of the payload bytes (or chars of a legacy string
+ * payload), kept for peers that know nothing else. It cannot see reordered or
+ * swapped bytes. CRC32C detects those and every burst error up to 32 bits, and
+ * java.util.zip.CRC32C is a JVM intrinsic that runs on the CPU's CRC
+ * instructions, so it is also cheaper per byte than the sum loop.
+ *
+ * Payloads are read from their buffer's position to its limit and the buffer
+ * is left as it was.
+ */
+public enum Checksum {
+
+	SUM {
+		@Override
+		public int of(ByteBuffer payload) {
+			int sum = 0;
+			for (int i = payload.position(); i < payload.limit(); i++) {
+				sum += payload.get(i) & 0xFF;
+			}
+			return sum;
+		}
+
+		@Override
+		public int of(String payload) {
+			int sum = 0;
+			for (int i = 0; i < payload.length(); i++) {
+				sum += payload.charAt(i);
+			}
+			return sum;
+		}
+	},
+
+	CRC32C {
+		@Override
+		public int of(ByteBuffer payload) {
+			java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+			int position = payload.position();
+			crc.update(payload);
+			payload.position(position);
+			return (int) crc.getValue();
+		}
+
+		@Override
+		public int of(String payload) {
+			return of(ByteBuffer.wrap(payload.getBytes()));
+		}
+	};
+
+	/* the checksum of the payload bytes from the buffer's position to its limit */
+	public abstract int of(ByteBuffer payload);
+
+	/* the checksum of a legacy string payload */
+	public abstract int of(String payload);
+
+	/* the checksum of whichever payload the segment carries */
+	public int of(Segment seg) {
+		return seg.getData() != null ? of(seg.getData()) : of(seg.getPayLoad());
+	}
+}
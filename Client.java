@@ -1,95 +1,303 @@
-/******** DO NOT EDIT THIS FILE ********/
-import java.io.IOException;
-
-import java.util.Scanner;
-
-/*
- * This file contains the main method for the client.
- * Do NOT change anything in this file.
- * 
- * start client as:
- *
- *      java Client <host name> <port number> <input file name> <output file name> <payload size> <nm|wt|gpn>  
- *
- * Where:
- *      host name is the address of the server
- * 		port number is the port the server is listening on
- *		input file name is the name of the file to send
- *      output file name is name for the file on the server
- *      payload size is the size of the segment payload
- *      nm selects normal transfer mode 
- *      wt selects transfer with time out and a probability of  
- *          corruption of segments. The probability must be between 0.0 and 1.0,
- *          inclusive.
- * 	    gpn selects GoBackN mode with window size
- *
- * Only specify one transfer mode. That is, either nm, wt or gpn      
- */
-
-public class Client {
-	static Protocol proto = new Protocol();
-
-	/* the main method  */
-	public static void main(String[] args) throws IOException, InterruptedException {
-		if (args.length < 6) {
-			System.err.println("Usage: java Client <host name> <port number> <input file name> <output file name> <payload Size> <nm|wt|gbn>");
-			System.err.println("host name: is server IP address (e.g. 127.0.0.1) ");
-			System.err.println("port number: is a positive number in the range 1025 to 65535");
-			System.err.println("input file name: is the file to send");
-			System.err.println("output file name: is the name of the output file");
-			System.err.println("Payload size: is the size of the payload");
-			System.err.println("nm selects normal transfer|wt selects transfer with time out");
-			System.exit(1);
-		}
-
-		//initialise the Protocol attributes
-		proto.initProtocol(args[0], args[1], args[2], args[3], args[4], args[5] );  
-
-		System.out.println ("----------------------------------------------------");
-		System.out.println ("SENDER: File "+ args[2] +" exists  " );
-		System.out.println ("----------------------------------------------------");
-		System.out.println ("----------------------------------------------------");
-		String choice=args[5];
-		float loss = 0;
-		int window =1;
-		Scanner sc=new Scanner(System.in);  
-
-		/* Send meta data to the server */
-		System.out.println ("SENDER: Sending meta data");
-		proto.sendMetadata(); 
-
-		if (choice.equalsIgnoreCase(Protocol.TIMEOUT_MODE)) {
-			System.out.println("Enter the probability of a corrupted checksum (between 0 and 1): ");
-			loss = sc.nextFloat();
-			proto.setLossProb(loss);
-		} 
-
-		if (choice.equalsIgnoreCase(Protocol.GBN_MODE)) {
-			System.out.println("Enter the size of the window (an int): ");
-			window = sc.nextInt();
-		} 
-
-		System.out.println("------------------------------------------------------------------");
-		System.out.println("------------------------------------------------------------------");
-		switch(choice)
-		{
-		case Protocol.NORMAL_MODE:			
-			proto.sendFileNormal (); 
-			break;
-
-		case Protocol.TIMEOUT_MODE: 		 
-			proto.sendFileWithTimeout(); 
-			break; 
-
-		case Protocol.GBN_MODE: 			 
-			proto.sendFileNormalGBN(window); 
-			break; 
-
-		default:
-			System.out.println("Error! mode is not recognised");
-		} 
-
-		System.out.println("SENDER: File is sent\n");
-		sc.close();
-	}   
-}
+import java.io.IOException;
+
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * This file contains the main method for the client.
+ * 
+ * start client as:
+ *
+ *      java Client <host name> <port number> <input file name> <output file name> <payload size> <nm|wt|gpn|sr> [option=value ...]
+ *
+ * Where:
+ *      host name is the address of the server
+ * 		port number is the port the server is listening on
+ *		input file name is the name of the file to send
+ *      output file name is name for the file on the server
+ *      An input directory sends every file below it as one batch, into the
+ *      output file name as a directory (binary wire format only)
+ *      payload size is the size of the segment payload
+ *      nm selects normal transfer mode 
+ *      wt selects transfer with time out and a probability of  
+ *          corruption of segments. The probability must be between 0.0 and 1.0,
+ *          inclusive.
+ * 	    gpn selects GoBackN mode with window size
+ *      sr selects Selective Repeat mode with window size
+ *
+ * Only specify one transfer mode. That is, either nm, wt, gpn or sr
+ *
+ * Options:
+ *      wire=binary|java selects the compact binary wire format (default) or
+ *          Java object serialization for servers that only understand that
+ *      reader=channel|mmap reads the input file with positional channel reads
+ *          (default) or through a memory map
+ *      prefetch=on|off reads the segments ahead of the sender on a thread of
+ *          its own, so a slow disk leaves no gaps on the wire (channel reader
+ *          only, default on)
+ *      sessions=N sends the file N times concurrently from this JVM, each
+ *          transfer on its own (virtual) thread, to <output file name>.0 .. .N-1
+ *      streams=N stripes the file over N sockets and sender loops (gbn and sr)
+ *      cc=aimd|fixed grows and cuts the window with congestion control up to the
+ *          window size entered (default), or keeps it fixed at that size
+ *      probe=on|off finds the largest datagram that reaches the server, up to
+ *          64 KB, and sets the payload size to fill it (binary wire format only)
+ *      compress=on|off deflates every payload that gets smaller (binary wire
+ *          format only, default off)
+ *      resume=on|off lets the server resume an earlier transfer of the same file
+ *          to the same output file from its journal (default on, binary wire
+ *          format only)
+ *      delta=on|off sends only what changed against the server's old copy of
+ *          the output file, rsync style (binary wire format only, default off)
+ *      fec=K:M sends M XOR parity segments for every K segments, so the server
+ *          rebuilds up to M losses per group without a resend (gbn and sr,
+ *          binary wire format only, default off)
+ *      checksum=crc32c|sum computes segment checksums with CRC32C (default) or
+ *          the original byte sum (the default with wire=java)
+ *      log=trace|info|quiet prints every segment and ACK (default), one summary
+ *          per transfer, or warnings only
+ *      metrics=FILE registers the transfer metrics as a JMX MBean and writes
+ *          them to FILE as JSON every second and at exit
+ */
+
+public class Client {
+	static Protocol proto = new Protocol();
+	static int sessions = 1;   // number of concurrent transfers to run
+
+	/* the main method  */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 6) {
+			System.err.println("Usage: java Client <host name> <port number> <input file name> <output file name> <payload Size> <nm|wt|gbn|sr>");
+			System.err.println("host name: is server IP address (e.g. 127.0.0.1) ");
+			System.err.println("port number: is a positive number in the range 1025 to 65535");
+			System.err.println("input file name: is the file to send, or a directory whose files are sent as one batch");
+			System.err.println("output file name: is the name of the output file, or directory for a batch");
+			System.err.println("Payload size: is the size of the payload");
+			System.err.println("nm selects normal transfer|wt selects transfer with time out|gbn selects GoBackN|sr selects Selective Repeat");
+			System.err.println("options: wire=binary|java reader=channel|mmap prefetch=on|off sessions=N streams=N cc=aimd|fixed probe=on|off compress=on|off resume=on|off delta=on|off fec=K:M checksum=crc32c|sum log=trace|info|quiet metrics=FILE");
+			System.exit(1);
+		}
+
+		//initialise the Protocol attributes
+		proto.initProtocol(args[0], args[1], args[2], args[3], args[4], args[5] );  
+		applyOptions(proto, args);
+
+		System.out.println ("----------------------------------------------------");
+		System.out.println ("SENDER: File "+ args[2] +" exists  " );
+		System.out.println ("----------------------------------------------------");
+		System.out.println ("----------------------------------------------------");
+		String choice=args[5];
+		float loss = 0;
+		int window =1;
+		Scanner sc=new Scanner(System.in);  
+
+		if (choice.equalsIgnoreCase(Protocol.TIMEOUT_MODE)) {
+			System.out.println("Enter the probability of a corrupted checksum (between 0 and 1): ");
+			loss = sc.nextFloat();
+			proto.setLossProb(loss);
+		} 
+
+		if (choice.equalsIgnoreCase(Protocol.GBN_MODE) || choice.equalsIgnoreCase(Protocol.SR_MODE)) {
+			System.out.println("Enter the size of the window (an int): ");
+			window = sc.nextInt();
+			proto.setWindow(window);
+		} 
+
+		if (sessions > 1) {
+			proto.close();
+			sendConcurrently(args, loss, window);
+			Log.info("SENDER: " + sessions + " files are sent\n");
+			Log.flush();
+			sc.close();
+			return;
+		}
+
+		/* Send meta data to the server, the window is part of it */
+		Log.info("SENDER: Sending meta data");
+		proto.sendMetadata(); 
+
+		Log.info("------------------------------------------------------------------");
+		Log.info("------------------------------------------------------------------");
+		send(proto, choice, window);
+
+		Log.info("SENDER: File is sent\n");
+		Log.flush();
+		proto.close();
+		sc.close();
+	}   
+
+	/* transfer the file with the given protocol in the chosen mode */
+	private static void send(Protocol proto, String choice, int window) throws IOException {
+		switch(choice)
+		{
+		case Protocol.NORMAL_MODE:			
+			proto.sendFileNormal (); 
+			break;
+
+		case Protocol.TIMEOUT_MODE: 		 
+			proto.sendFileWithTimeout(); 
+			break; 
+
+		case Protocol.GBN_MODE: 			 
+			if (proto.getStreams() > 1) {
+				proto.sendFileStriped(window);
+			} else {
+				proto.sendFileNormalGBN(window); 
+			}
+			break; 
+
+		case Protocol.SR_MODE:
+			if (proto.getStreams() > 1) {
+				proto.sendFileStriped(window);
+			} else {
+				proto.sendFileSelectiveRepeat(window);
+			}
+			break;
+
+		default:
+			Log.warn("Error! mode is not recognised");
+		} 
+	}
+
+	/*
+	 * run the transfer from as many independent Protocol instances as there are sessions,
+	 * each on its own (virtual) thread with its own socket, and wait for all of them
+	 */
+	private static void sendConcurrently(String[] args, float loss, int window) throws InterruptedException {
+		ExecutorService executor = Threads.perTaskExecutor();
+		for (int i = 0; i < sessions; i++) {
+			String outputFileName = args[3] + "." + i;
+			executor.execute(() -> {
+				try {
+					Protocol session = new Protocol();
+					session.initProtocol(args[0], args[1], args[2], outputFileName, args[4], args[5]);
+					applyOptions(session, args);
+					session.setLossProb(loss);
+					session.setWindow(window);
+					session.sendMetadata();
+					send(session, args[5], window);
+					session.close();
+				} catch (IOException e) {
+					System.err.println("ERROR --> Transfer to " + outputFileName + " failed: " + e.getMessage());
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/* apply the optional settings that follow the transfer mode on the command line */
+	private static void applyOptions(Protocol proto, String[] args) {
+		for (int i = 6; i < args.length; i++) {
+			applyOption(proto, args[i]);
+		}
+	}
+
+	/* apply an optional setting given as option=value on the command line */
+	private static void applyOption(Protocol proto, String option) {
+		int eq = option.indexOf('=');
+		String key = eq < 0 ? option : option.substring(0, eq);
+		String value = eq < 0 ? "" : option.substring(eq + 1);
+
+		switch (key) {
+		case "wire":
+			if (value.equalsIgnoreCase("java")) {
+				proto.setWireVersion(WireFormat.LEGACY);
+			} else if (value.equalsIgnoreCase("binary")) {
+				proto.setWireVersion(WireFormat.VERSION);
+			} else {
+				System.err.println("Unknown wire format: " + value);
+				System.exit(1);
+			}
+			break;
+
+		case "reader":
+			if (value.equalsIgnoreCase("mmap")) {
+				proto.setMappedReader(true);
+			} else if (value.equalsIgnoreCase("channel")) {
+				proto.setMappedReader(false);
+			} else {
+				System.err.println("Unknown reader: " + value);
+				System.exit(1);
+			}
+			break;
+
+		case "prefetch":
+			proto.setPrefetch(value.equalsIgnoreCase("on"));
+			break;
+
+		case "sessions":
+			sessions = Integer.parseInt(value);
+			break;
+
+		case "streams":
+			proto.setStreams(Integer.parseInt(value));
+			break;
+
+		case "cc":
+			if (value.equalsIgnoreCase("aimd")) {
+				proto.setAdaptiveWindow(true);
+			} else if (value.equalsIgnoreCase("fixed")) {
+				proto.setAdaptiveWindow(false);
+			} else {
+				System.err.println("Unknown congestion control: " + value);
+				System.exit(1);
+			}
+			break;
+
+		case "probe":
+			proto.setProbe(value.equalsIgnoreCase("on"));
+			break;
+
+		case "compress":
+			proto.setCompress(value.equalsIgnoreCase("on"));
+			break;
+
+		case "resume":
+			proto.setResume(value.equalsIgnoreCase("on"));
+			break;
+
+		case "delta":
+			proto.setDelta(value.equalsIgnoreCase("on"));
+			break;
+
+		case "fec":
+			String[] fec = value.split(":");
+			int group = Integer.parseInt(fec[0]);
+			int parity = fec.length > 1 ? Integer.parseInt(fec[1]) : 1;
+			if (parity < 1 || parity > group || group > Fec.MAX_GROUP) {
+				System.err.println("Invalid fec: " + value + ", expected K:M with 1 <= M <= K <= " + Fec.MAX_GROUP);
+				System.exit(1);
+			}
+			proto.setFec(group, parity);
+			break;
+
+		case "checksum":
+			try {
+				proto.setChecksum(Checksum.valueOf(value.toUpperCase()));
+			} catch (IllegalArgumentException e) {
+				System.err.println("Unknown checksum: " + value);
+				System.exit(1);
+			}
+			break;
+
+		case "metrics":
+			Metrics.publish(value);
+			break;
+
+		case "log":
+			try {
+				Log.setLevel(value);
+			} catch (IllegalArgumentException e) {
+				System.err.println("Unknown log level: " + value);
+				System.exit(1);
+			}
+			break;
+
+		default:
+			System.err.println("Unknown option: " + option);
+			System.exit(1);
+		}
+	}
+}
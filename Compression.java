@@ -0,0 +1,85 @@
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Per-segment compression of binary payloads with raw deflate at BEST_SPEED.
+ *
+ * Every segment is compressed on its own, so a lost or resent segment never
+ * depends on another and the server can inflate segments in any order. A
+ * payload that does not shrink goes out raw. After such a miss the next
+ * segments are sent raw without trying, twice as many after every further
+ * miss up to MAX_SKIP, so incompressible files (archives, media) cost almost
+ * no CPU; one payload that shrinks again resets the back-off.
+ *
+ * A sender and a receiver each use their own instance, from one thread.
+ */
+public class Compression {
+
+	static final int LEVEL = Deflater.BEST_SPEED;   // deflate level, the link is slower than the codec
+	static final int MAX_SKIP = 256;                // most segments sent raw without trying after misses
+
+	private final Deflater deflater = new Deflater(LEVEL, true);
+	private final Inflater inflater = new Inflater(true);
+	private final ByteBuffer buffer;   // holds the last deflated or inflated payload
+	private int skip;                  // segments still to send raw without trying
+	private int backoff;               // segments to skip after the next miss
+
+	public Compression(int maxPayload) {
+		this.buffer = ByteBuffer.allocate(maxPayload);
+	}
+
+	/*
+	 * deflates the payload from its position to its limit, leaving it as it was, and returns
+	 * the compressed bytes as a view that is valid until the next call, or null to send it raw
+	 */
+	public ByteBuffer deflate(ByteBuffer payload) {
+		if (skip > 0) {
+			skip--;
+			return null;
+		}
+		deflater.reset();
+		deflater.setInput(payload.duplicate());
+		deflater.finish();
+		buffer.clear();
+		buffer.limit(Math.min(buffer.capacity(), payload.remaining() - 1));
+		while (!deflater.finished() && buffer.hasRemaining()) {
+			deflater.deflate(buffer);
+		}
+		if (!deflater.finished()) {
+			// not smaller than the payload: send raw and try again later
+			backoff = Math.min(MAX_SKIP, Math.max(1, 2 * backoff));
+			skip = backoff;
+			return null;
+		}
+		backoff = 0;
+		return buffer.flip();
+	}
+
+	/* inflates a deflated payload of the given size and returns it as a view that is valid until the next call */
+	public ByteBuffer inflate(ByteBuffer compressed, int size) throws DataFormatException {
+		if (size < 0 || size > buffer.capacity()) {
+			throw new DataFormatException("Payload of " + size + " bytes is larger than a segment");
+		}
+		inflater.reset();
+		inflater.setInput(compressed.duplicate());
+		buffer.clear();
+		buffer.limit(size);
+		while (!inflater.finished() && buffer.hasRemaining()) {
+			if (inflater.inflate(buffer) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+				break;
+			}
+		}
+		if (!inflater.finished() || buffer.hasRemaining()) {
+			throw new DataFormatException("Payload does not inflate to " + size + " bytes");
+		}
+		return buffer.flip();
+	}
+
+	/* releases the native codec memory */
+	public void end() {
+		deflater.end();
+		inflater.end();
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Congestion window of a sending loop, grown and cut AIMD style as in TCP Reno
+ * (RFC 5681), counted in segments:
+ *
+ *      slow start           cwnd += 1 per acknowledged segment while cwnd < ssthresh
+ *      congestion avoidance cwnd += 1/cwnd per acknowledged segment
+ *      duplicate ACKs       ssthresh = cwnd / 2, cwnd = ssthresh
+ *      timeout              ssthresh = cwnd / 2, cwnd = INITIAL_WINDOW
+ *
+ * The window never exceeds the ceiling the user gave, which is also the
+ * window announced to the server. Sends are paced at min rtt / cwnd apart, so
+ * a full window is spread over a round trip instead of arriving at the
+ * receiver's socket buffer in one burst. A fixed window stays at the ceiling
+ * and is not paced, the behaviour before congestion control.
+ *
+ * Pacing uses the smallest rtt seen rather than the smoothed one: the sender
+ * reads ACKs between paced sends, so its samples include the time ACKs waited
+ * for it, and pacing on them would keep slowing itself down.
+ */
+public class CongestionControl {
+
+	static final double INITIAL_WINDOW = 2;   // segments in flight at the start and after a timeout
+	static final double MIN_THRESHOLD = 2;    // lower bound of ssthresh
+
+	private final int ceiling;        // largest window in segments
+	private final boolean adaptive;   // false for a fixed window at the ceiling
+	private double cwnd;              // congestion window in segments
+	private double ssthresh;          // window at which slow start ends
+
+	public CongestionControl(int ceiling, boolean adaptive) {
+		this.ceiling = ceiling;
+		this.adaptive = adaptive;
+		this.cwnd = adaptive ? Math.min(INITIAL_WINDOW, ceiling) : ceiling;
+		this.ssthresh = ceiling;
+	}
+
+	/* the number of segments that may be in flight now */
+	public int window() {
+		return Math.max(1, Math.min(ceiling, (int) cwnd));
+	}
+
+	/* grows the window for the given number of newly acknowledged segments */
+	public void onAck(int acked) {
+		if (!adaptive) {
+			return;
+		}
+		for (int i = 0; i < acked && cwnd < ceiling; i++) {
+			cwnd += cwnd < ssthresh ? 1 : 1 / cwnd;
+		}
+		cwnd = Math.min(cwnd, ceiling);
+	}
+
+	/* halves the window after duplicate ACKs reported a lost segment */
+	public void onLoss() {
+		if (!adaptive) {
+			return;
+		}
+		ssthresh = Math.max(MIN_THRESHOLD, cwnd / 2);
+		cwnd = ssthresh;
+	}
+
+	/* restarts slow start after a retransmission timer expired */
+	public void onTimeout() {
+		if (!adaptive) {
+			return;
+		}
+		ssthresh = Math.max(MIN_THRESHOLD, cwnd / 2);
+		cwnd = Math.min(INITIAL_WINDOW, ceiling);
+	}
+
+	/* nanoseconds between two sends for the given minimum rtt in milliseconds, 0 for no pacing */
+	public long pacingInterval(double minRttMillis) {
+		if (!adaptive || minRttMillis <= 0) {
+			return 0;
+		}
+		return (long) (minRttMillis * 1e6 / cwnd);
+	}
+
+	/* the congestion window in segments, for progress messages */
+	public double cwnd() {
+		return cwnd;
+	}
+}
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * rsync-style delta of an input file against the server's old copy of the
+ * output file.
+ *
+ * The server cuts its old file into blocks of one segment and sends their
+ * signature: a rolling weak checksum and a strong hash (the first 8 bytes of
+ * MD5, as rsync) per block. The client rolls the weak checksum over its input
+ * one byte at a time, so a block is found at any offset, also after bytes were
+ * inserted or removed before it, and confirms every weak hit with the strong
+ * hash. Matches that follow each other in both files are merged into runs.
+ *
+ * Transfers stay segment based: every segment of the input that lies wholly
+ * inside a run becomes a Copy the server makes from its old file, and only the
+ * other segments are sent. An edit therefore costs the segments it touches,
+ * plus at most one on each side where the run boundaries cut a segment.
+ */
+public class Delta {
+
+	static final int WINDOW = 4 << 20;   // bytes of a file read at a time while scanning it
+
+	/* count segments from first on that the server copies from its old file, starting at source */
+	static final class Copy {
+		final int first;
+		final int count;
+		final long source;
+
+		Copy(int first, int count, long source) {
+			this.first = first;
+			this.count = count;
+			this.source = source;
+		}
+	}
+
+	final int blockSize;
+	final int[] weak;           // rolling checksum of each block
+	final long[] strong;        // strong hash of each block
+	private final int[] heads;  // first block of every hash slot of the weak checksums, -1 for none
+	private final int[] chain;  // next block in the same hash slot, -1 for none
+	private final int shift;    // 32 minus the number of hash slot bits
+
+	public Delta(int blockSize, int[] weak, long[] strong) {
+		this.blockSize = blockSize;
+		this.weak = weak;
+		this.strong = strong;
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, weak.length));
+		this.shift = 32 - bits;
+		this.heads = new int[1 << bits];
+		this.chain = new int[weak.length];
+		Arrays.fill(heads, -1);
+		for (int i = weak.length - 1; i >= 0; i--) {
+			int slot = slot(weak[i]);
+			chain[i] = heads[slot];
+			heads[slot] = i;
+		}
+	}
+
+	/* the signature of the file in blocks of the given size; a shorter last block is left out */
+	static Delta of(FileChannel file, int blockSize) throws IOException {
+		int blocks = (int) (file.size() / blockSize);
+		int[] weak = new int[blocks];
+		long[] strong = new long[blocks];
+		MessageDigest md5 = md5();
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(1, WINDOW / blockSize) * blockSize);
+		int block = 0;
+		while (block < blocks) {
+			buffer.clear();
+			readFully(file, (long) block * blockSize, buffer);
+			if (buffer.position() < blockSize) {
+				throw new IOException("Old file shrank while hashing it");
+			}
+			for (int at = 0; at + blockSize <= buffer.position() && block < blocks; at += blockSize, block++) {
+				weak[block] = weak(buffer, at, blockSize);
+				strong[block] = strong(md5, buffer, at, blockSize);
+			}
+		}
+		return new Delta(blockSize, weak, strong);
+	}
+
+	/* the segments of the input, in segments of blockSize, that the server copies from the file of the signature */
+	List<Copy> match(SegmentReader input, long size) throws IOException {
+		List<Copy> copies = new ArrayList<>();
+		if (weak.length == 0 || size < blockSize) {
+			return copies;
+		}
+		MessageDigest md5 = md5();
+		ByteBuffer window = ByteBuffer.allocate(Math.max(WINDOW, 2 * blockSize));
+		long base = 0;     // file offset of the first byte in the window
+		int filled = 0;    // bytes in the window
+		long runNew = 0;   // current run of matches: offset in the input
+		long runOld = 0;   // offset in the old file
+		long runLength = 0;
+		int a = 0;         // rolling checksum halves of the block at p
+		int b = 0;
+		boolean fresh = true;   // whether the checksum must be computed from scratch at p
+
+		long p = 0;
+		while (p + blockSize <= size) {
+			// keep the block at p and the byte after it in the window
+			if (p + blockSize + 1 > base + filled && base + filled < size) {
+				base = p;
+				window.clear();
+				filled = input.readAt(base, window);
+			}
+			int at = (int) (p - base);
+			if (fresh) {
+				int w = weak(window, at, blockSize);
+				a = w & 0xFFFF;
+				b = w >>> 16;
+				fresh = false;
+			}
+
+			int block = find((a & 0xFFFF) | (b << 16), runLength > 0 ? (runOld + runLength) / blockSize : -1, md5, window, at);
+			if (block >= 0) {
+				if (runLength > 0 && runNew + runLength == p && runOld + runLength == (long) block * blockSize) {
+					runLength += blockSize;
+				} else {
+					addCopies(copies, runNew, runOld, runLength, size);
+					runNew = p;
+					runOld = (long) block * blockSize;
+					runLength = blockSize;
+				}
+				p += blockSize;
+				fresh = true;
+				continue;
+			}
+			if (p + blockSize >= size) {
+				break;
+			}
+			// roll the checksum on by one byte
+			int out = window.get(at) & 0xFF;
+			int in = window.get(at + blockSize) & 0xFF;
+			a += in - out;
+			b += a - blockSize * out;
+			p++;
+		}
+		addCopies(copies, runNew, runOld, runLength, size);
+		return copies;
+	}
+
+	/* a block with the given weak checksum whose strong hash matches the input at the position, the preferred one if it does, or -1 */
+	private int find(int w, long preferred, MessageDigest md5, ByteBuffer window, int at) {
+		int found = -1;
+		long hash = 0;
+		boolean hashed = false;
+		for (int i = heads[slot(w)]; i >= 0; i = chain[i]) {
+			if (weak[i] != w) {
+				continue;
+			}
+			if (!hashed) {
+				hash = strong(md5, window, at, blockSize);
+				hashed = true;
+			}
+			if (strong[i] == hash) {
+				if (found < 0 || i == preferred) {
+					found = i;
+				}
+				if (preferred < 0 || i == preferred) {
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	/* adds a copy of the segments of an input of the given size that lie wholly inside the run */
+	private void addCopies(List<Copy> copies, long runNew, long runOld, long runLength, long size) {
+		if (runLength == 0) {
+			return;
+		}
+		int first = (int) ((runNew + blockSize - 1) / blockSize);
+		int count = 0;
+		while (true) {
+			long start = (long) (first + count) * blockSize;
+			long end = Math.min(start + blockSize, size);
+			if (start >= size || end > runNew + runLength) {
+				break;
+			}
+			count++;
+		}
+		if (count > 0) {
+			copies.add(new Copy(first, count, runOld + (long) first * blockSize - runNew));
+		}
+	}
+
+	private int slot(int w) {
+		return (w * 0x9E3779B9) >>> shift;
+	}
+
+	/* the rsync rolling checksum of length bytes of buf from the given index */
+	static int weak(ByteBuffer buf, int from, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++) {
+			int x = buf.get(from + i) & 0xFF;
+			a += x;
+			b += (length - i) * x;
+		}
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+	/* the first 8 bytes of the MD5 of length bytes of buf from the given index */
+	static long strong(MessageDigest md5, ByteBuffer buf, int from, int length) {
+		md5.update(buf.slice(from, length));
+		return ByteBuffer.wrap(md5.digest()).getLong();
+	}
+
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/* reads from the position until buf is full or the file ends */
+	private static void readFully(FileChannel file, long position, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = file.read(buf, position);
+			if (n < 0) {
+				break;
+			}
+			position += n;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * The disk stage of a transfer, so a slow write or a page cache stall does not
+ * stop the thread that reads the socket.
+ *
+ * The receiving thread copies every payload into a ring of slots of one
+ * segment each in a single direct buffer and goes back to the socket; a
+ * writer thread of the transfer takes them out and writes them with
+ * positional writes. A run of full slots that follow each other in the file
+ * also follow each other in the ring, so the writer writes the whole run with
+ * one call. The ring has one producer and one consumer and needs no lock: the
+ * producer publishes a slot by moving head, the writer frees it by moving
+ * tail. Only a full ring makes the receiving thread wait, which is the back
+ * pressure of a disk that stays slower than the network.
+ *
+ * The sync policy forces the file to disk every syncEvery bytes written
+ * (above 0), once at the end (SYNC_AT_END), or never (SYNC_NONE). drain()
+ * waits until everything handed over so far is written, for a checkpoint or
+ * a read of the file; a write error fails the next call of the receiving side.
+ */
+final class DiskWriter implements Closeable {
+
+	static final long SYNC_NONE = -1;        // sync policy: never force the file
+	static final long SYNC_AT_END = 0;       // sync policy: force the file once it is closed
+	static final int RING_BYTES = 8 << 20;   // payload bytes the ring holds, the disk stall it absorbs
+	static final long FULL_WAIT = 100_000;   // nanoseconds the receiving side waits for a free slot before looking again
+
+	private static final ExecutorService writers = Threads.perTaskExecutor();
+
+	private final FileChannel output;   // the file written, null for a batch
+	private final Batch batch;          // the files written, null for a single file
+	private final long syncEvery;       // sync policy: bytes between two forces, SYNC_AT_END or SYNC_NONE
+	private final int slotSize;         // largest payload of a slot
+	private final int slots;            // slots in the ring
+	private final ByteBuffer ring;      // payloads, slot i from i * slotSize on
+	private final long[] positions;     // file offset of the payload in each slot
+	private final int[] lengths;        // payload size in each slot
+	private final Future<?> writing;    // the writer thread
+
+	private volatile long head;         // slots published by the receiving side
+	private volatile long tail;         // slots written by the writer
+	private volatile boolean closing;   // whether the writer stops once the ring is empty
+	private volatile Thread writer;     // the writer thread, once it runs
+	private volatile boolean parked;    // whether the writer waits for a slot
+	private volatile IOException failure;   // what the writer failed with
+	private long written;               // bytes written since the last force, writer thread only
+
+	/* a writer of the given file, or of the given batch, for payloads of up to slotSize bytes, in segmentCount segments */
+	DiskWriter(FileChannel output, Batch batch, long syncEvery, int slotSize, int segmentCount) {
+		this.output = output;
+		this.batch = batch;
+		this.syncEvery = syncEvery;
+		this.slotSize = slotSize;
+		this.slots = Math.max(1, Math.min(RING_BYTES / slotSize, segmentCount));
+		this.ring = ByteBuffer.allocateDirect(slots * slotSize);
+		this.positions = new long[slots];
+		this.lengths = new int[slots];
+		this.writing = writers.submit(this::run);
+	}
+
+	/* the sync policy of an fsync option: none, end, or the megabytes between two forces */
+	static long syncPolicy(String value) {
+		if (value.equalsIgnoreCase("none")) {
+			return SYNC_NONE;
+		}
+		if (value.equalsIgnoreCase("end")) {
+			return SYNC_AT_END;
+		}
+		long megabytes = Long.parseLong(value);
+		if (megabytes <= 0) {
+			throw new IllegalArgumentException("Unknown fsync policy: " + value);
+		}
+		return megabytes << 20;
+	}
+
+	/* hands the payload over to be written at the given file offset, consuming it; waits while the ring is full */
+	void write(ByteBuffer payload, long position) throws IOException {
+		while (payload.hasRemaining()) {
+			long h = head;
+			while (h - tail >= slots) {
+				check();
+				LockSupport.parkNanos(FULL_WAIT);
+			}
+			check();
+			int slot = (int) (h % slots);
+			int length = Math.min(payload.remaining(), slotSize);
+			ring.put(slot * slotSize, payload, payload.position(), length);
+			payload.position(payload.position() + length);
+			positions[slot] = position;
+			lengths[slot] = length;
+			position += length;
+			head = h + 1;
+			if (parked) {
+				LockSupport.unpark(writer);
+			}
+		}
+	}
+
+	/* waits until everything handed over so far is written */
+	void drain() throws IOException {
+		long target = head;
+		while (tail < target) {
+			check();
+			LockSupport.parkNanos(FULL_WAIT);
+		}
+		check();
+	}
+
+	/* forces what is written to disk */
+	void force() throws IOException {
+		if (batch != null) {
+			batch.force();
+		} else {
+			output.force(false);
+		}
+	}
+
+	/* throws what the writer failed with */
+	private void check() throws IOException {
+		if (failure != null) {
+			throw new IOException("Cannot write the output file: " + failure.getMessage(), failure);
+		}
+	}
+
+	/* the writer thread: writes runs of slots until closed and empty */
+	private void run() {
+		writer = Thread.currentThread();
+		try {
+			long t = tail;
+			while (true) {
+				long h = head;
+				if (t == h) {
+					if (closing) {
+						return;
+					}
+					parked = true;
+					if (head == t && !closing) {
+						LockSupport.park(this);
+					}
+					parked = false;
+					continue;
+				}
+				// the slots from t on that continue each other in the file, up to the end of the ring
+				int slot = (int) (t % slots);
+				long position = positions[slot];
+				int length = lengths[slot];
+				int run = 1;
+				while (t + run < h && slot + run < slots && lengths[slot + run - 1] == slotSize
+						&& positions[slot + run] == position + length) {
+					length += lengths[slot + run];
+					run++;
+				}
+				ByteBuffer payload = ring.slice(slot * slotSize, length);
+				if (batch != null) {
+					batch.write(payload, position);
+				} else {
+					while (payload.hasRemaining()) {
+						position += output.write(payload, position);
+					}
+				}
+				t += run;
+				tail = t;
+				written += length;
+				if (syncEvery > 0 && written >= syncEvery) {
+					force();
+					written = 0;
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/* writes what is left, stops the writer and forces the file unless the sync policy is SYNC_NONE */
+	@Override
+	public void close() throws IOException {
+		closing = true;
+		Thread thread = writer;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		try {
+			writing.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing the output file");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		check();
+		if (syncEvery != SYNC_NONE) {
+			force();
+		}
+	}
+}
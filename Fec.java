@@ -0,0 +1,98 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Forward error correction with interleaved XOR parity, so the server can rebuild a
+ * lost segment without waiting a retransmission timeout and a round trip for it.
+ *
+ * The segments of every stream are cut into groups of group consecutive segments,
+ * counted from the first segment of the stream. Each group gets parity segments:
+ * parity segment j is the XOR of the members j, j + parity, j + 2 * parity, ... of the
+ * group, each padded with zeros to the longest of them. A parity segment rebuilds one
+ * missing member of its class, so a group survives up to parity losses as long as they
+ * fall in different classes, which includes any burst of up to parity segments.
+ *
+ * The sender adds every segment it sends for the first time and sends the parity once
+ * a group is complete; a group it did not send from its first member on, because the
+ * transfer resumed in it or segments were copied, gets no parity.
+ */
+final class Fec {
+
+	static final int MAX_GROUP = 255;   // largest group size, and parity count, the metadata carries
+
+	private final int group;         // segments per group
+	private final int parity;        // parity segments per group
+	private final int first;         // first segment of the stream, where the groups start
+	private final int end;           // one past the last segment of the stream, where the last group ends early
+	private final ByteBuffer[] sums; // XOR of the members of each class so far
+	private final int[] lengths;     // longest member of each class so far
+	private int start = -1;          // first segment of the group being added
+	private int next = -1;           // segment expected next, so a gap in the group is noticed
+	private boolean whole;           // whether every member of the group so far was added
+
+	Fec(int group, int parity, int maxPayload, int first, int end) {
+		this.group = group;
+		this.parity = parity;
+		this.first = first;
+		this.end = end;
+		this.sums = new ByteBuffer[parity];
+		this.lengths = new int[parity];
+		for (int j = 0; j < parity; j++) {
+			sums[j] = ByteBuffer.allocate(maxPayload);
+		}
+	}
+
+	/* the first segment of the group of the given segment, in a stream that starts at first */
+	static int groupStart(int index, int first, int group) {
+		return first + (index - first) / group * group;
+	}
+
+	/*
+	 * adds the payload of a segment sent for the first time, from its position to its limit;
+	 * returns true if it completed a group all of whose members were added in order
+	 */
+	boolean add(int index, ByteBuffer payload) {
+		int groupStart = groupStart(index, first, group);
+		if (index == groupStart) {
+			start = groupStart;
+			whole = true;
+			for (int j = 0; j < parity; j++) {
+				Arrays.fill(sums[j].array(), (byte) 0);
+				lengths[j] = 0;
+			}
+		} else if (index != next || groupStart != start) {
+			whole = false;
+		}
+		next = index + 1;
+		if (!whole) {
+			return false;
+		}
+		int j = (index - groupStart) % parity;
+		xor(sums[j], payload);
+		lengths[j] = Math.max(lengths[j], payload.remaining());
+		return index == Math.min(groupStart + group, end) - 1;
+	}
+
+	/* the first segment of the group add() completed */
+	int groupStart() {
+		return start;
+	}
+
+	/* the parity segment of class j of the group add() completed, empty if the class has no member; valid until the next add() */
+	ByteBuffer parity(int j) {
+		return sums[j].duplicate().position(0).limit(lengths[j]);
+	}
+
+	/* XORs the bytes of source from its position to its limit into target from index 0 on */
+	static void xor(ByteBuffer target, ByteBuffer source) {
+		int n = source.remaining();
+		int from = source.position();
+		int i = 0;
+		for (; i + Long.BYTES <= n; i += Long.BYTES) {
+			target.putLong(i, target.getLong(i) ^ source.getLong(from + i));
+		}
+		for (; i < n; i++) {
+			target.put(i, (byte) (target.get(i) ^ source.get(from + i)));
+		}
+	}
+}
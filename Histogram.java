@@ -0,0 +1,117 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Log-linear histogram of non-negative values, in the style of HdrHistogram.
+ *
+ * Values below SUB_BUCKETS get a bucket each; above that every power of two
+ * is split into SUB_BUCKETS buckets of equal width, so a recorded value is off
+ * by at most 1/SUB_BUCKETS of itself, whatever its magnitude, in a fixed
+ * array of counts. Values past the last bucket are counted in it.
+ *
+ * record() may be called from any number of threads without them contending
+ * for a cache line: the counts are striped, each thread adding to the array
+ * of the stripe it was handed on its first value, the count and the sum are
+ * LongAdders, and the maximum is only written when it grows. So a value costs
+ * a few shifts, an uncontended atomic add to its bucket and two adder
+ * increments. The percentiles sum the stripes without stopping the writers,
+ * so a concurrent reader sees a snapshot that is at most a few values behind.
+ */
+public final class Histogram {
+
+	static final int SUB_BITS = 4;                    // log2 of the buckets per power of two
+	static final int SUB_BUCKETS = 1 << SUB_BITS;     // buckets per power of two, the relative precision
+	static final int MAX_BITS = 40;                   // values up to 2^MAX_BITS - 1 are told apart
+	static final int BUCKETS = indexOf((1L << MAX_BITS) - 1) + 1;   // buckets of a stripe
+	static final int MAX_STRIPES = 16;                // most stripes of counts, however many processors
+
+	private static final AtomicInteger nextStripe = new AtomicInteger();   // stripe handed to the next thread that records
+	private static final ThreadLocal<Integer> stripe = ThreadLocal.withInitial(nextStripe::getAndIncrement);   // the stripe of the calling thread, modulo the stripes
+
+	private final AtomicLongArray[] counts;              // per stripe: the count of every bucket
+	private final LongAdder total = new LongAdder();     // number of recorded values
+	private final LongAdder sum = new LongAdder();       // sum of the recorded values, for the mean
+	private final AtomicLong max = new AtomicLong();     // largest recorded value
+
+	public Histogram() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		counts = new AtomicLongArray[Math.min(MAX_STRIPES, Integer.highestOneBit(processors * 2 - 1))];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+	/* counts one value */
+	public void record(long value) {
+		value = Math.max(0, value);
+		counts[stripe.get() & (counts.length - 1)].incrementAndGet(Math.min(indexOf(value), BUCKETS - 1));
+		total.increment();
+		sum.add(value);
+		if (value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	/* the number of recorded values */
+	public long count() {
+		return total.sum();
+	}
+
+	/* the mean of the recorded values, 0 without any */
+	public double mean() {
+		long n = total.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/* the largest recorded value */
+	public long max() {
+		return max.get();
+	}
+
+	/* the value below or at which the given fraction of the recorded values lie, the top of its bucket; 0 without any */
+	public long percentile(double fraction) {
+		long[] merged = new long[BUCKETS];
+		long n = 0;
+		for (AtomicLongArray striped : counts) {
+			for (int i = 0; i < BUCKETS; i++) {
+				merged[i] += striped.get(i);
+			}
+		}
+		for (long count : merged) {
+			n += count;
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += merged[i];
+			if (seen >= rank) {
+				// the last bucket also holds every larger value, so it has no top but the maximum
+				return i == BUCKETS - 1 ? max.get() : Math.min(lowestOf(i + 1) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/* the bucket of a value */
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/* the smallest value of a bucket */
+	static long lowestOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/*
+ * Checkpoint of the byte ranges of an output file that have been received, kept
+ * next to it as <output file>.journal so a transfer can resume after either
+ * side died.
+ *
+ * A journal belongs to one file content: it records the size and content hash
+ * the client announced, and is only used again by a transfer of the same
+ * output file with the same size and hash. Ranges are kept in bytes rather
+ * than segments, so a resumed transfer may use another payload size.
+ *
+ * journal layout (big endian):
+ *      0  int    MAGIC
+ *      4  byte   VERSION
+ *      5  long   size of the file
+ *     13  int    content hash
+ *     17  int    number of ranges
+ *     21  ...    ranges as (long start, long end), end exclusive, ascending
+ *
+ * A journal is written to a temporary file that then replaces the old one, so
+ * a crash while writing leaves the previous checkpoint.
+ */
+public class Journal {
+
+	static final String SUFFIX = ".journal";   // appended to the output file name
+	static final int MAGIC = 0x4A524E4C;       // "JRNL"
+	static final byte VERSION = 1;             // journal layout version
+	static final int HEADER_SIZE = 21;         // size of the journal before its ranges
+	static final long FLUSH_INTERVAL = 1000;   // milliseconds between checkpoints of a transfer
+
+	private final Path path;
+	private final Path temp;
+	private final long size;         // size of the file the journal belongs to
+	private final int contentHash;   // content hash of the file the journal belongs to
+
+	public Journal(String outputFileName, long size, int contentHash) {
+		this.path = Paths.get(outputFileName + SUFFIX);
+		this.temp = Paths.get(outputFileName + SUFFIX + ".tmp");
+		this.size = size;
+		this.contentHash = contentHash;
+	}
+
+	/*
+	 * the received ranges recorded for the same file content as start, end pairs,
+	 * or null if there is no journal or it belongs to another content
+	 */
+	public long[] load() throws IOException {
+		if (!Files.exists(path)) {
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+		if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC || buf.get() != VERSION) {
+			Log.warn("SERVER: Ignoring unreadable journal " + path);
+			return null;
+		}
+		if (buf.getLong() != size || buf.getInt() != contentHash) {
+			return null;
+		}
+		int count = buf.getInt();
+		if (count < 0 || count > buf.remaining() / 16) {
+			Log.warn("SERVER: Ignoring truncated journal " + path);
+			return null;
+		}
+		long[] ranges = new long[2 * count];
+		for (int i = 0; i < ranges.length; i++) {
+			ranges[i] = buf.getLong();
+		}
+		return ranges;
+	}
+
+	/* replaces the journal with the ranges of the given received segments */
+	public void write(BitSet received, int segmentSize) throws IOException {
+		int count = 0;
+		for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(received.nextClearBit(i))) {
+			count++;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 16 * count);
+		buf.putInt(MAGIC);
+		buf.put(VERSION);
+		buf.putLong(size);
+		buf.putInt(contentHash);
+		buf.putInt(count);
+		for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(i)) {
+			int end = received.nextClearBit(i);
+			buf.putLong((long) i * segmentSize);
+			buf.putLong(Math.min((long) end * segmentSize, size));
+			i = end;
+		}
+		buf.flip();
+
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			channel.force(false);
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/* removes the journal once the file is complete */
+	public void delete() throws IOException {
+		Files.deleteIfExists(path);
+	}
+
+	/* the end of the received range that covers the given offset, or the offset itself if none does */
+	static long coveredFrom(long[] ranges, long offset) {
+		for (int i = 0; i < ranges.length; i += 2) {
+			if (ranges[i] <= offset && offset < ranges[i + 1]) {
+				return ranges[i + 1];
+			}
+		}
+		return offset;
+	}
+}
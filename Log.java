@@ -0,0 +1,149 @@
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Leveled logger whose messages are written to the console by a background thread.
+ * Warnings go to System.err and everything else to System.out, looked up on
+ * every write so that whoever replaces them also gets the log.
+ *
+ * TRACE is for every segment and ACK, INFO for the start and summary of a
+ * transfer, WARN for failures. QUIET keeps only warnings. Messages below the
+ * level are dropped before they are built: hot paths test isTrace() first, so
+ * at INFO or QUIET the send and receive loops do no formatting and no console
+ * I/O at all.
+ *
+ * Enabled messages go through a lock-free ring buffer. A producer claims a slot
+ * with a CAS on the tail and publishes its message into it; the single writer
+ * thread prints the slots in order and joins the messages of a stream into one
+ * write, switching streams where the messages do so the order is kept. Producers
+ * only wait when the ring is full. flush() waits until everything logged so far
+ * has reached the console, and runs at shutdown as well.
+ */
+public final class Log {
+
+	enum Level { TRACE, INFO, QUIET }
+
+	static final int CAPACITY = 8192;          // slots in the ring, a power of two
+	static final long IDLE_PARK = 1_000_000;   // nanoseconds the writer sleeps when the ring is empty
+	static final long FLUSH_LIMIT = 2000;      // milliseconds flush() waits for the writer at most
+	static final int BATCH = 1 << 16;          // characters the writer joins before writing them, even if more are waiting
+
+	private static volatile Level level = Level.TRACE;
+
+	private static final AtomicReferenceArray<String> ring = new AtomicReferenceArray<>(CAPACITY);
+	private static final boolean[] warnings = new boolean[CAPACITY];   // whether a slot holds a warning, published by its ring entry
+	private static final AtomicLong tail = new AtomicLong();   // next slot a producer claims
+	private static volatile long head;                         // next slot the writer prints, written by the writer only
+	private static volatile long flushed;                      // slots printed and flushed to the console
+	private static final StringBuilder pending = new StringBuilder();   // messages not yet written, used by the writer only
+	private static boolean pendingWarning;                             // whether they go to System.err, used by the writer only
+	private static final Thread writer = new Thread(Log::drain, "log-writer");
+
+	static {
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+	}
+
+	private Log() {
+	}
+
+	/* sets the level from its name: trace, info or quiet */
+	public static void setLevel(String name) {
+		level = Level.valueOf(name.toUpperCase());
+	}
+
+	/* whether per-segment messages are logged, tested before building them */
+	public static boolean isTrace() {
+		return level == Level.TRACE;
+	}
+
+	/* whether per-transfer messages are logged */
+	public static boolean isInfo() {
+		return level != Level.QUIET;
+	}
+
+	public static void trace(String message) {
+		if (isTrace()) {
+			publish(message, false);
+		}
+	}
+
+	public static void info(String message) {
+		if (isInfo()) {
+			publish(message, false);
+		}
+	}
+
+	public static void warn(String message) {
+		publish(message, true);
+	}
+
+	/* waits until everything logged so far has been written to the console */
+	public static void flush() {
+		long target = tail.get();
+		long giveUp = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_LIMIT);
+		while (flushed < target && System.nanoTime() < giveUp) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(100_000);
+		}
+	}
+
+	/* claims the next slot of the ring and publishes the message into it */
+	private static void publish(String message, boolean warning) {
+		long slot;
+		while (true) {
+			slot = tail.get();
+			if (slot - head >= CAPACITY) {
+				// ring full: let the writer catch up
+				LockSupport.unpark(writer);
+				Thread.yield();
+			} else if (tail.compareAndSet(slot, slot + 1)) {
+				break;
+			}
+		}
+		warnings[(int) slot & (CAPACITY - 1)] = warning;
+		ring.set((int) slot & (CAPACITY - 1), message);
+	}
+
+	/* the writer thread: prints the slots in claim order, waiting for each to be published */
+	private static void drain() {
+		while (true) {
+			int index = (int) head & (CAPACITY - 1);
+			String message = ring.get(index);
+			if (message == null) {
+				// empty, or the producer of this slot has not published yet
+				if (flushed != head) {
+					write();
+					flushed = head;
+				}
+				LockSupport.parkNanos(IDLE_PARK);
+				continue;
+			}
+			boolean warning = warnings[index];
+			ring.set(index, null);
+			if (warning != pendingWarning) {
+				write();
+				pendingWarning = warning;
+			}
+			pending.append(message).append(System.lineSeparator());
+			if (pending.length() >= BATCH) {
+				write();
+			}
+			head = head + 1;
+		}
+	}
+
+	/* writes the pending messages to their stream in one go */
+	private static void write() {
+		if (pending.length() > 0) {
+			PrintStream console = pendingWarning ? System.err : System.out;
+			console.print(pending);
+			console.flush();
+			pending.setLength(0);
+		}
+	}
+}
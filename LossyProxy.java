@@ -0,0 +1,416 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/*
+ * UDP relay that emulates a lossy network between a Client and a Server on one machine.
+ *
+ * start as:
+ *
+ *      java LossyProxy <listen port> <server host> <server port> [option=value ...]
+ *
+ * and point the client at the listen port. Every client address gets its own socket
+ * towards the server, so replies find their way back and the server sees one peer per
+ * client. Options, all off by default:
+ *
+ *      drop=P drops a datagram with probability P (0.0 to 1.0)
+ *      duplicate=P sends a datagram twice with probability P
+ *      corrupt=P flips one random bit of a datagram with probability P; ACKs carry no
+ *          checksum, so a flipped sq may acknowledge a segment that never arrived:
+ *          combine it with direction=up to exercise only the segment checksums
+ *      reorder=P holds a datagram back by hold=MS (default 10) with probability P,
+ *          so the ones behind it overtake it
+ *      delay=MS is the one-way delay of every datagram, in milliseconds (fractions allowed)
+ *      jitter=MS varies the delay by up to MS, see dist; jitter alone reorders too
+ *      dist=uniform|normal draws the jitter uniformly from [-MS, MS] (default), or
+ *          normally with MS as the standard deviation; the delay never goes below 0
+ *      rate=MBIT caps each direction at MBIT megabits per second with a token bucket
+ *      burst=KB is the size of the token bucket (default 64)
+ *      queue=N datagrams wait for tokens at most, more are dropped at the tail (default 1000)
+ *      direction=both|up|down applies the impairments to both directions (default),
+ *          only client to server, or only server to client
+ *      seed=N seeds the random decisions, so a run can be repeated (default random)
+ *      stats=S prints the statistics of both directions every S seconds (default 5, 0 for
+ *          only at exit)
+ *
+ * A datagram goes through the impairments in the order of a real path: it is dropped,
+ * corrupted or duplicated at random, queued at the rate limited bottleneck, and then
+ * delayed. Each direction draws from its own random generator, derived from the seed,
+ * so its decisions only depend on the datagrams of that direction.
+ *
+ * One thread runs everything off a selector: the datagrams in flight wait in a queue
+ * ordered by when they are due, and the selector sleeps until the next one is.
+ */
+public class LossyProxy {
+
+	static final int MAX_DATAGRAM = 65535;   // largest UDP payload
+	static final long IDLE_TIMEOUT = 60000;  // milliseconds without traffic before a client's socket is closed
+
+	/* one datagram on its way */
+	private static final class Packet {
+		final byte[] data;
+		final Session session;
+		final Direction direction;
+		long due;        // when it is sent on, in System.nanoTime()
+		long order;      // arrival number, to keep datagrams due at the same time in order
+
+		Packet(byte[] data, Session session, Direction direction) {
+			this.data = data;
+			this.session = session;
+			this.direction = direction;
+		}
+	}
+
+	/* a client and the socket that relays its datagrams to the server */
+	private static final class Session {
+		final SocketAddress client;
+		final DatagramChannel upstream;
+		long lastActivity;
+
+		Session(SocketAddress client, DatagramChannel upstream) {
+			this.client = client;
+			this.upstream = upstream;
+		}
+	}
+
+	/* the impairments and statistics of one direction */
+	private final class Direction {
+		final String name;
+		final boolean impaired;
+		final SplittableRandom random;
+		final ArrayDeque<Packet> bottleneck = new ArrayDeque<>();   // datagrams waiting for tokens
+		double tokens;             // bytes the bucket lets through now
+		long refilled;             // when the tokens were last topped up, in System.nanoTime()
+
+		long received;             // datagrams that arrived
+		long receivedBytes;
+		long forwarded;            // datagrams sent on, duplicates included
+		long forwardedBytes;
+		long dropped;              // dropped at random
+		long queueDrops;           // dropped because the bottleneck queue was full
+		long duplicated;
+		long corrupted;
+		long reordered;
+
+		Direction(String name, boolean impaired, long seed) {
+			this.name = name;
+			this.impaired = impaired;
+			this.random = new SplittableRandom(seed);
+			this.tokens = burst;
+			this.refilled = System.nanoTime();
+		}
+
+		/* a datagram arrived from this direction's sender */
+		void arrive(byte[] data, Session session, long now) {
+			received++;
+			receivedBytes += data.length;
+			if (impaired && chance(drop)) {
+				dropped++;
+				return;
+			}
+			if (impaired && data.length > 0 && chance(corrupt)) {
+				data[random.nextInt(data.length)] ^= (byte) (1 << random.nextInt(8));
+				corrupted++;
+			}
+			enqueue(new Packet(data, session, this), now);
+			if (impaired && chance(duplicate)) {
+				duplicated++;
+				enqueue(new Packet(data.clone(), session, this), now);
+			}
+		}
+
+		/* queues a datagram at the bottleneck, or straight for its delay without a rate limit */
+		private void enqueue(Packet packet, long now) {
+			if (!impaired || rate <= 0) {
+				delay(packet, now);
+			} else if (bottleneck.size() >= queueLimit) {
+				queueDrops++;
+			} else {
+				bottleneck.add(packet);
+				release(now);
+			}
+		}
+
+		/* lets the datagrams through the bottleneck the tokens allow, returns when the next may go or -1 */
+		long release(long now) {
+			tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+			refilled = now;
+			while (!bottleneck.isEmpty() && tokens >= bottleneck.peek().data.length) {
+				Packet packet = bottleneck.poll();
+				tokens -= packet.data.length;
+				delay(packet, now);
+			}
+			if (bottleneck.isEmpty()) {
+				return -1;
+			}
+			return now + (long) Math.ceil((bottleneck.peek().data.length - tokens) / rate * 1e9);
+		}
+
+		/* schedules a datagram after the path delay, held back further if it is to be reordered */
+		private void delay(Packet packet, long now) {
+			double millis = 0;
+			if (impaired) {
+				millis = delayMillis;
+				if (jitterMillis > 0) {
+					millis += normalJitter ? random.nextGaussian() * jitterMillis : (random.nextDouble() * 2 - 1) * jitterMillis;
+				}
+				if (chance(reorder)) {
+					millis += holdMillis;
+					reordered++;
+				}
+			}
+			packet.due = now + (long) (Math.max(0, millis) * 1e6);
+			packet.order = arrivals++;
+			inFlight.add(packet);
+		}
+
+		private boolean chance(double probability) {
+			return probability > 0 && random.nextDouble() < probability;
+		}
+
+		/* this direction's statistics on one line */
+		String stats() {
+			return String.format("PROXY: %-16s received %d (%d bytes), forwarded %d (%d bytes), dropped %d, queue drops %d, duplicated %d, corrupted %d, reordered %d",
+					name, received, receivedBytes, forwarded, forwardedBytes, dropped, queueDrops, duplicated, corrupted, reordered);
+		}
+	}
+
+	private final int listenPort;
+	private final InetSocketAddress server;
+	private double drop;
+	private double duplicate;
+	private double corrupt;
+	private double reorder;
+	private double holdMillis = 10;
+	private double delayMillis;
+	private double jitterMillis;
+	private boolean normalJitter;
+	private double rate;                 // bytes per second of each direction, 0 for no limit
+	private double burst = 64 * 1024;    // bytes of the token bucket
+	private int queueLimit = 1000;
+	private String direction = "both";
+	private long seed = System.nanoTime();
+	private long statsMillis = 5000;
+
+	private final Map<SocketAddress, Session> sessions = new HashMap<>();
+	private final PriorityQueue<Packet> inFlight = new PriorityQueue<>((a, b) -> a.due != b.due ? Long.compare(a.due, b.due) : Long.compare(a.order, b.order));
+	private long arrivals;               // datagrams scheduled so far, the order of the next one
+	private Direction up;                // client to server
+	private Direction down;              // server to client
+
+	LossyProxy(int listenPort, InetSocketAddress server) {
+		this.listenPort = listenPort;
+		this.server = server;
+	}
+
+	/* the main method */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: java LossyProxy <listen port> <server host> <server port> [option=value ...]");
+			System.err.println("options: drop=P duplicate=P corrupt=P reorder=P hold=MS delay=MS jitter=MS dist=uniform|normal rate=MBIT burst=KB queue=N direction=both|up|down seed=N stats=S");
+			System.exit(1);
+		}
+		LossyProxy proxy = new LossyProxy(Integer.parseInt(args[0]), new InetSocketAddress(args[1], Integer.parseInt(args[2])));
+		for (int i = 3; i < args.length; i++) {
+			proxy.applyOption(args[i]);
+		}
+		proxy.run();
+	}
+
+	/* apply an optional setting given as option=value on the command line */
+	private void applyOption(String option) {
+		int eq = option.indexOf('=');
+		String key = eq < 0 ? option : option.substring(0, eq);
+		String value = eq < 0 ? "" : option.substring(eq + 1);
+
+		switch (key) {
+		case "drop":
+			drop = Double.parseDouble(value);
+			break;
+		case "duplicate":
+			duplicate = Double.parseDouble(value);
+			break;
+		case "corrupt":
+			corrupt = Double.parseDouble(value);
+			break;
+		case "reorder":
+			reorder = Double.parseDouble(value);
+			break;
+		case "hold":
+			holdMillis = Double.parseDouble(value);
+			break;
+		case "delay":
+			delayMillis = Double.parseDouble(value);
+			break;
+		case "jitter":
+			jitterMillis = Double.parseDouble(value);
+			break;
+		case "dist":
+			if (!value.equalsIgnoreCase("uniform") && !value.equalsIgnoreCase("normal")) {
+				System.err.println("Unknown delay distribution: " + value);
+				System.exit(1);
+			}
+			normalJitter = value.equalsIgnoreCase("normal");
+			break;
+		case "rate":
+			rate = Double.parseDouble(value) * 1e6 / 8;
+			break;
+		case "burst":
+			burst = Double.parseDouble(value) * 1024;
+			break;
+		case "queue":
+			queueLimit = Integer.parseInt(value);
+			break;
+		case "direction":
+			if (!value.equalsIgnoreCase("both") && !value.equalsIgnoreCase("up") && !value.equalsIgnoreCase("down")) {
+				System.err.println("Unknown direction: " + value);
+				System.exit(1);
+			}
+			direction = value.toLowerCase();
+			break;
+		case "seed":
+			seed = Long.parseLong(value);
+			break;
+		case "stats":
+			statsMillis = (long) (Double.parseDouble(value) * 1000);
+			break;
+		default:
+			System.err.println("Unknown option: " + option);
+			System.exit(1);
+		}
+	}
+
+	/* relays datagrams until the process is stopped */
+	void run() throws IOException {
+		burst = Math.max(burst, MAX_DATAGRAM);   // the largest datagram must fit the bucket
+		up = new Direction("client -> server", !direction.equals("down"), seed);
+		down = new Direction("server -> client", !direction.equals("up"), seed ^ 0x5DEECE66DL);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::printStats, "proxy-stats"));
+
+		Selector selector = Selector.open();
+		DatagramChannel front = DatagramChannel.open();
+		front.bind(new InetSocketAddress(listenPort));
+		front.configureBlocking(false);
+		front.register(selector, SelectionKey.OP_READ);
+		System.out.println("PROXY: Relaying port " + listenPort + " to " + server + ", seed " + seed);
+
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+		long nextStats = System.currentTimeMillis() + statsMillis;
+		long nextSweep = System.currentTimeMillis() + IDLE_TIMEOUT;
+		while (true) {
+			long now = System.nanoTime();
+			long wake = Math.min(nextRelease(now), inFlight.isEmpty() ? Long.MAX_VALUE : inFlight.peek().due);
+			long wait = wake == Long.MAX_VALUE ? 1000 : (wake - now + 999_999) / 1_000_000;
+			if (wait <= 0) {
+				selector.selectNow();
+			} else {
+				selector.select(wait);
+			}
+
+			now = System.nanoTime();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				DatagramChannel channel = (DatagramChannel) key.channel();
+				while (true) {
+					buffer.clear();
+					SocketAddress from = channel.receive(buffer);
+					if (from == null) {
+						break;
+					}
+					byte[] data = new byte[buffer.position()];
+					buffer.flip().get(data);
+					if (channel == front) {
+						up.arrive(data, session(from, selector), now);
+					} else {
+						Session session = (Session) key.attachment();
+						session.lastActivity = System.currentTimeMillis();
+						down.arrive(data, session, now);
+					}
+				}
+			}
+
+			// send on whatever is due
+			now = System.nanoTime();
+			while (!inFlight.isEmpty() && inFlight.peek().due <= now) {
+				Packet packet = inFlight.poll();
+				try {
+					if (packet.direction == up) {
+						packet.session.upstream.write(ByteBuffer.wrap(packet.data));
+					} else {
+						front.send(ByteBuffer.wrap(packet.data), packet.session.client);
+					}
+					packet.direction.forwarded++;
+					packet.direction.forwardedBytes += packet.data.length;
+				} catch (IOException e) {
+					// nobody listens at the other end (yet), as on a real path the datagram is lost
+				}
+			}
+
+			long millis = System.currentTimeMillis();
+			if (statsMillis > 0 && millis >= nextStats) {
+				printStats();
+				nextStats = millis + statsMillis;
+			}
+			if (millis >= nextSweep) {
+				sweep(millis);
+				nextSweep = millis + IDLE_TIMEOUT;
+			}
+		}
+	}
+
+	/* when the bottleneck of either direction lets the next datagram go, Long.MAX_VALUE if none waits */
+	private long nextRelease(long now) {
+		long next = Long.MAX_VALUE;
+		for (Direction d : new Direction[] {up, down}) {
+			long release = d.bottleneck.isEmpty() ? -1 : d.release(now);
+			if (release >= 0) {
+				next = Math.min(next, release);
+			}
+		}
+		return next;
+	}
+
+	/* the session of a client, with a new socket to the server for a new one */
+	private Session session(SocketAddress client, Selector selector) throws IOException {
+		Session session = sessions.get(client);
+		if (session == null) {
+			DatagramChannel upstream = DatagramChannel.open();
+			upstream.connect(server);
+			upstream.configureBlocking(false);
+			session = new Session(client, upstream);
+			upstream.register(selector, SelectionKey.OP_READ, session);
+			sessions.put(client, session);
+		}
+		session.lastActivity = System.currentTimeMillis();
+		return session;
+	}
+
+	/* closes the sockets of clients that went quiet */
+	private void sweep(long now) throws IOException {
+		Iterator<Session> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			Session session = it.next();
+			if (now - session.lastActivity >= IDLE_TIMEOUT) {
+				session.upstream.close();
+				it.remove();
+			}
+		}
+	}
+
+	private void printStats() {
+		System.out.println(up.stats());
+		System.out.println(down.stats());
+	}
+}
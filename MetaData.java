@@ -1,30 +1,130 @@
-/******** DO NOT EDIT THIS FILE ********/
-import java.io.Serializable;
-
-/* metadata to send to prepare for a file transfer */
-public class MetaData implements Serializable {
-
-	private static final long serialVersionUID = 1L;
-	private String name;     // name of the file to create on server
-	private long size;       // size of the file to send
-	private int maxSegSize;  // max payload size
-
-	public int getMaxSegSize() {
-		return maxSegSize;
-	}
-	public void setMaxSegSize(int maxSegSize) {
-		this.maxSegSize = maxSegSize;
-	}
-	public String getName() {
-		return name;
-	}
-	public void setName(String name) {
-		this.name = name;
-	}
-	public long getSize() {
-		return size;
-	}
-	public void setSize(long size) {
-		this.size = size;
-	}  
-}
+import java.io.Serializable;
+
+/* metadata to send to prepare for a file transfer */
+public class MetaData implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private String name;     // name of the file to create on server
+	private long size;       // size of the file to send
+	private int maxSegSize;  // max payload size
+	private String mode;     // transfer mode (nm, wt, gbn or sr), tells the server how to treat out-of-order segments
+	private int window;      // sending window size in segments (gbn and sr)
+	private int transferId;  // id the client picked for this transfer, carried by all its segments
+	private int streams = 1; // number of parallel streams the file is striped over
+	private int stream;      // stream whose socket sent this metadata, a stream above 0 joins an announced transfer
+	private int maxDatagram; // largest datagram the client sends, 0 from old clients
+	private Checksum checksum; // algorithm of the segment checksums, none from old clients that only know the sum
+	private int contentHash; // CRC32C of the whole file that identifies its journal on the server and checks a delta, 0 without resume and delta
+	private long resumeOffset; // in a server reply: the file offset the stream resumes at
+	private boolean delta;   // the client asks for a delta against the server's old file, or in a reply: the server has one
+	private int fecGroup;    // segments per parity group (gbn and sr), 0 without parity, or in a reply: above 0 if the server rebuilds from parity
+	private int fecParity;   // parity segments per group
+	private boolean batch;   // the name is a directory and a manifest of its files follows (see Batch), or in a reply: the server takes it
+
+	public int getMaxSegSize() {
+		return maxSegSize;
+	}
+	public void setMaxSegSize(int maxSegSize) {
+		this.maxSegSize = maxSegSize;
+	}
+	public String getName() {
+		return name;
+	}
+	public void setName(String name) {
+		this.name = name;
+	}
+	public long getSize() {
+		return size;
+	}
+	public void setSize(long size) {
+		this.size = size;
+	}  
+	public String getMode() {
+		return mode;
+	}
+	public void setMode(String mode) {
+		this.mode = mode;
+	}
+	public int getWindow() {
+		return window;
+	}
+	public void setWindow(int window) {
+		this.window = window;
+	}
+	public int getTransferId() {
+		return transferId;
+	}
+	public void setTransferId(int transferId) {
+		this.transferId = transferId;
+	}
+	public int getStreams() {
+		return streams;
+	}
+	public void setStreams(int streams) {
+		this.streams = streams;
+	}
+	public int getStream() {
+		return stream;
+	}
+	public void setStream(int stream) {
+		this.stream = stream;
+	}
+	public int getMaxDatagram() {
+		return maxDatagram;
+	}
+	public void setMaxDatagram(int maxDatagram) {
+		this.maxDatagram = maxDatagram;
+	}
+	public Checksum getChecksum() {
+		return checksum == null ? Checksum.SUM : checksum;
+	}
+	public void setChecksum(Checksum checksum) {
+		this.checksum = checksum;
+	}
+	public int getContentHash() {
+		return contentHash;
+	}
+	public void setContentHash(int contentHash) {
+		this.contentHash = contentHash;
+	}
+	public long getResumeOffset() {
+		return resumeOffset;
+	}
+	public void setResumeOffset(long resumeOffset) {
+		this.resumeOffset = resumeOffset;
+	}
+	public boolean isDelta() {
+		return delta;
+	}
+	public void setDelta(boolean delta) {
+		this.delta = delta;
+	}
+	public int getFecGroup() {
+		return fecGroup;
+	}
+	public void setFecGroup(int fecGroup) {
+		this.fecGroup = fecGroup;
+	}
+	public int getFecParity() {
+		return fecParity;
+	}
+	public void setFecParity(int fecParity) {
+		this.fecParity = fecParity;
+	}
+	public boolean isBatch() {
+		return batch;
+	}
+	public void setBatch(boolean batch) {
+		this.batch = batch;
+	}
+
+	/* the number of segments the file is sent in */
+	public int segmentCount() {
+		return (int) ((size + maxSegSize - 1) / maxSegSize);
+	}
+	/* the first segment of the given stream; stream i sends [firstSegmentOf(i), firstSegmentOf(i + 1)) */
+	public int firstSegmentOf(int stream) {
+		int perStream = (segmentCount() + streams - 1) / streams;
+		return (int) Math.min((long) stream * perStream, segmentCount());
+	}
+}
@@ -0,0 +1,412 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Process-wide counters of every transfer, sent and received, for monitoring
+ * live transfers.
+ *
+ * The counters are totals over every transfer of the process, closed ones
+ * included. A server also keeps the receiver counters of each transfer it
+ * has open, from the metadata to close(), and lists them by transfer id and
+ * file, so one slow or lossy transfer stands out among many. The sender side
+ * is only a total: a client sends one file, and the sessions of a load test
+ * send copies of it, so its totals are that file's.
+ *
+ * The counters are LongAdders: the sender loops of all streams and sessions
+ * and the server threads add to them without contending for one cache line,
+ * and reading sums the stripes. ACK round trip times go into a Histogram in
+ * microseconds. Throughput counts the payload bytes of every data segment
+ * sent or received, resends and duplicates included; goodput counts only the
+ * file bytes the server acknowledged (sender) or wrote for the first time
+ * (receiver), so the gap between the two is what losses cost.
+ *
+ * Counting is always on and costs an uncontended add. publish() makes the
+ * numbers visible: it registers them as an MBean under OBJECT_NAME and writes
+ * a JSON snapshot to a file every SNAPSHOT_INTERVAL, with the throughput and
+ * goodput of that interval, and once more at exit. The file is replaced
+ * atomically, so a scraper never reads half of one.
+ */
+public final class Metrics implements MetricsMBean {
+
+	static final String OBJECT_NAME = "FileTransfer:type=Metrics";
+	static final long SNAPSHOT_INTERVAL = 1000;   // milliseconds between two JSON snapshots
+
+	// sender
+	static final LongAdder segmentsSent = new LongAdder();     // data segments sent, resends included
+	static final LongAdder segmentsResent = new LongAdder();   // data segments sent again after a timeout or duplicate ACKs
+	static final LongAdder bytesSent = new LongAdder();        // payload bytes of the data segments sent, resends included
+	static final LongAdder bytesAcked = new LongAdder();       // file bytes the server acknowledged
+	static final LongAdder timeouts = new LongAdder();         // retransmission timers that expired
+	static final LongAdder acksReceived = new LongAdder();     // ACKs received
+	static final LongAdder paritySent = new LongAdder();       // parity segments sent, also counted as segments sent
+	static final Histogram rtt = new Histogram();              // ACK round trip times in microseconds, by Karn's rule
+
+	// receiver
+	static final LongAdder activeTransfers = new LongAdder();    // transfers the server has open
+	static final LongAdder segmentsReceived = new LongAdder();   // data segments received, corrupted ones included
+	static final LongAdder bytesReceived = new LongAdder();      // payload bytes of the data segments received
+	static final LongAdder bytesWritten = new LongAdder();       // file bytes written for the first time
+	static final LongAdder checksumFailures = new LongAdder();   // segments dropped for a wrong checksum, a broken deflate stream or a payload longer than a segment
+	static final LongAdder duplicates = new LongAdder();         // segments that were received already
+	static final LongAdder rebuilt = new LongAdder();            // segments rebuilt from parity instead of resent
+	static final LongAdder acksSent = new LongAdder();           // ACKs sent
+
+	private static final Set<Receiving> open = ConcurrentHashMap.newKeySet();   // the counters of the transfers a server has open
+
+	private static boolean published;   // whether publish() ran already
+
+	/*
+	 * the receiver counters of one open transfer. Every count goes to the process-wide
+	 * counter as well.
+	 */
+	static final class Receiving {
+		final int transferId;
+		final String fileName;
+		final long totalBytes;
+		final LongAdder segmentsReceived = new LongAdder();
+		final LongAdder bytesReceived = new LongAdder();
+		final LongAdder bytesWritten = new LongAdder();
+		final LongAdder checksumFailures = new LongAdder();
+		final LongAdder duplicates = new LongAdder();
+		final LongAdder rebuilt = new LongAdder();
+		final LongAdder acksSent = new LongAdder();
+
+		private Receiving(int transferId, String fileName, long totalBytes) {
+			this.transferId = transferId;
+			this.fileName = fileName;
+			this.totalBytes = totalBytes;
+		}
+
+		void received(int bytes) {
+			segmentsReceived.increment();
+			bytesReceived.add(bytes);
+			Metrics.segmentsReceived.increment();
+			Metrics.bytesReceived.add(bytes);
+		}
+
+		void written(int bytes) {
+			bytesWritten.add(bytes);
+			Metrics.bytesWritten.add(bytes);
+		}
+
+		void checksumFailure() {
+			checksumFailures.increment();
+			Metrics.checksumFailures.increment();
+		}
+
+		void duplicate() {
+			duplicates.increment();
+			Metrics.duplicates.increment();
+		}
+
+		void rebuilt() {
+			rebuilt.increment();
+			Metrics.rebuilt.increment();
+		}
+
+		void ackSent() {
+			acksSent.increment();
+			Metrics.acksSent.increment();
+		}
+	}
+
+	private Metrics() {
+	}
+
+	/*
+	 * registers the MBean and starts writing a JSON snapshot to the given file every
+	 * SNAPSHOT_INTERVAL and at exit; later calls do nothing
+	 */
+	public static synchronized void publish(String fileName) {
+		if (published) {
+			return;
+		}
+		published = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			Log.warn("Cannot register the metrics MBean: " + e.getMessage());
+		}
+
+		Path file = Paths.get(fileName);
+		Thread writer = new Thread(() -> {
+			long[] last = new long[4];
+			long lastTime = System.nanoTime();
+			while (true) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(SNAPSHOT_INTERVAL));
+				long now = System.nanoTime();
+				write(file, json(last, now - lastTime));
+				lastTime = now;
+			}
+		}, "metrics-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> write(file, json(null, 0)), "metrics-flush"));
+	}
+
+	/* starts counting a transfer the server opened */
+	static Receiving open(int transferId, String fileName, long totalBytes) {
+		Receiving transfer = new Receiving(transferId, fileName, totalBytes);
+		open.add(transfer);
+		activeTransfers.increment();
+		return transfer;
+	}
+
+	/* stops listing a transfer the server closed, its counts stay in the totals */
+	static void close(Receiving transfer) {
+		if (open.remove(transfer)) {
+			activeTransfers.decrement();
+		}
+	}
+
+	/* replaces the file with the snapshot */
+	private static void write(Path file, String snapshot) {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			Files.write(temp, snapshot.getBytes(StandardCharsets.UTF_8));
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Log.warn("Cannot write the metrics to " + file + ": " + e.getMessage());
+		}
+	}
+
+	/*
+	 * every metric as one JSON object. Given the byte counters of the previous snapshot
+	 * (sent, acked, received, written) and the nanoseconds since, it adds the rates of that
+	 * interval in MB/s and updates last to the current counters.
+	 */
+	static String json(long[] last, long elapsed) {
+		long[] now = {bytesSent.sum(), bytesAcked.sum(), bytesReceived.sum(), bytesWritten.sum()};
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("{\"time\":").append(System.currentTimeMillis());
+		sb.append(",\"sender\":{");
+		field(sb, "segmentsSent", segmentsSent.sum(), true);
+		field(sb, "segmentsResent", segmentsResent.sum(), false);
+		field(sb, "retransmitRatio", retransmitRatio(), false);
+		field(sb, "bytesSent", now[0], false);
+		field(sb, "bytesAcked", now[1], false);
+		if (last != null && elapsed > 0) {
+			field(sb, "throughputMBps", rate(now[0] - last[0], elapsed), false);
+			field(sb, "goodputMBps", rate(now[1] - last[1], elapsed), false);
+		}
+		field(sb, "timeouts", timeouts.sum(), false);
+		field(sb, "acksReceived", acksReceived.sum(), false);
+		field(sb, "paritySent", paritySent.sum(), false);
+		sb.append(",\"rttMicros\":{");
+		field(sb, "count", rtt.count(), true);
+		field(sb, "mean", rtt.mean(), false);
+		field(sb, "p50", rtt.percentile(0.5), false);
+		field(sb, "p90", rtt.percentile(0.9), false);
+		field(sb, "p99", rtt.percentile(0.99), false);
+		field(sb, "p999", rtt.percentile(0.999), false);
+		field(sb, "max", rtt.max(), false);
+		sb.append("}},\"receiver\":{");
+		field(sb, "activeTransfers", activeTransfers.sum(), true);
+		field(sb, "segmentsReceived", segmentsReceived.sum(), false);
+		field(sb, "bytesReceived", now[2], false);
+		field(sb, "bytesWritten", now[3], false);
+		if (last != null && elapsed > 0) {
+			field(sb, "throughputMBps", rate(now[2] - last[2], elapsed), false);
+			field(sb, "goodputMBps", rate(now[3] - last[3], elapsed), false);
+		}
+		field(sb, "checksumFailures", checksumFailures.sum(), false);
+		field(sb, "duplicates", duplicates.sum(), false);
+		field(sb, "rebuilt", rebuilt.sum(), false);
+		field(sb, "acksSent", acksSent.sum(), false);
+		sb.append(",\"transfers\":");
+		transfers(sb);
+		sb.append("}}");
+		if (last != null) {
+			System.arraycopy(now, 0, last, 0, now.length);
+		}
+		return sb.toString();
+	}
+
+	/* the receiver counters of every open transfer as a JSON array */
+	static void transfers(StringBuilder sb) {
+		sb.append('[');
+		boolean first = true;
+		for (Receiving transfer : open) {
+			sb.append(first ? "{" : ",{");
+			first = false;
+			field(sb, "transferId", transfer.transferId, true);
+			sb.append(",\"file\":");
+			string(sb, transfer.fileName);
+			field(sb, "totalBytes", transfer.totalBytes, false);
+			field(sb, "segmentsReceived", transfer.segmentsReceived.sum(), false);
+			field(sb, "bytesReceived", transfer.bytesReceived.sum(), false);
+			field(sb, "bytesWritten", transfer.bytesWritten.sum(), false);
+			field(sb, "checksumFailures", transfer.checksumFailures.sum(), false);
+			field(sb, "duplicates", transfer.duplicates.sum(), false);
+			field(sb, "rebuilt", transfer.rebuilt.sum(), false);
+			field(sb, "acksSent", transfer.acksSent.sum(), false);
+			sb.append('}');
+		}
+		sb.append(']');
+	}
+
+	/* a JSON string, escaping what a file name may hold */
+	private static void string(StringBuilder sb, String value) {
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	private static void field(StringBuilder sb, String name, long value, boolean first) {
+		sb.append(first ? "\"" : ",\"").append(name).append("\":").append(value);
+	}
+
+	private static void field(StringBuilder sb, String name, double value, boolean first) {
+		sb.append(first ? "\"" : ",\"").append(name).append("\":").append(String.format(Locale.ROOT, "%.3f", value));
+	}
+
+	/* bytes over nanoseconds in MB/s */
+	private static double rate(long bytes, long nanos) {
+		return bytes / (nanos / 1e9) / (1 << 20);
+	}
+
+	/* resent over sent data segments, 0 before any is sent */
+	static double retransmitRatio() {
+		long sent = segmentsSent.sum();
+		return sent == 0 ? 0 : (double) segmentsResent.sum() / sent;
+	}
+
+	@Override
+	public long getSegmentsSent() {
+		return segmentsSent.sum();
+	}
+
+	@Override
+	public long getSegmentsResent() {
+		return segmentsResent.sum();
+	}
+
+	@Override
+	public double getRetransmitRatio() {
+		return retransmitRatio();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getBytesAcked() {
+		return bytesAcked.sum();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	@Override
+	public long getAcksReceived() {
+		return acksReceived.sum();
+	}
+
+	@Override
+	public long getParitySent() {
+		return paritySent.sum();
+	}
+
+	@Override
+	public long getRttCount() {
+		return rtt.count();
+	}
+
+	@Override
+	public double getRttMeanMicros() {
+		return rtt.mean();
+	}
+
+	@Override
+	public long getRttP50Micros() {
+		return rtt.percentile(0.5);
+	}
+
+	@Override
+	public long getRttP99Micros() {
+		return rtt.percentile(0.99);
+	}
+
+	@Override
+	public long getRttMaxMicros() {
+		return rtt.max();
+	}
+
+	@Override
+	public long getActiveTransfers() {
+		return activeTransfers.sum();
+	}
+
+	@Override
+	public long getSegmentsReceived() {
+		return segmentsReceived.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getChecksumFailures() {
+		return checksumFailures.sum();
+	}
+
+	@Override
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	@Override
+	public long getRebuilt() {
+		return rebuilt.sum();
+	}
+
+	@Override
+	public long getAcksSent() {
+		return acksSent.sum();
+	}
+
+	@Override
+	public String getTransfers() {
+		StringBuilder sb = new StringBuilder(256);
+		transfers(sb);
+		return sb.toString();
+	}
+
+	@Override
+	public String getSnapshot() {
+		return json(null, 0);
+	}
+}
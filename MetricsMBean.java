@@ -0,0 +1,34 @@
+/* the JMX view of the process-wide Metrics, registered by Metrics.publish() */
+public interface MetricsMBean {
+
+	// sender
+	long getSegmentsSent();
+	long getSegmentsResent();
+	double getRetransmitRatio();
+	long getBytesSent();
+	long getBytesAcked();
+	long getTimeouts();
+	long getAcksReceived();
+	long getParitySent();
+	long getRttCount();
+	double getRttMeanMicros();
+	long getRttP50Micros();
+	long getRttP99Micros();
+	long getRttMaxMicros();
+
+	// receiver
+	long getActiveTransfers();
+	long getSegmentsReceived();
+	long getBytesReceived();
+	long getBytesWritten();
+	long getChecksumFailures();
+	long getDuplicates();
+	long getRebuilt();
+	long getAcksSent();
+
+	/* the receiver counters of every open transfer as a JSON array */
+	String getTransfers();
+
+	/* every metric as one JSON object */
+	String getSnapshot();
+}
@@ -0,0 +1,293 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/*
+ * Long-running server that receives any number of concurrent transfers on one
+ * non-blocking DatagramChannel.
+ *
+ * A single selector loop drains every datagram waiting on the channel and
+ * demultiplexes it by (client address, port, transfer id) to the Transfer of
+ * that upload, each with its own output file, byte counters and expected
+ * sequence number. A finished transfer lingers until it has been idle for
+ * IDLE_TIMEOUT, so a retransmitted last segment whose ACK was lost is still
+ * acknowledged; an abandoned transfer is closed after the same time.
+ *
+ * Closing a transfer waits for its disk writer, checkpoint and copies and
+ * may force the file to disk, so it runs on a thread of its own: the loop
+ * only does the bookkeeping of the maps and goes on reading the channel, and
+ * a finished transfer answers retransmissions meanwhile from its counters.
+ *
+ * A transfer striped over several streams is registered under one more key per
+ * stream: the first stream's metadata also files it under the client address
+ * with port 0, and the metadata of every further stream joins it from there.
+ *
+ * Transfers that hold back a delayed ACK are remembered, and the selector
+ * wakes up in time to send those ACKs when they fall due.
+ *
+ * Delta messages go to the transfer of their key like segments, and a chunk
+ * of copies may complete the file on its own.
+ *
+ * Output files, and the directories of batches, are only written below the
+ * working directory of the server.
+ */
+public class NioServer {
+
+	static final long IDLE_TIMEOUT = 30000;    // milliseconds without traffic before a transfer is forgotten
+	static final long SWEEP_INTERVAL = 1000;   // milliseconds between checks for idle transfers
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Map<TransferKey, Transfer> transfers = new HashMap<>();
+	private final Set<Transfer> delayed = new HashSet<>();   // transfers holding back an ACK
+	private final int ackEvery;                              // in-order segments covered by one ACK
+	private final long syncEvery;                            // sync policy of the received files (see DiskWriter)
+	private final ExecutorService closing = Threads.perTaskExecutor();   // closes finished, failed and abandoned transfers
+
+	public NioServer(int port, int ackEvery, long syncEvery) throws IOException {
+		this.ackEvery = ackEvery;
+		this.syncEvery = syncEvery;
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	/* serves transfers until the process is stopped */
+	public void run() throws IOException {
+		ByteBuffer datagram = ByteBuffer.allocate(WireFormat.MAX_DATAGRAM);
+		long lastSweep = System.currentTimeMillis();
+		Log.info("SERVER: binding ... Ready to receive transfers on " + channel.getLocalAddress());
+
+		while (true) {
+			selector.select(selectTimeout());
+			selector.selectedKeys().clear();
+
+			// drain everything that is waiting, the channel never blocks
+			SocketAddress from;
+			while ((from = channel.receive(datagram.clear())) != null) {
+				datagram.flip();
+				try {
+					handle((InetSocketAddress) from, datagram);
+				} catch (RuntimeException e) {
+					// one bad datagram must not stop the loop that serves every other transfer
+					Log.warn("SERVER: Dropping datagram from " + from + ": " + e);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			sendDelayedAcks(now);
+			if (now - lastSweep >= SWEEP_INTERVAL) {
+				sweep(now);
+				lastSweep = now;
+			}
+		}
+	}
+
+	/* routes one datagram to the transfer it belongs to */
+	private void handle(InetSocketAddress from, ByteBuffer datagram) {
+		if (WireFormat.isProbe(datagram)) {
+			reply(WireFormat.replyToProbe(datagram), from);
+			return;
+		}
+		if (WireFormat.isDelta(datagram)) {
+			handleDelta(from, datagram);
+			return;
+		}
+		byte wireVersion = WireFormat.versionOf(datagram);
+		Object message;
+		try {
+			message = WireFormat.decode(datagram);
+		} catch (IOException e) {
+			if (Log.isTrace()) {
+				Log.trace("SERVER: Dropping undecodable datagram from " + from + ": " + e.getMessage());
+			}
+			return;
+		}
+
+		if (message instanceof MetaData) {
+			MetaData metaData = (MetaData) message;
+			TransferKey key = new TransferKey(from, metaData.getTransferId());
+			TransferKey striped = new TransferKey(new InetSocketAddress(from.getAddress(), 0), metaData.getTransferId());
+			if (transfers.containsKey(key)) {
+				if (Log.isTrace()) {
+					Log.trace("SERVER: Repeating the reply to metadata from " + from);
+				}
+				reply(transfers.get(key).reply(metaData), from);
+				return;
+			}
+			if (metaData.getStream() > 0) {
+				Transfer transfer = transfers.get(striped);
+				if (transfer == null) {
+					if (Log.isTrace()) {
+						Log.trace("SERVER: Dropping stream " + metaData.getStream() + " of unknown transfer from " + from);
+					}
+					return;
+				}
+				transfers.put(key, transfer);
+				reply(transfer.reply(metaData), from);
+				return;
+			}
+			try {
+				Transfer.checkOutputName(metaData.getName());
+				Transfer transfer = new Transfer(metaData, wireVersion, ackEvery, syncEvery);
+				transfers.put(key, transfer);
+				if (metaData.getStreams() > 1) {
+					transfers.put(striped, transfer);
+				}
+				reply(transfer.reply(metaData), from);
+			} catch (IOException e) {
+				Log.warn("SERVER: Cannot start transfer of " + metaData.getName() + ": " + e.getMessage());
+			}
+			return;
+		}
+
+		if (!(message instanceof Segment)) {
+			return;
+		}
+		Segment dataSeg = (Segment) message;
+		TransferKey key = new TransferKey(from, dataSeg.getTransferId());
+		Transfer transfer = transfers.get(key);
+		if (transfer == null) {
+			if (Log.isTrace()) {
+				Log.trace("SERVER: Dropping segment of unknown transfer from " + from);
+			}
+			return;
+		}
+
+		try {
+			boolean wasComplete = transfer.isComplete();
+			Segment ackSeg = transfer.receive(dataSeg, from);
+			if (ackSeg != null) {
+				channel.send(transfer.encode(ackSeg), from);
+			}
+			if (transfer.nextAckDeadline() >= 0) {
+				delayed.add(transfer);
+			}
+			if (!wasComplete && transfer.isComplete()) {
+				// the other streams of a striped transfer may still wait for their last ACK
+				sendDelayedAcks(transfer, Long.MAX_VALUE);
+				Log.info("SERVER: File copying complete: " + transfer.getOutputFileName() + " from " + from);
+				closeLater(transfer);
+			}
+		} catch (IOException e) {
+			Log.warn("SERVER: Transfer of " + transfer.getOutputFileName() + " failed: " + e.getMessage());
+			transfers.remove(key);
+			delayed.remove(transfer);
+			closeLater(transfer);
+		}
+	}
+
+	/* answers a delta message of a transfer, which closes the transfer if its copies completed the file */
+	private void handleDelta(InetSocketAddress from, ByteBuffer datagram) {
+		TransferKey key = new TransferKey(from, WireFormat.deltaTransferId(datagram));
+		Transfer transfer = transfers.get(key);
+		if (transfer == null) {
+			if (Log.isTrace()) {
+				Log.trace("SERVER: Dropping delta message of unknown transfer from " + from);
+			}
+			return;
+		}
+		try {
+			boolean wasComplete = transfer.isComplete();
+			reply(transfer.delta(datagram), from);
+			if (!wasComplete && transfer.isComplete()) {
+				Log.info("SERVER: File copying complete: " + transfer.getOutputFileName() + " from " + from);
+				closeLater(transfer);
+			}
+		} catch (IOException e) {
+			Log.warn("SERVER: Transfer of " + transfer.getOutputFileName() + " failed: " + e.getMessage());
+			transfers.remove(key);
+			delayed.remove(transfer);
+			closeLater(transfer);
+		}
+	}
+
+	/* milliseconds the selector may sleep: until the next sweep or the earliest delayed ACK */
+	private long selectTimeout() {
+		long timeout = SWEEP_INTERVAL;
+		long now = System.currentTimeMillis();
+		for (Transfer transfer : delayed) {
+			long deadline = transfer.nextAckDeadline();
+			if (deadline >= 0) {
+				timeout = Math.min(timeout, Math.max(1, deadline - now));
+			}
+		}
+		return timeout;
+	}
+
+	/* sends the delayed ACKs that are due by now */
+	private void sendDelayedAcks(long now) {
+		Iterator<Transfer> it = delayed.iterator();
+		while (it.hasNext()) {
+			Transfer transfer = it.next();
+			sendDelayedAcks(transfer, now);
+			if (transfer.nextAckDeadline() < 0) {
+				it.remove();
+			}
+		}
+	}
+
+	/* sends the delayed ACKs of one transfer that are due by now */
+	private void sendDelayedAcks(Transfer transfer, long now) {
+		Transfer.Ack ack;
+		while ((ack = transfer.pollDelayedAck(now)) != null) {
+			try {
+				channel.send(transfer.encode(ack.segment), ack.to);
+			} catch (IOException e) {
+				Log.warn("SERVER: Cannot send ACK to " + ack.to + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/* sends a reply to the client, if there is one */
+	private void reply(ByteBuffer reply, InetSocketAddress to) {
+		if (reply == null) {
+			return;
+		}
+		try {
+			channel.send(reply, to);
+		} catch (IOException e) {
+			Log.warn("SERVER: Cannot reply to " + to + ": " + e.getMessage());
+		}
+	}
+
+	/* forgets transfers that have been idle too long, closing unfinished ones */
+	private void sweep(long now) {
+		Iterator<Map.Entry<TransferKey, Transfer>> it = transfers.entrySet().iterator();
+		while (it.hasNext()) {
+			Transfer transfer = it.next().getValue();
+			if (now - transfer.getLastActivity() < IDLE_TIMEOUT) {
+				continue;
+			}
+			if (!transfer.isComplete()) {
+				Log.info("SERVER: Abandoning idle transfer of " + transfer.getOutputFileName() + " after " + transfer.getCurrentTotal() + " bytes");
+				closeLater(transfer);
+			}
+			delayed.remove(transfer);
+			it.remove();
+		}
+	}
+
+	/* closes a transfer on a thread of its own, so the loop does not wait for the disk */
+	private void closeLater(Transfer transfer) {
+		closing.execute(() -> {
+			try {
+				transfer.close();
+			} catch (IOException e) {
+				Log.warn("SERVER: Cannot close " + transfer.getOutputFileName() + ": " + e.getMessage());
+			}
+		});
+	}
+}
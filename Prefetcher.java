@@ -0,0 +1,190 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * The read-ahead stage of a sender, so a slow read of the input file does not
+ * leave a gap between two segments on the wire.
+ *
+ * A reader thread reads the segments of a range of the file in order into a
+ * pool of slots of one segment each in a single direct buffer, segment i in
+ * slot i % slots, and the sender takes them from there instead of reading
+ * them itself. Taking a segment frees the slots of the segments before it, so
+ * the segment taken stays valid until the next one is taken. A segment taken
+ * again after that, a resend or a GoBackN rewind, is not in the pool any more
+ * and the sender reads it itself. The pool has one producer and one consumer
+ * and needs no lock: the reader publishes a segment by moving head, the
+ * sender frees slots by moving tail.
+ *
+ * The reader stays depth segments ahead of the sender: a window, which the
+ * sender may send at once, plus the segments it sends while DEPTH_READS reads
+ * take, from the average read time and the average time between two takes.
+ * So a file on slow or network storage is read further ahead, up to the
+ * whole pool. A full pool puts the reader to sleep until the sender has taken
+ * half of it, and a sender that caught up with the reader sleeps until half
+ * of it is read again, so either wakes the other once per batch of segments
+ * rather than once per segment. Only a reader that falls behind makes the
+ * sender wait; a read error stops the reader and the sender reads for itself,
+ * which reports it.
+ */
+final class Prefetcher implements Closeable {
+
+	static final int POOL_BYTES = 8 << 20;   // payload bytes the pool holds, the furthest the reader gets ahead
+	static final int MIN_DEPTH = 64;         // fewest segments kept read ahead, half of which the reader reads per wake-up
+	static final int DEPTH_READS = 2;        // reads of slack the depth adds beyond the window
+	static final long EMPTY_WAIT = 1_000_000;   // nanoseconds the sender waits for the reader at most before looking again
+
+	private static final ExecutorService readers = Threads.perTaskExecutor();
+
+	private final SegmentReader reader;   // the input file
+	private final BitSet skip;            // segments never sent, not read ahead; not changed while reading
+	private final int end;                // one past the last segment read ahead
+	private final int window;             // segments the sender may send at once
+	private final int slotSize;           // largest payload of a slot
+	private final int slots;              // slots in the pool
+	private final ByteBuffer pool;        // payloads, slot i from i * slotSize on
+	private final int[] lengths;          // payload size in each slot
+	private final Future<?> reading;      // the reader thread
+
+	private volatile long head;           // one past the last segment read into the pool
+	private volatile long tail;           // the segment taken last, the first whose slot is in use
+	private volatile boolean closing;     // whether the reader stops
+	private volatile Thread readerThread; // the reader thread, once it runs
+	private volatile boolean parked;      // whether the reader waits for the sender to take half the segments read ahead
+	private volatile long ahead;          // the depth the reader last filled the pool to
+	private volatile boolean failed;      // whether a read failed, which stops the reader
+	private volatile Thread waiting;      // the sender while it waits for the reader
+	private volatile long latency;        // average read time in nanoseconds, 0 before the first read
+	private volatile long interval;       // average nanoseconds between two takes, 0 before the second take
+	private long lastTake;                // when the sender took a segment last, sender thread only
+
+	/* a reader of the segments from first to end of the input file, but the skipped ones, for a sender of the given window */
+	Prefetcher(SegmentReader reader, BitSet skip, int first, int end, int window, int slotSize) {
+		this.reader = reader;
+		this.skip = skip;
+		this.end = end;
+		this.window = Math.max(1, window);
+		this.slotSize = slotSize;
+		this.slots = Math.max(1, Math.min(POOL_BYTES / slotSize, end - first));
+		this.pool = ByteBuffer.allocateDirect(slots * slotSize);
+		this.lengths = new int[slots];
+		this.head = first;
+		this.tail = first;
+		this.reading = readers.submit(this::run);
+	}
+
+	/*
+	 * a read-only view of the given segment, valid until the next segment is taken, or null
+	 * if it is not read ahead: taken before, or the reader failed. Waits while the reader is
+	 * behind.
+	 */
+	ByteBuffer take(int index) {
+		if (index < tail || index >= end) {
+			return null;
+		}
+		long now = System.nanoTime();
+		if (lastTake != 0) {
+			long gap = now - lastTake;
+			interval = interval == 0 ? gap : interval + (gap - interval) / 8;
+		}
+		lastTake = now;
+		tail = index;
+		if (parked && head - index <= ahead / 2) {
+			LockSupport.unpark(readerThread);
+		}
+		while (head <= index) {
+			if (failed || closing) {
+				return null;
+			}
+			waiting = Thread.currentThread();
+			if (head <= index) {
+				LockSupport.parkNanos(this, EMPTY_WAIT);
+			}
+			waiting = null;
+		}
+		int slot = index % slots;
+		return pool.slice(slot * slotSize, lengths[slot]).asReadOnlyBuffer();
+	}
+
+	/* segments to keep read ahead of the sender */
+	private long depth() {
+		long ahead = window;
+		if (interval > 0) {
+			ahead += DEPTH_READS * latency / interval;
+		}
+		return Math.min(slots, Math.max(MIN_DEPTH, ahead));
+	}
+
+	/* the reader thread: reads segments in order until the end of the range or closed */
+	private void run() {
+		readerThread = Thread.currentThread();
+		try {
+			long next = head;
+			while (!closing) {
+				next = Math.max(next, tail);   // the sender skipped ahead
+				while (next < end && skip.get((int) next)) {
+					next++;
+				}
+				if (next >= end) {
+					wake();
+					return;
+				}
+				long depth = depth();
+				if (next - tail >= depth) {
+					// full: wait until half of it is taken, so the reader wakes once per batch of reads
+					ahead = depth;
+					parked = true;
+					if (next - tail > depth / 2 && !closing) {
+						LockSupport.park(this);
+					}
+					parked = false;
+					continue;
+				}
+				int slot = (int) (next % slots);
+				ByteBuffer dst = pool.duplicate().position(slot * slotSize).limit(slot * slotSize + slotSize);
+				long start = System.nanoTime();
+				lengths[slot] = reader.read((int) next, dst);
+				long took = System.nanoTime() - start;
+				latency = latency == 0 ? took : latency + (took - latency) / 8;
+				head = ++next;
+				if (next - tail > depth / 2) {
+					wake();
+				}
+			}
+		} catch (IOException e) {
+			failed = true;
+			wake();
+		}
+	}
+
+	/* wakes the sender if it waits for the reader */
+	private void wake() {
+		Thread thread = waiting;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/* stops the reader */
+	@Override
+	public void close() throws IOException {
+		closing = true;
+		Thread thread = readerThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		try {
+			reading.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading ahead");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+}
@@ -1,501 +1,1535 @@
-/*
- * Replace the following string of 0s with your student number
- * c230184125
- */
-
-import java.io.*;
-import java.net.*;
-import java.util.Arrays;
-
-public class Protocol {
-
-	static final String NORMAL_MODE = "nm"; // normal transfer mode: (for Part 1 and 2)
-	static final String TIMEOUT_MODE = "wt"; // timeout transfer mode: (for Part 3)
-	static final String GBN_MODE = "gbn";    // GBN transfer mode: (for Part 4)
-	static final int DEFAULT_TIMEOUT = 10;     // default timeout in seconds (for Part 3)
-	static final int DEFAULT_RETRIES = 4;    // default number of consecutive retries (for Part 3)
-
-	/*
-	 * The following attributes control the execution of a transfer protocol and provide access to the
-	 * resources needed for a file transfer (such as the file to transfer, etc.)
-	 *
-	 */
-
-	private InetAddress ipAddress;      // the address of the server to transfer the file to. This should be a well-formed IP address.
-	private int portNumber;            // the  port the server is listening on
-	private DatagramSocket socket;     // The socket that the client bind to
-	private String mode;               //mode of transfer normal/with timeout/GBN
-
-	private File inputFile;           // The client-side input file to transfer
-	private String inputFileName;      // the name of the client-side input file for transfer to the server
-	private String outputFileName;    //the name of the output file to create on the server as a result of the file transfer
-	private long fileSize;            // the size of the client-side input file
-
-	private Segment dataSeg;         // the protocol data segment for sending segments with payload read from the input file to the server
-	private Segment ackSeg;           //the protocol ack segment for receiving ACKs from the server
-	private int maxPayload;                //The max payload size of the data segment
-	private long remainingBytes;       //the number of bytes remaining to be transferred during execution of a transfer. This is set to the input file size at the start
-
-	private int timeout;          //the timeout in seconds to use for the protocol with timeout (for Part 3)
-	private int maxRetries;       //the maximum number of consecutive retries (retransmissions) to allow before exiting the client (for Part 3)(This is per segment)
-
-	private int sentBytes;       //the accumulated total bytes transferred to the server as the result of a file transfer
-	private float lossProb;      //the probability of corruption of a data segment during the transfer  (for Part 3)
-	private int currRetry;       //the current number of consecutive retries (retransmissions) following a segment corruption (for Part 3)(This is per segment)
-	private int totalSegments;   //the accumulated total number of ALL data segments transferred to the server as the result of a file transfer
-	private int resentSegments;  //the accumulated total number of data segments resent to the server as a result of timeouts during a file transfer (for Part 3)
-
-	/**************************************************************************************************************************************
-	 **************************************************************************************************************************************
-	 * For this assignment, you have to implement the following methods:
-	 *		sendMetadata()
-	 *      readData()
-	 *      sendData()
-	 *      receiveAck()
-	 *      sendDataWithError()
-	 *      sendFileWithTimeout()
-	 *		sendFileWithGBN()
-	 * Do not change any method signatures and do not change any other methods or code provided.
-	 ***************************************************************************************************************************************
-	 **************************************************************************************************************************************/
-	/*
-	 * This method sends protocol metadata to the server.
-	 * Sending metadata starts a transfer by sending the following information to the server in the metadata object (defined in MetaData.java):
-	 *      size - the size of the file to send
-	 *      name - the name of the file to create on the server
-	 *      maxSegSize - The size of the payload of the data segment
-	 * deal with error in sending
-	 * output relevant information messages for the user to follow progress of the file transfer.
-	 * This method does not set any of the attributes of the protocol.
-	 */
-	public void sendMetadata() {
-
-		try {
-			MetaData metaData = new MetaData();
-			metaData.setName(this.outputFileName);
-			metaData.setSize(this.fileSize);
-			metaData.setMaxSegSize(this.maxPayload);
-
-			ByteArrayOutputStream OutputStream = new ByteArrayOutputStream();
-			ObjectOutputStream ObjectStream = new ObjectOutputStream(OutputStream);
-			ObjectStream.writeObject(metaData);
-
-			byte[] bytes = OutputStream.toByteArray();
-			DatagramPacket DataPacket = new DatagramPacket(bytes, bytes.length, ipAddress, portNumber);
-			this.socket.send(DataPacket);
-			System.out.println("SENDER --> Metadata sent successfully: ");
-			System.out.println("         File name: " + metaData.getName());
-			System.out.println("         Size: " + metaData.getSize() + " bytes");
-			System.out.println("         Max Segment Size: " + metaData.getMaxSegSize() + " bytes");
-		} catch (IOException e) {
-			System.out.println("ERROR --> Cannot send metadata  ");
-		}
-	}
-
-	/*
-	 * This method:
-	 *  	read the next chunk of data from the file into the data segment (dataSeg) payload.
-	 *  	set the correct type of the data segment
-	 *  	set the correct sequence number of the data segment.
-	 *  	set the data segment's size field to the number of bytes read from the file
-	 * This method DOES NOT:
-	 * set the checksum of the data segment.
-	 * The method returns -1 if this is the last data segment (no more data to be read) and 0 otherwise.
-	 */
-
-	public int readData() {
-		try {
-			FileInputStream InputFile = new FileInputStream(inputFile);
-			long BytePos = fileSize - remainingBytes;
-			InputFile.getChannel().position(BytePos);
-
-			byte[] ByteBuffer = new byte[maxPayload];
-			int readBytes = InputFile.read(ByteBuffer);
-
-
-			if (readBytes <= 0) {
-				return -1;
-			}
-
-			String Data = new String(ByteBuffer, 0, readBytes);
-			dataSeg.setType(SegmentType.Data);
-			dataSeg.setSize(readBytes);
-			dataSeg.setPayLoad(Data);
-
-			int currentSqNum = dataSeg.getSq();
-			dataSeg.setSq(1 - currentSqNum);
-			remainingBytes = remainingBytes - readBytes;
-			totalSegments++;
-			InputFile.close();
-			return 0;
-
-		} catch (Exception e) {
-			System.err.println("ERROR --> Cannot read data");
-			return -1;
-		}
-	}
-
-	/*
-	 * This method sends the current data segment (dataSeg) to the server
-	 * This method:
-	 * 		computes a checksum of the data and sets the data segment's checksum prior to sending.
-	 * output relevant information messages for the user to follow progress of the file transfer.
-	 */
-
-	public void sendData() {
-		try {
-			dataSeg.setChecksum(checksum(dataSeg.getPayLoad(), false));
-			ByteArrayOutputStream OutputStream = new ByteArrayOutputStream();
-			ObjectOutputStream ObjectStream = new ObjectOutputStream(OutputStream);
-			ObjectStream.writeObject(dataSeg);
-
-			byte[] totalBytes = OutputStream.toByteArray();
-
-			DatagramPacket DataPacket = new DatagramPacket(totalBytes, totalBytes.length, ipAddress, portNumber);
-			this.socket.send(DataPacket);
-
-			System.out.println("SENDER --> Sending(sq):" + dataSeg.getSq());
-			System.out.println("SENDER --> Sending(size):" + dataSeg.getSize());
-			System.out.println("SENDER --> Sending(checksum):" + dataSeg.getChecksum());
-
-			sentBytes += dataSeg.getSize();
-		} catch (Exception e) {
-			System.err.println("ERROR --> Cannot send data");
-		}
-	}
-
-	//Decide on the right place to :
-	// *  	update the remaining bytes so that it records the remaining bytes to be read from the file after this segment is transferred. When all file bytes have been read, the remaining bytes will be zero
-	// *    update the number of total sent segments
-	// *    update the number of sent bytes
-
-
-	/*
-	 * This method receives the current Ack segment (ackSeg) from the server
-	 * This method:
-	 * 		needs to check whether the ack is as expected
-	 * 		exit of the client on detection of an error in the received Ack
-	 * return true if no error
-	 * output relevant information messages for the user to follow progress of the file transfer.
-	 */
-	public boolean receiveAck(int expectedDataSq) {
-		try {
-			byte[] buffer = new byte[1024];
-			DatagramPacket AckPacket = new DatagramPacket(buffer, buffer.length);
-			socket.receive(AckPacket);
-
-			ByteArrayInputStream ByteStream = new ByteArrayInputStream(AckPacket.getData());
-			ObjectInputStream ObjectStream = new ObjectInputStream(ByteStream);
-			ackSeg = (Segment) ObjectStream.readObject();
-
-			System.out.println("SENDER --> Ack sq ==" + ackSeg.getSq() + "Received");
-			System.out.println("----------------");
-
-			if (ackSeg.getSq() != expectedDataSq) {
-				System.err.println("ERROR --> Unexpected sq number!");
-				System.exit(0);
-			}
-
-			return true;
-
-		} catch (Exception e) {
-			return false;
-		}
-	}
-
-
-	/*
-	 * This method sends the current data segment (dataSeg) to the server with errors
-	 * This method:
-	 * 	 	may  corrupt the checksum according to the loss probability specified if the transfer mode is with timeout (wt)
-	 * 		If the count of consecutive retries/retransmissions exceeds the maximum number of allowed retries, the method exits the client with an
-	 * appropriate error message.
-	 *	This method does not receive any segment from the server
-	 * output relevant information messages for the user to follow progress of the file transfer.
-	 */
-
-
-	public void sendDataWithError() throws IOException {
-		boolean SentSuccess = false;
-
-		while (!SentSuccess && currRetry <= maxRetries) {
-			String PayLoad = dataSeg.getPayLoad();
-			int OriginalChecksum = checksum(PayLoad, false);
-			dataSeg.setChecksum(OriginalChecksum);
-
-			if (isCorrupted(lossProb)) {
-				dataSeg.setChecksum(checksum(PayLoad, true));
-				System.out.println("SENDER --> Corrupt segment");
-			} else {
-				System.out.println("SENDER --> Segment sent with original checksum");
-			}
-
-			ByteArrayOutputStream OutputStream = new ByteArrayOutputStream();
-			ObjectOutputStream ObjectStream = new ObjectOutputStream(OutputStream);
-			ObjectStream.writeObject(dataSeg);
-			byte[] DataToSend = OutputStream.toByteArray();
-
-			DatagramPacket DataPacket = new DatagramPacket(DataToSend, DataToSend.length, ipAddress, portNumber);
-			socket.send(DataPacket);
-
-			System.out.println("SENDER --> Sending segment: sq: " + dataSeg.getSq());
-			System.out.println("SENDER --> Sending size: " + dataSeg.getSize());
-			System.out.println("SENDER --> Sending checksum: " + dataSeg.getChecksum());
-			System.out.println("--------------------");
-
-			if (dataSeg.getChecksum() == OriginalChecksum) {
-				SentSuccess = true;
-				System.out.println("SENDER --> Segment sent without corruption");
-			} else {
-				currRetry++;
-				System.out.println("SENDER --> Current retry=" + currRetry + "--> CORRUPTED");
-			}
-
-			ObjectStream.close();
-			OutputStream.close();
-
-		}
-
-		if (!SentSuccess && currRetry > maxRetries) {
-			System.err.println("ERROR --> Max retires exceeded (Terminating Client)");
-			socket.close();
-			throw new IOException("Transfer failed");
-		}
-	}
-
-	/*
-	 * This method transfers the given file using the resources provided by the protocol structure.
-	 *
-	 * This method is similar to the sendFileNormal method except that it resends data segments if no ACK for a segment is received from the server.
-	 * This method:
-	 *  simulates network corruption of some data segments by injecting corruption into segment checksums (using sendDataWithError() method).
-	 *  will timeout waiting for an ACK for a corrupted segment and will resend the same data segment.
-	 *  updates attributes that record the progress of a file transfer. This includes the number of consecutive retries for each segment.
-	 *
-	 * output relevant information messages for the user to follow progress of the file transfer.
-	 * after completing the file transfer, display total segments transferred and the total number of resent segments
-	 *
-	 * relevant methods that need to be used include: readData(), sendDataWithError(), receiveAck().
-	 */
-	void sendFileWithTimeout() {
-		int currRetry = 0;
-		int totalSegmentsSent = 0;
-		int totalResent = 0;
-		int timeoutValue = DEFAULT_TIMEOUT;
-
-		while (readData() != -1) {
-			boolean ackReceived = false;
-
-            try {
-                socket.setSoTimeout(timeoutValue);
-            } catch (SocketException e) {
-                throw new RuntimeException(e);
-            }
-
-            while (!ackReceived) {
-
-				if (currRetry > 0) {
-					System.out.println("SENDER --> TIMEOUT --> Re-sending the same segment --> retry: " + currRetry);
-				}
-
-                try {
-                    sendDataWithError();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                totalSegmentsSent++;
-				System.out.println("SENDER --> Sending segment: sq:" + dataSeg.getSq() +
-						", size:" + dataSeg.getSize() +
-						", checksum:" + dataSeg.getChecksum());
-				System.out.println("----------------------------------------");
-
-
-				long startTime = System.currentTimeMillis();
-				long elapsedTime = 0;
-
-				while (!ackReceived && elapsedTime < timeoutValue) {
-					long currentTime = System.currentTimeMillis();
-					elapsedTime = currentTime - startTime;
-
-					if (elapsedTime < timeoutValue) {
-						ackReceived = receiveAck(dataSeg.getSq());
-					} else {
-						System.out.println("TIMEOUT: ACK not received with sq: " + dataSeg.getSq());
-						currRetry++;
-						totalResent++;
-
-						if (currRetry > maxRetries) {
-							System.out.println("ERROR: Max retries reached for segment " + dataSeg.getSq());
-							System.out.println("Aborted the transfer.");
-							return;
-						}
-
-						System.out.println("Resending segment with sq: " + dataSeg.getSq());
-						break;
-					}
-				}
-
-				if (ackReceived) {
-					System.out.println("SENDER --> ACK sq= " + dataSeg.getSq() + " RECEIVED.");
-					currRetry = 0;
-				}
-			}
-		}
-
-		System.out.println("Total Segments " + totalSegmentsSent);
-		System.out.println("Segments Resent " + totalResent);
-		System.out.println("SENDER --> File is sent.");
-	}
-	/*
-	 *  transfer the given file using the resources provided by the protocol structure using GoBackN.
-	 */
-
-	void sendFileNormalGBN(int window) throws IOException {
-		int totalSegments = (int) Math.ceil((float) fileSize / maxPayload);
-		int ackSegments = 0;
-		int currentSq = 0;
-		int[] windowArray = new int[window];
-		Arrays.fill(windowArray, -1);
-
-		while (ackSegments < totalSegments) {
-
-			for (int i = 0; i < window && currentSq < totalSegments; i++) {
-				readData();
-				dataSeg.setSq(currentSq % (window + 1));
-				sendData();
-				windowArray[i] = dataSeg.getSq();
-				System.out.println("SENDER --> Sent segment sq=" + dataSeg.getSq() + ", size=" + dataSeg.getSize());
-				currentSq++;
-			}
-
-			System.out.println("SENDER --> Current outstanding ACKs: " + Arrays.toString(windowArray));
-
-			if (receiveAck(windowArray[0])) {
-				for (int i = 1; i < windowArray.length; i++) {
-					windowArray[i - 1] = windowArray[i];
-				}
-				windowArray[windowArray.length - 1] = -1;
-				ackSegments++;
-
-				if (currentSq < totalSegments) {
-					System.out.println("SENDER --> Sliding window and sending next segment...");
-					readData();
-					dataSeg.setSq(currentSq % (window + 1));
-					windowArray[windowArray.length - 1] = dataSeg.getSq();
-					sendData();
-					System.out.println("SENDER --> Sent segment sq=" + dataSeg.getSq() + ", size=" + dataSeg.getSize());
-				}
-			} else {
-				System.out.println("SENDER --> ACK not received. Transfer aborted");
-				System.exit(1);
-			}
-			System.out.println("SENDER --> Total segments sent:" + totalSegments);
-			System.out.println("------------------------------------------------------------------");
-		}
-
-		System.out.println("SENDER --> File transfer complete. Total Segments sent: " + ackSegments);
-	}
-
-
-	/*************************************************************************************************************************************
-	 **************************************************************************************************************************************
-	 **************************************************************************************************************************************
-	These methods are implemented for you .. Do NOT Change them
-	 **************************************************************************************************************************************
-	 **************************************************************************************************************************************
-	 **************************************************************************************************************************************/
-	/*
-	 * This method initialises ALL the 19 attributes needed to allow the Protocol methods to work properly
-	 */
-	public void initProtocol(String hostName , String portNumber, String fileName, String outputFileName, String payloadSize, String mode) throws UnknownHostException, SocketException {
-		this.portNumber = Integer.parseInt(portNumber);
-		this.ipAddress = InetAddress.getByName(hostName);
-		this.socket = new DatagramSocket();
-		this.inputFile = checkFile(fileName);
-		this.inputFileName = fileName;
-		this.outputFileName =  outputFileName;
-		this.fileSize       =this.inputFile.length();
-
-		this.remainingBytes = this.fileSize;
-		this.maxPayload = Integer.parseInt(payloadSize);
-		this.mode = mode;
-		this.dataSeg = new Segment();
-		this.ackSeg = new Segment();
-
-		this.timeout = DEFAULT_TIMEOUT;
-		this.maxRetries = DEFAULT_RETRIES;
-
-		this.sentBytes = 0;
-		this.lossProb =0;
-		this.totalSegments =0;
-		this.resentSegments = 0;
-		this.currRetry = 0;
-	}
-
-	/* transfer the given file using the resources provided by the protocol
-	 *      attributes, according to the normal file transfer without timeout
-	 *      or retransmission (for part 2).
-	 */
-	public void sendFileNormal() throws IOException {
-		while (this.remainingBytes!=0) {
-			readData();
-			sendData();
-			if(!receiveAck(this.dataSeg.getSq()))  System.exit(0);
-		}
-		System.out.println("Total Segments "+ this.totalSegments );
-	}
-
-	/* calculate the segment checksum by adding the payload
-	 * Parameters:
-	 * payload - the payload string
-	 * corrupted - a boolean to indicate whether the checksum should be corrupted
-	 *      to simulate a network error
-	 *
-	 * Return:
-	 * An integer value calculated from the payload of a segment
-	 */
-	public static int checksum(String payload, Boolean corrupted)
-	{
-		if (!corrupted)
-		{
-			int i;
-
-			int sum = 0;
-			for (i = 0; i < payload.length(); i++)
-				sum += (int)payload.charAt(i);
-			return sum;
-		}
-		return 0;
-	}
-
-	/* used by Client.java to set the loss probability (for part 3)*/
-	public void setLossProb(float loss) {
-		this.lossProb = loss;
-	}
-
-	/*
-	 * returns true with the given probability
-	 *
-	 * The result can be passed to the checksum function to "corrupt" a
-	 * checksum with the given probability to simulate network errors in
-	 * file transfer.
-	 *
-	 */
-	private static Boolean isCorrupted(float prob) {
-
-		double randomValue = Math.random();  //0.0 to 99.9
-		return randomValue <= prob;
-	}
-
-	/* check if the input file does exist before sending it */
-	private static File checkFile(String fileName)
-	{
-		File file = new File(fileName);
-		if(!file.exists()) {
-			System.out.println("SENDER: File does not exists");
-			System.out.println("SENDER: Exit ..");
-			System.exit(0);
-		}
-		return file;
-	}
-}
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+public class Protocol {
+
+	static final String NORMAL_MODE = "nm"; // normal transfer mode: (for Part 1 and 2)
+	static final String TIMEOUT_MODE = "wt"; // timeout transfer mode: (for Part 3)
+	static final String GBN_MODE = "gbn";    // GBN transfer mode: (for Part 4)
+	static final String SR_MODE = "sr";      // Selective Repeat transfer mode
+	static final int DEFAULT_TIMEOUT = 10;     // default timeout in seconds (for Part 3), the upper bound of the adaptive retransmission timeout
+	static final int DEFAULT_RETRIES = 4;    // default number of consecutive retries (for Part 3)
+	static final int TIMER_TICK = 10;        // resolution of the Selective Repeat retransmission timers in milliseconds
+	static final int TIMER_SLOTS = 512;      // slots of the Selective Repeat timer wheel
+	static final int DUPLICATE_ACKS = 3;     // repeated cumulative ACKs that signal a lost segment (gbn and sr)
+	static final long PACING_SPIN = 1_000_000;   // pacing gaps below this many nanoseconds are waited out before sending
+	static final int[] PROBE_SIZES = {WireFormat.MAX_DATAGRAM, 32768, 16384, 8192, 1472};   // datagram sizes tried by a probe, largest first
+	static final int PROBE_ATTEMPTS = 2;     // probes sent of each size before trying the next smaller one
+	static final long DELTA_POLL = 20;       // milliseconds between requests for a signature the server is still computing
+	static final int MANIFEST_BURST = 64;    // chunks of a manifest sent before waiting for their answers
+
+	/*
+	 * The following attributes control the execution of a transfer protocol and provide access to the
+	 * resources needed for a file transfer (such as the file to transfer, etc.)
+	 *
+	 */
+
+	private InetAddress ipAddress;      // the address of the server to transfer the file to. This should be a well-formed IP address.
+	private int portNumber;            // the  port the server is listening on
+	private DatagramSocket socket;     // The socket that the client bind to
+	private String mode;               //mode of transfer normal/with timeout/GBN
+	private byte wireVersion;          //wire format spoken to the server: WireFormat.LEGACY or WireFormat.VERSION
+	private Checksum checksum;         //algorithm of the segment checksums, announced in the metadata
+	private int transferId;            //random id of this transfer, lets a server tell concurrent transfers apart
+	private ByteBuffer sendBuffer;     //reusable buffer that outgoing segments are encoded into
+	private byte[] receiveBuffer;      //reusable buffer that incoming ACKs are received into, sized for the largest ACK
+	private boolean probe;             //whether to probe for the largest datagram size and use it for the payload
+	private boolean resume;            //whether to announce a content hash, so the server can resume an earlier transfer of the file
+	private int contentHash;           //CRC32C of the input file announced in the metadata, 0 until hashed or without resume and delta
+	private long resumeOffset;         //file offset the server asked this stream to resume at
+	private boolean compress;          //whether binary payloads are deflated when that makes them smaller
+	private Compression compression;   //deflates the payloads of this stream, created on the first send
+	private boolean delta;             //whether to send only the differences to the server's old copy of the output file
+	private boolean deltaOffered;      //whether the server replied that it has an old copy to build on
+	private BitSet copied = new BitSet();   //segments the server copied from its old copy, never sent; shared by the streams
+	private int fecGroup;              //segments per parity group (gbn and sr, binary wire format only), 0 to send no parity
+	private int fecParity;             //parity segments per group
+	private boolean fecAccepted;       //whether the server replied that it rebuilds segments from parity
+	private Fec fec;                   //parity of the group being sent by this stream, created for the first segment
+	private Segment paritySeg;         //the segment parity is sent in
+
+	private File inputFile;           // The client-side input file to transfer
+	private Batch batch;              // the files below the input directory, sent as one batch; null for a single input file
+	private SegmentReader reader;     // reads segments of the input file by index, opened on the first read
+	private boolean mappedReader;     // whether the reader memory maps the input file instead of positional reads
+	private boolean prefetch;         // whether a reader thread reads segments ahead of this stream (channel reads only)
+	private Prefetcher prefetcher;    // reads the segments of this stream ahead, started on the first read
+	private ByteBuffer readBuffer;    // the segment read last when it was not read ahead, reused for the next read
+	private String inputFileName;      // the name of the client-side input file for transfer to the server
+	private String outputFileName;    //the name of the output file to create on the server as a result of the file transfer
+	private long fileSize;            // the size of the client-side input file
+
+	private Segment dataSeg;         // the protocol data segment for sending segments with payload read from the input file to the server
+	private Segment ackSeg;           //the protocol ack segment for receiving ACKs from the server
+	private int maxPayload;                //The max payload size of the data segment
+	private long remainingBytes;       //the number of bytes remaining to be transferred during execution of a transfer. This is set to the input file size at the start
+
+	private int timeout;          //the timeout in seconds to use for the protocol with timeout (for Part 3)
+	private RttEstimator rtt;     //measures the round trip time and derives the retransmission timeout from it
+	private int maxRetries;       //the maximum number of consecutive retries (retransmissions) to allow before exiting the client (for Part 3)(This is per segment)
+	private int window;           //the sending window size in segments announced to the server (gbn and sr)
+	private boolean adaptiveWindow;   //whether the window is grown and cut by congestion control up to window, or fixed at it
+	private int streams;          //the number of parallel streams (sockets and sender loops) the file is striped over
+	private int stream;           //the stream this protocol instance sends, 0 for the main one
+	private int firstSegment;     //the first segment this protocol instance sends (gbn and sr)
+	private int endSegment;       //one past the last segment this protocol instance sends, -1 for the end of the file
+
+	private long sentBytes;      //the accumulated total bytes transferred to the server as the result of a file transfer
+	private float lossProb;      //the probability of corruption of a data segment during the transfer  (for Part 3)
+	private int currRetry;       //the current number of consecutive retries (retransmissions) following a segment corruption (for Part 3)(This is per segment)
+	private int totalSegments;   //the accumulated total number of ALL data segments transferred to the server as the result of a file transfer
+	private int resentSegments;  //the accumulated total number of data segments resent to the server as a result of timeouts during a file transfer (for Part 3)
+
+	/*
+	 * This method sends protocol metadata to the server.
+	 * Sending metadata starts a transfer by sending the following information to the server in the metadata object (defined in MetaData.java):
+	 *      size - the size of the file to send
+	 *      name - the name of the file to create on the server
+	 *      maxSegSize - The size of the payload of the data segment
+	 * deal with error in sending
+	 * output relevant information messages for the user to follow progress of the file transfer.
+	 * This method does not set any of the attributes of the protocol.
+	 */
+	public void sendMetadata() {
+
+		try {
+			MetaData metaData;
+			if (wireVersion == WireFormat.LEGACY) {
+				// servers that only speak serialization do not reply and receive into a fixed buffer
+				if (batch != null) {
+					throw new IOException("A batch needs the binary wire format");
+				}
+				metaData = buildMetaData();
+				if (metaData.getMaxDatagram() > WireFormat.LEGACY_DATAGRAM) {
+					Log.warn("SENDER --> Segments of up to " + metaData.getMaxDatagram() + " bytes may not fit the buffer of an old server");
+				}
+				byte[] bytes = WireFormat.serialize(metaData);
+				this.socket.send(new DatagramPacket(bytes, bytes.length, ipAddress, portNumber));
+			} else {
+				if (probe) {
+					probeDatagramSize();
+				}
+				// a delta is checked against the hash before it replaces the server's old file
+				if ((resume || delta) && batch == null && contentHash == 0) {
+					int hash = openReader().contentHash();
+					contentHash = hash == 0 ? 1 : hash;   // 0 announces no hash
+				}
+				metaData = negotiate();
+				socket.setSoTimeout(0);   // the transfer modes set their own timeouts, nm waits for ever
+				if (resumeOffset > 0) {
+					// the server holds the file up to there from an earlier transfer
+					firstSegment = (int) ((resumeOffset + maxPayload - 1) / maxPayload);
+					remainingBytes = fileSize - resumeOffset;
+					if (stream == 0) {
+						Log.info("SENDER --> Resuming at byte " + resumeOffset + " of " + fileSize);
+					}
+				} else if (delta && deltaOffered && stream == 0) {
+					sendDelta();
+				}
+				if (batch != null && stream == 0) {
+					sendManifest();
+				}
+			}
+			if (Log.isInfo()) {
+				Log.info("SENDER --> Metadata sent successfully: ");
+				Log.info("         File name: " + metaData.getName());
+				Log.info("         Size: " + metaData.getSize() + " bytes");
+				Log.info("         Max Segment Size: " + metaData.getMaxSegSize() + " bytes");
+			}
+		} catch (IOException e) {
+			if (batch != null) {
+				// the server would write the files into one
+				System.err.println("ERROR --> Cannot send the batch: " + e.getMessage() + " (Terminating Client)");
+				System.exit(1);
+			}
+			Log.warn("ERROR --> Cannot send metadata  ");
+		}
+	}
+
+	/*
+	 * This method:
+	 *  	read the next chunk of data from the file into the data segment (dataSeg) payload.
+	 *  	set the correct type of the data segment
+	 *  	set the correct sequence number of the data segment.
+	 *  	set the data segment's size field to the number of bytes read from the file
+	 * This method DOES NOT:
+	 * set the checksum of the data segment.
+	 * The method returns -1 if this is the last data segment (no more data to be read) and 0 otherwise.
+	 */
+
+	public int readData() {
+		try {
+			if (remainingBytes <= 0) {
+				return -1;
+			}
+			long BytePos = fileSize - remainingBytes;
+			int readBytes = readSegment(dataSeg, (int) (BytePos / maxPayload));
+
+			if (readBytes <= 0) {
+				return -1;
+			}
+
+			int currentSqNum = dataSeg.getSq();
+			dataSeg.setSq(1 - currentSqNum);
+			remainingBytes = remainingBytes - readBytes;
+			skipCopied();
+			totalSegments++;
+			return 0;
+
+		} catch (Exception e) {
+			System.err.println("ERROR --> Cannot read data");
+			return -1;
+		}
+	}
+
+	/*
+	 * This method sends the current data segment (dataSeg) to the server
+	 * This method:
+	 * 		computes a checksum of the data and sets the data segment's checksum prior to sending.
+	 * output relevant information messages for the user to follow progress of the file transfer.
+	 */
+
+	public void sendData() {
+		try {
+			dataSeg.setChecksum(checksum.of(dataSeg));
+			sendSegment(dataSeg);
+
+			if (Log.isTrace()) {
+				Log.trace("SENDER --> Sending(sq):" + dataSeg.getSq());
+				Log.trace("SENDER --> Sending(size):" + dataSeg.getSize());
+				Log.trace("SENDER --> Sending(checksum):" + dataSeg.getChecksum());
+			}
+
+			sentBytes += dataSeg.getSize();
+		} catch (Exception e) {
+			System.err.println("ERROR --> Cannot send data");
+		}
+	}
+
+	//Decide on the right place to :
+	// *  	update the remaining bytes so that it records the remaining bytes to be read from the file after this segment is transferred. When all file bytes have been read, the remaining bytes will be zero
+	// *    update the number of total sent segments
+	// *    update the number of sent bytes
+
+
+	/*
+	 * This method receives the current Ack segment (ackSeg) from the server
+	 * This method:
+	 * 		needs to check whether the ack is as expected
+	 * 		exit of the client on detection of an error in the received Ack
+	 * return true if no error
+	 * output relevant information messages for the user to follow progress of the file transfer.
+	 */
+	public boolean receiveAck(int expectedDataSq) {
+		try {
+			ackSeg = receiveSegment();
+
+			if (Log.isTrace()) {
+				Log.trace("SENDER --> Ack sq ==" + ackSeg.getSq() + "Received");
+				Log.trace("----------------");
+			}
+
+			if (ackSeg.getSq() != expectedDataSq) {
+				System.err.println("ERROR --> Unexpected sq number!");
+				System.exit(0);
+			}
+			Metrics.bytesAcked.add(dataSeg.getSize());
+
+			return true;
+
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+
+	/*
+	 * This method sends the current data segment (dataSeg) to the server with errors
+	 * This method:
+	 * 	 	may  corrupt the checksum according to the loss probability specified if the transfer mode is with timeout (wt)
+	 * 		If the count of consecutive retries/retransmissions exceeds the maximum number of allowed retries, the method exits the client with an
+	 * appropriate error message.
+	 *	This method does not receive any segment from the server
+	 * output relevant information messages for the user to follow progress of the file transfer.
+	 */
+
+
+	public void sendDataWithError() throws IOException {
+		boolean SentSuccess = false;
+
+		while (!SentSuccess && currRetry <= maxRetries) {
+			int OriginalChecksum = checksum.of(dataSeg);
+			dataSeg.setChecksum(OriginalChecksum);
+
+			if (isCorrupted(lossProb)) {
+				dataSeg.setChecksum(~OriginalChecksum);
+				Log.trace("SENDER --> Corrupt segment");
+			} else {
+				Log.trace("SENDER --> Segment sent with original checksum");
+			}
+
+			sendSegment(dataSeg);
+
+			if (Log.isTrace()) {
+				Log.trace("SENDER --> Sending segment: sq: " + dataSeg.getSq());
+				Log.trace("SENDER --> Sending size: " + dataSeg.getSize());
+				Log.trace("SENDER --> Sending checksum: " + dataSeg.getChecksum());
+				Log.trace("--------------------");
+			}
+
+			if (dataSeg.getChecksum() == OriginalChecksum) {
+				SentSuccess = true;
+				Log.trace("SENDER --> Segment sent without corruption");
+			} else {
+				currRetry++;
+				if (Log.isTrace()) {
+					Log.trace("SENDER --> Current retry=" + currRetry + "--> CORRUPTED");
+				}
+				if (currRetry <= maxRetries) {
+					totalSegments++;
+					countResend();
+				}
+			}
+		}
+
+		if (!SentSuccess && currRetry > maxRetries) {
+			System.err.println("ERROR --> Max retires exceeded (Terminating Client)");
+			socket.close();
+			throw new IOException("Transfer failed");
+		}
+	}
+
+	/*
+	 * This method transfers the given file using the resources provided by the protocol structure.
+	 *
+	 * This method is similar to the sendFileNormal method except that it resends data segments if no ACK for a segment is received from the server.
+	 * This method:
+	 *  simulates network corruption of some data segments by injecting corruption into segment checksums (using sendDataWithError() method).
+	 *  will timeout waiting for an ACK for a corrupted segment and will resend the same data segment.
+	 *  updates attributes that record the progress of a file transfer. This includes the number of consecutive retries for each segment.
+	 *
+	 * output relevant information messages for the user to follow progress of the file transfer.
+	 * after completing the file transfer, display total segments transferred and the total number of resent segments
+	 *
+	 * relevant methods that need to be used include: readData(), sendDataWithError(), receiveAck().
+	 */
+	void sendFileWithTimeout() {
+		while (readData() != -1) {
+			boolean ackReceived = false;
+			boolean retransmitted = false;   // Karn's rule: no rtt sample for a segment sent more than once
+			currRetry = 0;
+
+			while (!ackReceived) {
+
+				if (currRetry > 0 && Log.isTrace()) {
+					Log.trace("SENDER --> TIMEOUT --> Re-sending the same segment --> retry: " + currRetry);
+				}
+
+				try {
+					sendDataWithError();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				if (Log.isTrace()) {
+					Log.trace("SENDER --> Sending segment: sq:" + dataSeg.getSq() +
+							", size:" + dataSeg.getSize() +
+							", checksum:" + dataSeg.getChecksum());
+					Log.trace("----------------------------------------");
+				}
+
+				// wait up to the current rto for the ACK of this segment, ignoring stale ACKs of earlier ones
+				long sentAt = System.nanoTime();
+				long deadline = sentAt + rtt.timeout() * 1_000_000L;
+				try {
+					while (!ackReceived) {
+						long left = (deadline - System.nanoTime()) / 1_000_000L;
+						if (left <= 0) {
+							throw new SocketTimeoutException();
+						}
+						socket.setSoTimeout((int) left);
+						Segment ack = receiveSegment();
+						ackReceived = ack.getType() == SegmentType.Ack && ack.getSq() == dataSeg.getSq();
+					}
+					if (!retransmitted) {
+						sampleRtt(System.nanoTime() - sentAt);
+					}
+					Metrics.bytesAcked.add(dataSeg.getSize());
+					if (Log.isTrace()) {
+						Log.trace("SENDER --> ACK sq= " + dataSeg.getSq() + " RECEIVED (rto " + rtt.timeout() + " ms)");
+					}
+				} catch (SocketTimeoutException e) {
+					if (Log.isTrace()) {
+						Log.trace("TIMEOUT: ACK not received with sq: " + dataSeg.getSq() + " within " + rtt.timeout() + " ms");
+					}
+					currRetry++;
+					retransmitted = true;
+					rtt.backoff();
+					Metrics.timeouts.increment();
+
+					if (currRetry > maxRetries) {
+						Log.warn("ERROR: Max retries reached for segment " + dataSeg.getSq());
+						Log.warn("Aborted the transfer.");
+						return;
+					}
+
+					if (Log.isTrace()) {
+						Log.trace("Resending segment with sq: " + dataSeg.getSq());
+					}
+					totalSegments++;
+					countResend();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+
+		if (Log.isInfo()) {
+			Log.info("Total Segments " + totalSegments);
+			Log.info("Segments Resent " + resentSegments);
+			Log.info("SENDER --> File is sent.");
+		}
+	}
+	/*
+	 *  transfer the given file using the resources provided by the protocol structure using GoBackN.
+	 *
+	 *  Up to window segments are kept in flight. Sequence numbers are segment indexes and the
+	 *  server acknowledges cumulatively with the sq of the last segment it received in order,
+	 *  so one ACK can slide the window over several segments and stale ACKs are ignored.
+	 *  A single timer runs for the oldest unacknowledged segment (the base); when it fires the
+	 *  sender goes back to the base and resends everything after it, re-reading the segments
+	 *  from the file. The transfer is aborted after maxRetries consecutive timeouts. The server
+	 *  keeps segments that arrive past a gap, so the ACK of a resent base may jump the window
+	 *  over segments sent before going back.
+	 *  The timer runs for the adaptive rto, sampled from segments that were sent only once.
+	 *  The window in use is the congestion window, at most the given one; DUPLICATE_ACKS
+	 *  repeats of the last cumulative ACK halve it and go back to the base without waiting
+	 *  for the timer (fast retransmit), a timeout restarts it from slow start.
+	 */
+	void sendFileNormalGBN(int window) throws IOException {
+		int segmentCount = endSegment < 0 ? openReader().segmentCount() : endSegment;
+		CongestionControl cc = new CongestionControl(window, adaptiveWindow);
+		long[] sentAt = new long[window];        // when each in-flight segment was sent, by sq % window
+		boolean[] resent = new boolean[window];  // whether each in-flight segment is a retransmission, by sq % window
+		int base = uncopied(firstSegment, segmentCount);   // oldest segment not acknowledged yet
+		int next = base;              // next segment to send, never one the server copied
+		int highest = base;           // one past the highest segment sent so far, to count resends
+		long deadline = 0;      // when the timer for the base segment fires
+		long sendAt = 0;        // when pacing lets the next segment go, in System.nanoTime()
+		int duplicates = 0;     // repeats of the last cumulative ACK since the window last moved
+
+		while (base < segmentCount) {
+
+			// keep the congestion window full, spacing the segments by the pacing interval
+			while (next < base + cc.window() && next < segmentCount) {
+				long gap = sendAt - System.nanoTime();
+				if (gap >= PACING_SPIN) {
+					break;   // long enough to listen for ACKs meanwhile
+				}
+				if (gap > 0) {
+					LockSupport.parkNanos(gap);
+				}
+				sendSegmentAt(next);
+				sendAt = System.nanoTime() + cc.pacingInterval(rtt.minRtt());
+				sentAt[next % window] = System.nanoTime();
+				resent[next % window] = next < highest;
+				if (next < highest) {
+					countResend();
+				} else {
+					addParity(next);
+				}
+				if (next == base) {
+					deadline = System.currentTimeMillis() + rtt.timeout();
+				}
+				next = uncopied(next + 1, segmentCount);
+				highest = Math.max(highest, next);
+			}
+
+			try {
+				long wait = base < next ? deadline - System.currentTimeMillis() : rtt.timeout();
+				if (next < base + cc.window() && next < segmentCount) {
+					wait = Math.min(wait, (sendAt - System.nanoTime()) / 1_000_000L);
+				}
+				socket.setSoTimeout((int) Math.max(1, wait));
+				Segment ack = receiveSegment();
+				if (ack.getType() == SegmentType.Ack && ack.getSq() == base - 1 && base < next) {
+					// the server got something after a gap and repeated its cumulative ACK
+					if (++duplicates == duplicateAcks()) {
+						cc.onLoss();
+						if (Log.isTrace()) {
+							Log.trace("SENDER --> " + duplicates + " duplicate ACKs for sq=" + ack.getSq() + ", going back to resend " + (next - base) + " segments, cwnd " + cc.window());
+						}
+						next = base;
+					}
+					continue;
+				}
+				if (ack.getType() != SegmentType.Ack || ack.getSq() < base || ack.getSq() >= highest) {
+					if (Log.isTrace()) {
+						Log.trace("SENDER --> Ignoring duplicate ACK sq=" + ack.getSq());
+					}
+					continue;
+				}
+
+				if (Log.isTrace()) {
+					Log.trace("SENDER --> ACK sq=" + ack.getSq() + " received, window slides to " + (ack.getSq() + 1) + ", cwnd " + cc.window());
+				}
+				if (!resent[ack.getSq() % window] && !copied.get(ack.getSq())) {
+					sampleRtt(System.nanoTime() - sentAt[ack.getSq() % window]);
+				}
+				cc.onAck(ack.getSq() + 1 - base);
+				for (int sq = base; sq <= ack.getSq(); sq++) {
+					if (!copied.get(sq)) {
+						countAcked(sq);
+					}
+				}
+				base = uncopied(ack.getSq() + 1, segmentCount);
+				next = Math.max(next, base);   // the server kept segments past a gap that were sent before going back
+				currRetry = 0;
+				duplicates = 0;
+				if (base < next) {
+					deadline = System.currentTimeMillis() + rtt.timeout();
+				}
+			} catch (SocketTimeoutException e) {
+				if (base == next || System.currentTimeMillis() < deadline) {
+					continue;   // only waited for the pacing
+				}
+				rtt.backoff();
+				cc.onTimeout();
+				Metrics.timeouts.increment();
+				currRetry++;
+				if (currRetry > maxRetries) {
+					System.err.println("ERROR --> Max retires exceeded (Terminating Client)");
+					throw new IOException("Transfer failed");
+				}
+				if (Log.isTrace()) {
+					Log.trace("SENDER --> TIMEOUT on sq=" + base + ", going back to resend " + (next - base) + " segments --> retry: " + currRetry);
+				}
+				next = base;
+			}
+		}
+
+		Log.info("SENDER --> File transfer complete. Total Segments sent: " + totalSegments + ", resent: " + resentSegments + ", bytes sent: " + sentBytes);
+	}
+
+	/*
+	 *  transfer the given file using Selective Repeat.
+	 *
+	 *  Up to window segments are kept in flight, numbered by segment index. The server
+	 *  buffers segments that arrive out of order and its ACK carries the cumulative sq
+	 *  plus a bitmap of the segments it holds beyond that, so every segment acknowledged
+	 *  either way is done with. Each in-flight segment has its own retransmission timer,
+	 *  all of them kept in one timer wheel, and only segments whose timer expires are
+	 *  resent. The transfer is aborted when a segment is resent more than maxRetries times.
+	 *  Timers run for the adaptive rto, sampled from segments that were sent only once.
+	 *  The window in use is the congestion window, at most the given one; DUPLICATE_ACKS
+	 *  ACKs that do not move the cumulative sq halve it and resend the base segment at once
+	 *  (fast retransmit), a round of expired timers restarts it from slow start.
+	 */
+	void sendFileSelectiveRepeat(int window) throws IOException {
+		int segmentCount = endSegment < 0 ? openReader().segmentCount() : endSegment;
+		CongestionControl cc = new CongestionControl(window, adaptiveWindow);
+		boolean[] acked = new boolean[window];   // acknowledged flags of [base, base + window), by sq % window
+		int[] retries = new int[window];         // resends of each in-flight segment, by sq % window
+		long[] sentAt = new long[window];        // when each in-flight segment was first sent, by sq % window
+		long[] due = new long[window];           // when the current timer of each in-flight segment expires, by sq % window
+		TimerWheel timers = new TimerWheel(TIMER_TICK, TIMER_SLOTS, System.currentTimeMillis());
+		int base = firstSegment;      // oldest segment not acknowledged yet
+		int next = firstSegment;      // next new segment to send
+		long sendAt = 0;              // when pacing lets the next segment go, in System.nanoTime()
+		int duplicates = 0;           // ACKs since the cumulative sq last moved
+
+		while (base < segmentCount) {
+
+			// keep the congestion window full with new segments, spaced by the pacing interval
+			while (next < base + cc.window() && next < segmentCount) {
+				if (copied.get(next)) {
+					// the server copied it from its old file already
+					acked[next % window] = true;
+					next++;
+					while (base < next && acked[base % window]) {
+						base++;
+					}
+					continue;
+				}
+				long gap = sendAt - System.nanoTime();
+				if (gap >= PACING_SPIN) {
+					break;   // long enough to listen for ACKs meanwhile
+				}
+				if (gap > 0) {
+					LockSupport.parkNanos(gap);
+				}
+				sendSegmentAt(next);
+				addParity(next);
+				sendAt = System.nanoTime() + cc.pacingInterval(rtt.minRtt());
+				acked[next % window] = false;
+				retries[next % window] = 0;
+				sentAt[next % window] = System.nanoTime();
+				due[next % window] = System.currentTimeMillis() + rtt.timeout();
+				timers.schedule(next, due[next % window]);
+				next++;
+			}
+
+			// wait for an ACK until the next tick of the timer wheel or the next paced send
+			try {
+				long wait = timers.nextTick(System.currentTimeMillis()) - System.currentTimeMillis();
+				if (next < base + cc.window() && next < segmentCount) {
+					wait = Math.min(wait, (sendAt - System.nanoTime()) / 1_000_000L);
+				}
+				socket.setSoTimeout((int) Math.max(1, wait));
+				Segment ack = receiveSegment();
+				if (ack.getType() == SegmentType.Ack) {
+					int cumulative = ack.getSq();
+					if (cumulative >= base && cumulative < next && !acked[cumulative % window] && retries[cumulative % window] == 0) {
+						sampleRtt(System.nanoTime() - sentAt[cumulative % window]);
+					}
+					int newlyAcked = 0;
+					for (int sq = base; sq <= ack.getSq() && sq < next; sq++) {
+						if (!acked[sq % window]) {
+							acked[sq % window] = true;
+							newlyAcked++;
+							countAcked(sq);
+						}
+					}
+					if (ack.getSack() != null) {
+						for (int bit = ack.getSack().nextSetBit(0); bit >= 0; bit = ack.getSack().nextSetBit(bit + 1)) {
+							int sq = ack.getSq() + 1 + bit;
+							if (sq >= base && sq < next && !acked[sq % window]) {
+								acked[sq % window] = true;
+								newlyAcked++;
+								countAcked(sq);
+							}
+						}
+					}
+					cc.onAck(newlyAcked);
+
+					if (cumulative == base - 1 && base < next) {
+						// the server holds segments beyond a gap at the base
+						if (++duplicates == duplicateAcks() && !acked[base % window]) {
+							cc.onLoss();
+							if (Log.isTrace()) {
+								Log.trace("SENDER --> " + duplicates + " duplicate ACKs for sq=" + cumulative + ", resending sq=" + base + ", cwnd " + cc.window());
+							}
+							sendSegmentAt(base);
+							countResend();
+							retries[base % window]++;
+							due[base % window] = System.currentTimeMillis() + rtt.timeout();
+							timers.schedule(base, due[base % window]);
+						}
+					}
+					while (base < next && acked[base % window]) {
+						base++;
+						duplicates = 0;
+					}
+					if (Log.isTrace()) {
+						Log.trace("SENDER --> ACK sq=" + ack.getSq() + " received, window base is " + base + ", cwnd " + cc.window());
+					}
+				}
+			} catch (SocketTimeoutException e) {
+				// no ACK before the next tick, check the timers below
+			}
+
+			// resend only the segments whose timer expired, backing off once per round of expiries
+			long now = System.currentTimeMillis();
+			boolean backedOff = false;
+			for (int sq = timers.poll(now); sq >= 0; sq = timers.poll(now)) {
+				if (sq < base || sq >= next || acked[sq % window] || now < due[sq % window]) {
+					continue;   // acknowledged, or a timer replaced by a fast retransmit
+				}
+				if (!backedOff) {
+					rtt.backoff();
+					cc.onTimeout();
+					backedOff = true;
+				}
+				Metrics.timeouts.increment();
+				if (++retries[sq % window] > maxRetries) {
+					System.err.println("ERROR --> Max retires exceeded for sq=" + sq + " (Terminating Client)");
+					throw new IOException("Transfer failed");
+				}
+				if (Log.isTrace()) {
+					Log.trace("SENDER --> TIMEOUT on sq=" + sq + ", resending --> retry: " + retries[sq % window]);
+				}
+				sendSegmentAt(sq);
+				countResend();
+				due[sq % window] = now + rtt.timeout();
+				timers.schedule(sq, due[sq % window]);
+			}
+		}
+
+		Log.info("SENDER --> File transfer complete. Total Segments sent: " + totalSegments + ", resent: " + resentSegments + ", bytes sent: " + sentBytes);
+	}
+
+	/*
+	 *  transfer the file over several streams at once.
+	 *
+	 *  The segments are split into as many contiguous ranges as there are streams. Every
+	 *  stream gets its own socket and its own GoBackN or Selective Repeat sender loop on its
+	 *  own thread, so the transfer is no longer bound by one loop's round trips and one core.
+	 *  Segments carry their absolute file offset and the server writes each at its position.
+	 *  The first stream announces the transfer with the metadata; the others join it by
+	 *  sending the same metadata, marked with their stream index, from their own socket.
+	 */
+	void sendFileStriped(int window) throws IOException {
+		MetaData layout = buildMetaData();
+		openReader();
+
+		List<Protocol> senders = new ArrayList<>();
+		senders.add(this);
+		for (int i = 1; i < streams; i++) {
+			Protocol sender = forStream(i);
+			sender.sendMetadata();
+			senders.add(sender);
+		}
+		for (int i = 0; i < streams; i++) {
+			senders.get(i).firstSegment = Math.max(layout.firstSegmentOf(i), senders.get(i).firstSegment);
+			senders.get(i).endSegment = layout.firstSegmentOf(i + 1);
+		}
+
+		ExecutorService executor = Threads.perTaskExecutor();
+		List<Future<?>> results = new ArrayList<>();
+		for (Protocol sender : senders) {
+			results.add(executor.submit(() -> {
+				if (SR_MODE.equals(mode)) {
+					sender.sendFileSelectiveRepeat(window);
+				} else {
+					sender.sendFileNormalGBN(window);
+				}
+				return null;
+			}));
+		}
+		executor.shutdown();
+
+		try {
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Transfer interrupted");
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} finally {
+			for (Protocol sender : senders.subList(1, senders.size())) {
+				sender.socket.close();
+				if (sender.compression != null) {
+					sender.compression.end();
+				}
+				totalSegments += sender.totalSegments;
+				resentSegments += sender.resentSegments;
+				sentBytes += sender.sentBytes;
+				if (sender.prefetcher != null) {
+					sender.prefetcher.close();
+				}
+			}
+		}
+		Log.info("SENDER --> Striped transfer over " + streams + " streams complete. Total Segments sent: " + totalSegments + ", resent: " + resentSegments + ", bytes sent: " + sentBytes);
+	}
+
+	/* a copy of this protocol for another stream of the same transfer, with its own socket and counters */
+	private Protocol forStream(int stream) throws SocketException {
+		Protocol sender = new Protocol();
+		sender.ipAddress = ipAddress;
+		sender.portNumber = portNumber;
+		sender.socket = new DatagramSocket();
+		sender.mode = mode;
+		sender.wireVersion = wireVersion;
+		sender.checksum = checksum;
+		sender.transferId = transferId;
+		sender.resume = resume;
+		sender.compress = compress;
+		sender.contentHash = contentHash;
+		sender.copied = copied;
+		sender.fecGroup = fecGroup;
+		sender.fecParity = fecParity;
+		sender.sendBuffer = ByteBuffer.allocate(sendBuffer.capacity());
+		sender.receiveBuffer = new byte[receiveBuffer.length];
+		sender.inputFile = inputFile;
+		sender.batch = batch;
+		sender.reader = reader;
+		sender.mappedReader = mappedReader;
+		sender.prefetch = prefetch;
+		sender.inputFileName = inputFileName;
+		sender.outputFileName = outputFileName;
+		sender.fileSize = fileSize;
+		sender.dataSeg = new Segment();
+		sender.ackSeg = new Segment();
+		sender.maxPayload = maxPayload;
+		sender.timeout = timeout;
+		sender.rtt = new RttEstimator(timeout * 1000L);
+		sender.maxRetries = maxRetries;
+		sender.window = window;
+		sender.adaptiveWindow = adaptiveWindow;
+		sender.streams = streams;
+		sender.stream = stream;
+		sender.endSegment = -1;
+		return sender;
+	}
+
+	/* the metadata that announces this transfer to the server */
+	private MetaData buildMetaData() {
+		MetaData metaData = new MetaData();
+		metaData.setName(this.outputFileName);
+		metaData.setSize(this.fileSize);
+		metaData.setMaxSegSize(this.maxPayload);
+		metaData.setMode(this.mode);
+		metaData.setWindow(this.window);
+		metaData.setTransferId(this.transferId);
+		metaData.setStreams(this.streams);
+		metaData.setStream(this.stream);
+		metaData.setChecksum(this.checksum);
+		metaData.setContentHash(this.contentHash);
+		metaData.setDelta(this.delta && this.stream == 0 && this.batch == null);
+		metaData.setBatch(this.batch != null);
+		if (fecGroup > 0 && wireVersion != WireFormat.LEGACY && (GBN_MODE.equals(mode) || SR_MODE.equals(mode))) {
+			metaData.setFecGroup(this.fecGroup);
+			metaData.setFecParity(this.fecParity);
+		}
+		metaData.setMaxDatagram(WireFormat.maxDatagramSize(this.wireVersion, this.maxPayload));
+		return metaData;
+	}
+
+	/*
+	 * sends the binary metadata until the server replies, which confirms the largest datagram it
+	 * receives for this transfer and sets where this stream resumes. The time to the first reply
+	 * is the first rtt sample. Without any reply the transfer goes ahead from the start, as it
+	 * did before servers replied.
+	 */
+	private MetaData negotiate() throws IOException {
+		MetaData metaData = buildMetaData();
+		ByteBuffer buf = ByteBuffer.allocate(WireFormat.META_HEADER_SIZE + metaData.getMode().length() + metaData.getName().length() * 3 + 2);
+		WireFormat.encode(metaData, buf);
+		DatagramPacket packet = new DatagramPacket(buf.array(), buf.position(), ipAddress, portNumber);
+
+		for (int attempt = 0; attempt <= maxRetries; attempt++) {
+			long sentAt = System.nanoTime();
+			socket.send(packet);
+			MetaData reply = receiveReply(WireFormat.MSG_META_REPLY, sentAt + rtt.timeout() * 1_000_000L);
+			if (reply != null) {
+				if (attempt == 0) {
+					sampleRtt(System.nanoTime() - sentAt);
+				}
+				if (reply.getMaxDatagram() < metaData.getMaxDatagram()) {
+					throw new IOException("Server receives datagrams of up to " + reply.getMaxDatagram() + " bytes only");
+				}
+				resumeOffset = Math.max(0, Math.min(reply.getResumeOffset(), fileSize));
+				deltaOffered = reply.isDelta();
+				if (metaData.isBatch() && !reply.isBatch()) {
+					throw new IOException("The server does not take batches of files");
+				}
+				fecAccepted = metaData.getFecGroup() > 0 && reply.getFecGroup() > 0;
+				return metaData;
+			}
+			rtt.backoff();
+		}
+		if (metaData.isBatch()) {
+			throw new IOException("No reply to the metadata");
+		}
+		Log.warn("SENDER --> No reply to the metadata, sending the file anyway");
+		return metaData;
+	}
+
+	/*
+	 * sends only what changed against the server's old copy of the output file: fetches the
+	 * signature of that copy, matches the input against it and sends the copies the server
+	 * makes, each chunk with the CRC32C of the bytes it stands for until the server answers,
+	 * and again while it is still copying. The segments of copies the server made are never
+	 * sent; those of copies it refused, and if it stops answering the rest of the file, are
+	 * sent as usual. So is the whole file when not even one copy fits a datagram.
+	 */
+	private void sendDelta() throws IOException {
+		int maxDatagram = WireFormat.maxDatagramSize(wireVersion, maxPayload);
+		int perChunk = (maxDatagram - WireFormat.DELTA_HEADER_SIZE) / WireFormat.COPY_ENTRY;
+		if (perChunk < 1) {
+			Log.warn("SENDER --> A copy does not fit a datagram of " + maxDatagram + " bytes, sending the whole file");
+			return;
+		}
+		Delta signature = fetchSignature(maxDatagram);
+		if (signature == null) {
+			Log.warn("SENDER --> No signature of the old file, sending the whole file");
+			return;
+		}
+		List<Delta.Copy> copies = signature.match(openReader(), fileSize);
+
+		int chunks = (copies.size() + perChunk - 1) / perChunk;
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			List<Delta.Copy> part = copies.subList(chunk * perChunk, Math.min(copies.size(), (chunk + 1) * perChunk));
+			ByteBuffer request = ByteBuffer.allocate(WireFormat.DELTA_HEADER_SIZE + part.size() * WireFormat.COPY_ENTRY);
+			WireFormat.encodeDeltaHeader(WireFormat.MSG_COPY, transferId, chunk, chunks, copiedHash(part), request);
+			for (Delta.Copy copy : part) {
+				request.putInt(copy.first);
+				request.putInt(copy.count);
+				request.putLong(copy.source);
+			}
+			ByteBuffer reply;
+			while ((reply = exchange(request, WireFormat.MSG_COPY_ACK, chunk, maxDatagram)) != null && WireFormat.deltaCount(reply) < 0) {
+				LockSupport.parkNanos(DELTA_POLL * 1_000_000L);   // the server is still copying
+			}
+			if (reply == null) {
+				Log.warn("SENDER --> No answer to the copies, sending the rest of the file");
+				break;
+			}
+			if (WireFormat.deltaCount(reply) == 0) {
+				Log.warn("SENDER --> The server refused the copies of chunk " + chunk + ", sending their segments");
+				continue;
+			}
+			for (Delta.Copy copy : part) {
+				copied.set(copy.first, copy.first + copy.count);
+			}
+		}
+		skipCopied();
+		Log.info("SENDER --> Delta: " + copied.cardinality() + " of " + openReader().segmentCount() + " segments copied from the server's old file");
+	}
+
+	/*
+	 * sends the manifest of the batch, so the server creates the files before the first segment.
+	 * The chunks go out up to MANIFEST_BURST at a time and the unanswered ones are sent again
+	 * after a timeout; the transfer fails after maxRetries timeouts in a row.
+	 */
+	private void sendManifest() throws IOException {
+		int maxDatagram = WireFormat.maxDatagramSize(wireVersion, maxPayload);
+		List<ByteBuffer> chunks = new ArrayList<>();
+		int file = 0;
+		do {
+			ByteBuffer request = ByteBuffer.allocate(maxDatagram);
+			request.position(WireFormat.DELTA_HEADER_SIZE);
+			int next = batch.encode(file, request);
+			if (next == file && file < batch.files()) {
+				throw new IOException("The name of file " + file + " of the batch does not fit a datagram");
+			}
+			chunks.add(request);
+			file = next;
+		} while (file < batch.files());
+		for (int chunk = 0; chunk < chunks.size(); chunk++) {
+			ByteBuffer request = chunks.get(chunk);
+			int end = request.position();
+			request.position(0);
+			WireFormat.encodeDeltaHeader(WireFormat.MSG_MANIFEST, transferId, chunk, chunks.size(), 0, request);
+			request.position(end);
+		}
+
+		BitSet answered = new BitSet();
+		byte[] buffer = new byte[maxDatagram];
+		int timeouts = 0;
+		while (answered.cardinality() < chunks.size()) {
+			int sent = 0;
+			for (int chunk = answered.nextClearBit(0); chunk < chunks.size() && sent < MANIFEST_BURST; chunk = answered.nextClearBit(chunk + 1)) {
+				socket.send(new DatagramPacket(chunks.get(chunk).array(), chunks.get(chunk).position(), ipAddress, portNumber));
+				sent++;
+			}
+			int before = answered.cardinality();
+			long deadline = System.nanoTime() + rtt.timeout() * 1_000_000L;
+			while (answered.cardinality() - before < sent) {
+				long left = (deadline - System.nanoTime()) / 1_000_000L;
+				if (left <= 0) {
+					break;
+				}
+				socket.setSoTimeout((int) left);
+				DatagramPacket answer = new DatagramPacket(buffer, buffer.length);
+				try {
+					socket.receive(answer);
+				} catch (SocketTimeoutException e) {
+					break;
+				}
+				ByteBuffer datagram = ByteBuffer.wrap(buffer, 0, answer.getLength());
+				if (WireFormat.isDelta(datagram) && WireFormat.typeOf(datagram) == WireFormat.MSG_MANIFEST_ACK
+						&& WireFormat.deltaTransferId(datagram) == transferId) {
+					int chunk = WireFormat.deltaChunk(datagram);
+					if (chunk >= 0 && chunk < chunks.size()) {
+						answered.set(chunk);
+					}
+				}
+			}
+			if (answered.cardinality() - before < sent) {
+				rtt.backoff();
+				if (answered.cardinality() == before && ++timeouts > maxRetries) {
+					throw new IOException("No answer to the manifest");
+				}
+			} else {
+				timeouts = 0;
+			}
+		}
+		Log.info("SENDER --> Manifest of " + batch.files() + " files sent in " + chunks.size() + " chunk(s), " + fileSize + " bytes in all");
+	}
+
+	/* the CRC32C of the segments of the input file the given copies make, in their order */
+	private int copiedHash(List<Delta.Copy> copies) throws IOException {
+		CRC32C crc = new CRC32C();
+		ByteBuffer buffer = ByteBuffer.allocate(maxPayload);
+		for (Delta.Copy copy : copies) {
+			for (int index = copy.first; index < copy.first + copy.count; index++) {
+				buffer.clear();
+				openReader().read(index, buffer);
+				buffer.flip();
+				crc.update(buffer);
+			}
+		}
+		return (int) crc.getValue();
+	}
+
+	/* the signature of the server's old file, fetched chunk by chunk, or null if the server does not send it */
+	private Delta fetchSignature(int maxDatagram) throws IOException {
+		int perChunk = (maxDatagram - WireFormat.DELTA_HEADER_SIZE) / WireFormat.SIGNATURE_ENTRY;
+		int[] weak = null;
+		long[] strong = null;
+		int chunk = 0;
+		while (weak == null || (long) chunk * perChunk < weak.length) {
+			ByteBuffer request = ByteBuffer.allocate(WireFormat.DELTA_HEADER_SIZE);
+			WireFormat.encodeDeltaHeader(WireFormat.MSG_SIG_REQUEST, transferId, chunk, 0, 0, request);
+			ByteBuffer reply = exchange(request, WireFormat.MSG_SIGNATURE, chunk, maxDatagram);
+			if (reply == null) {
+				return null;
+			}
+			int count = WireFormat.deltaCount(reply);
+			if (count < 0) {
+				LockSupport.parkNanos(DELTA_POLL * 1_000_000L);   // the server is still hashing its old file
+				continue;
+			}
+			if (weak == null) {
+				if (WireFormat.deltaBlockSize(reply) != maxPayload) {
+					return null;
+				}
+				weak = new int[count];
+				strong = new long[count];
+			}
+			reply.position(reply.position() + WireFormat.DELTA_HEADER_SIZE);
+			for (int i = chunk * perChunk; i < weak.length && reply.remaining() >= WireFormat.SIGNATURE_ENTRY; i++) {
+				weak[i] = reply.getInt();
+				strong[i] = reply.getLong();
+			}
+			chunk++;
+		}
+		return new Delta(maxPayload, weak, strong);
+	}
+
+	/*
+	 * sends a delta message until the server answers it with the given type and chunk, backing
+	 * off after every timeout, and returns the answer, or null after maxRetries resends
+	 */
+	private ByteBuffer exchange(ByteBuffer request, byte type, int chunk, int maxDatagram) throws IOException {
+		DatagramPacket packet = new DatagramPacket(request.array(), request.position(), ipAddress, portNumber);
+		byte[] buffer = new byte[maxDatagram];
+		for (int attempt = 0; attempt <= maxRetries; attempt++) {
+			socket.send(packet);
+			long deadline = System.nanoTime() + rtt.timeout() * 1_000_000L;
+			while (true) {
+				long left = (deadline - System.nanoTime()) / 1_000_000L;
+				if (left <= 0) {
+					break;
+				}
+				socket.setSoTimeout((int) left);
+				DatagramPacket answer = new DatagramPacket(buffer, buffer.length);
+				try {
+					socket.receive(answer);
+				} catch (SocketTimeoutException e) {
+					break;
+				}
+				ByteBuffer datagram = ByteBuffer.wrap(buffer, 0, answer.getLength());
+				if (WireFormat.isDelta(datagram) && WireFormat.typeOf(datagram) == type
+						&& WireFormat.deltaTransferId(datagram) == transferId && WireFormat.deltaChunk(datagram) == chunk) {
+					return datagram;
+				}
+			}
+			rtt.backoff();
+		}
+		return null;
+	}
+
+	/* the first segment from index on, up to end, that the server did not copy */
+	private int uncopied(int index, int end) {
+		return Math.min(copied.nextClearBit(index), Math.max(index, end));
+	}
+
+	/* moves remainingBytes past the segments at the read position that the server copied (nm and wt) */
+	private void skipCopied() {
+		while (remainingBytes > 0 && copied.get((int) ((fileSize - remainingBytes) / maxPayload))) {
+			remainingBytes -= Math.min(maxPayload, remainingBytes);
+		}
+	}
+
+	/*
+	 * finds the largest datagram that reaches the server: probes padded to each of PROBE_SIZES
+	 * are sent until one is answered, and the payload size is set so segments fill that size.
+	 * If none is answered the payload size stays as given.
+	 */
+	private void probeDatagramSize() throws IOException {
+		for (int size : PROBE_SIZES) {
+			ByteBuffer buf = ByteBuffer.allocate(size);
+			WireFormat.encodeReply(WireFormat.MSG_PROBE, (short) 0, transferId, size, stream, 0, buf);
+			DatagramPacket packet = new DatagramPacket(buf.array(), size, ipAddress, portNumber);
+			for (int attempt = 0; attempt < PROBE_ATTEMPTS; attempt++) {
+				try {
+					socket.send(packet);
+				} catch (IOException e) {
+					break;   // larger than the local stack sends
+				}
+				MetaData reply = receiveReply(WireFormat.MSG_PROBE_REPLY, System.nanoTime() + rtt.timeout() * 1_000_000L);
+				if (reply != null && reply.getMaxDatagram() == size) {
+					Log.info("SENDER --> Datagrams of " + size + " bytes reach the server, payload size " + (size - WireFormat.HEADER_SIZE));
+					setMaxPayload(size - WireFormat.HEADER_SIZE);
+					return;
+				}
+			}
+		}
+		Log.warn("SENDER --> No probe reached the server, payload size stays " + maxPayload);
+	}
+
+	/* waits until the deadline (System.nanoTime()) for a reply of the given type to this transfer, null if none came */
+	private MetaData receiveReply(byte type, long deadline) throws IOException {
+		byte[] buffer = new byte[WireFormat.REPLY_SIZE];
+		while (true) {
+			long left = (deadline - System.nanoTime()) / 1_000_000L;
+			if (left <= 0) {
+				return null;
+			}
+			socket.setSoTimeout((int) left);
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				return null;
+			}
+			ByteBuffer datagram = ByteBuffer.wrap(buffer, 0, packet.getLength());
+			if (WireFormat.typeOf(datagram) != type) {
+				continue;   // a late reply to an earlier probe or metadata
+			}
+			MetaData reply;
+			try {
+				reply = WireFormat.decodeReply(datagram);
+			} catch (IOException e) {
+				continue;   // damaged on the way
+			}
+			if (reply.getTransferId() == transferId && (type == WireFormat.MSG_PROBE_REPLY || reply.getStream() == stream)) {
+				return reply;
+			}
+		}
+	}
+
+	/* sets the payload size of the segments, and the send buffer to fit them */
+	private void setMaxPayload(int maxPayload) {
+		this.maxPayload = maxPayload;
+		this.sendBuffer = ByteBuffer.allocate(WireFormat.HEADER_SIZE + maxPayload);
+	}
+
+	/* sizes the ACK receive buffer for the largest ACK of the window and wire format */
+	private void sizeReceiveBuffer() {
+		int sackBytes = (window + 7) / 8 + 8;
+		this.receiveBuffer = new byte[Math.max(WireFormat.REPLY_SIZE, WireFormat.maxDatagramSize(wireVersion, sackBytes))];
+	}
+
+	/* reads the given segment of the file and sends it with its index as the sq */
+	private void sendSegmentAt(int index) throws IOException {
+		readSegment(dataSeg, index);
+		dataSeg.setSq(index);
+		sendData();
+		totalSegments++;
+	}
+
+	/*
+	 * adds the segment just sent for the first time to the parity of its group, and sends the
+	 * parity segments once the group is complete (if the server rebuilds from parity)
+	 */
+	private void addParity(int index) throws IOException {
+		if (!fecAccepted) {
+			return;
+		}
+		if (fec == null) {
+			MetaData layout = buildMetaData();
+			fec = new Fec(fecGroup, fecParity, maxPayload, layout.firstSegmentOf(stream), layout.firstSegmentOf(stream + 1));
+			paritySeg = new Segment();
+		}
+		if (!fec.add(index, dataSeg.getData())) {
+			return;
+		}
+		for (int j = 0; j < fecParity; j++) {
+			ByteBuffer parity = fec.parity(j);
+			if (!parity.hasRemaining()) {
+				continue;   // a short last group without a member in this class
+			}
+			paritySeg.setType(SegmentType.Data);
+			paritySeg.setParity(true);
+			paritySeg.setOffset((long) fec.groupStart() * maxPayload);
+			paritySeg.setSq(j);
+			paritySeg.setSize(parity.remaining());
+			paritySeg.setData(parity);
+			paritySeg.setChecksum(checksum.of(paritySeg));
+			sendSegment(paritySeg);
+			Metrics.paritySent.increment();
+			if (Log.isTrace()) {
+				Log.trace("SENDER --> Sending parity " + j + " of the group from segment " + fec.groupStart());
+			}
+		}
+	}
+
+	/* counts a data segment sent again */
+	private void countResend() {
+		resentSegments++;
+		Metrics.segmentsResent.increment();
+	}
+
+	/* counts the given segment acknowledged, for the goodput */
+	private void countAcked(int index) {
+		Metrics.bytesAcked.add(Math.min(maxPayload, fileSize - (long) index * maxPayload));
+	}
+
+	/* feeds the round trip time of a segment sent once into the rto and the metrics */
+	private void sampleRtt(long rttNanos) {
+		rtt.sample(rttNanos);
+		Metrics.rtt.record(rttNanos / 1000);
+	}
+
+	/*
+	 * fills seg with the given segment of the input file and returns the number of
+	 * bytes read, or -1 past the end of the file. The sequence number is left alone.
+	 *
+	 * With the binary wire format the payload stays raw bytes: a view of the mapped
+	 * file, a view of the slot the prefetcher read it into, or readBuffer, which is
+	 * reused for the next read. Only the legacy format decodes the bytes into a string.
+	 */
+	int readSegment(Segment seg, int index) throws IOException {
+		SegmentReader reader = openReader();
+		if (index < 0 || index >= reader.segmentCount()) {
+			return -1;
+		}
+
+		ByteBuffer bytes;
+		if (mappedReader) {
+			bytes = reader.slice(index);
+		} else {
+			bytes = prefetch ? prefetcher(index).take(index) : null;
+			if (bytes == null) {
+				// a resend, or nothing read ahead
+				if (readBuffer == null || readBuffer.capacity() < maxPayload) {
+					readBuffer = ByteBuffer.allocate(maxPayload);
+				}
+				bytes = readBuffer;
+				bytes.clear();
+				reader.read(index, bytes);
+				bytes.flip();
+			}
+		}
+		int readBytes = bytes.remaining();
+
+		seg.setType(SegmentType.Data);
+		seg.setOffset(reader.offsetOf(index));
+		seg.setSize(readBytes);
+		if (wireVersion == WireFormat.LEGACY) {
+			byte[] chars = new byte[readBytes];
+			bytes.get(chars);
+			seg.setPayLoad(new String(chars));
+			seg.setData(null);
+		} else {
+			seg.setPayLoad(null);
+			seg.setData(bytes);
+		}
+		return readBytes;
+	}
+
+	/* the prefetcher of this stream, started at the given segment on first use */
+	private Prefetcher prefetcher(int first) throws IOException {
+		if (prefetcher == null) {
+			int end = endSegment < 0 ? openReader().segmentCount() : endSegment;
+			prefetcher = new Prefetcher(openReader(), copied, first, end, window, maxPayload);
+		}
+		return prefetcher;
+	}
+
+	/* opens the input file on first use */
+	private SegmentReader openReader() throws IOException {
+		if (reader == null) {
+			reader = batch != null ? new SegmentReader(batch, maxPayload) : new SegmentReader(inputFile, maxPayload, mappedReader);
+		}
+		return reader;
+	}
+
+	/*
+	 * sends the segment to the server in the wire format of this transfer, with a binary
+	 * payload deflated if compression is on and makes it smaller
+	 */
+	private void sendSegment(Segment seg) throws IOException {
+		seg.setTransferId(transferId);
+		DatagramPacket packet;
+		if (wireVersion == WireFormat.LEGACY) {
+			byte[] bytes = WireFormat.serialize(seg);
+			packet = new DatagramPacket(bytes, bytes.length, ipAddress, portNumber);
+		} else {
+			ByteBuffer raw = seg.getData();
+			if (compress && raw != null && compression == null) {
+				compression = new Compression(maxPayload);
+			}
+			ByteBuffer deflated = compress && raw != null ? compression.deflate(raw) : null;
+			if (deflated != null) {
+				seg.setData(deflated);
+				seg.setDeflated(true);
+				if (Log.isTrace()) {
+					Log.trace("SENDER --> Payload deflated from " + raw.remaining() + " to " + deflated.remaining() + " bytes");
+				}
+			}
+			int size = WireFormat.encodedSize(seg);
+			if (sendBuffer.capacity() < size) {
+				sendBuffer = ByteBuffer.allocate(size);
+			}
+			sendBuffer.clear();
+			WireFormat.encode(seg, sendBuffer);
+			packet = new DatagramPacket(sendBuffer.array(), sendBuffer.position(), ipAddress, portNumber);
+			if (deflated != null) {
+				// the segment keeps its raw payload, which is read into again or resent
+				seg.setData(raw);
+				seg.setDeflated(false);
+			}
+		}
+		socket.send(packet);
+		Metrics.segmentsSent.increment();
+		Metrics.bytesSent.add(seg.getSize());
+	}
+
+	/*
+	 * receives the next segment from the server in whichever wire format it arrives; a datagram
+	 * that does not decode was damaged on the way and is dropped like a lost one
+	 */
+	private Segment receiveSegment() throws IOException {
+		while (true) {
+			DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+			socket.receive(packet);
+			ByteBuffer datagram = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+			byte type = WireFormat.typeOf(datagram);
+			if (type == WireFormat.MSG_META_REPLY || type == WireFormat.MSG_PROBE_REPLY) {
+				continue;   // a repeated reply to the metadata or a late one to a probe
+			}
+			Segment seg;
+			try {
+				seg = WireFormat.decodeAny(datagram);
+			} catch (IOException e) {
+				if (Log.isTrace()) {
+					Log.trace("SENDER --> Dropping a malformed datagram: " + e.getMessage());
+				}
+				continue;
+			}
+			if (seg.getType() == SegmentType.Ack) {
+				Metrics.acksReceived.increment();
+			}
+			return seg;
+		}
+	}
+
+	/* selects the wire format: WireFormat.LEGACY for servers that only understand Java serialization */
+	public void setWireVersion(byte wireVersion) {
+		this.wireVersion = wireVersion;
+		if (wireVersion == WireFormat.LEGACY) {
+			this.checksum = Checksum.SUM;   // servers that only speak serialization only know the sum
+		}
+		sizeReceiveBuffer();
+	}
+
+	/* selects probing for the largest datagram size before the transfer, which then sets the payload size */
+	public void setProbe(boolean probe) {
+		this.probe = probe;
+	}
+
+	/* selects announcing a content hash, so the server resumes an earlier transfer of the same file (binary wire format only) */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/* selects sending only the differences to the server's old copy of the output file (binary wire format only) */
+	public void setDelta(boolean delta) {
+		this.delta = delta;
+	}
+
+	/* selects sending parity segments per group of segments, so the server rebuilds losses itself (gbn and sr, binary wire format only) */
+	public void setFec(int group, int parity) {
+		this.fecGroup = group;
+		this.fecParity = parity;
+	}
+
+	/*
+	 * the duplicate ACKs that trigger a fast retransmit. With parity the rest of the group and
+	 * its parity segments may still be on their way to rebuild the missing segment, so that
+	 * many more are waited for.
+	 */
+	private int duplicateAcks() {
+		return fecAccepted ? DUPLICATE_ACKS + fecGroup + fecParity : DUPLICATE_ACKS;
+	}
+
+	/* selects deflating binary payloads that shrink, for files that compress well on a slow link */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	/* selects congestion control of the window (true) or a window fixed at the size given (false) */
+	public void setAdaptiveWindow(boolean adaptiveWindow) {
+		this.adaptiveWindow = adaptiveWindow;
+	}
+
+	/* selects the algorithm of the segment checksums */
+	public void setChecksum(Checksum checksum) {
+		this.checksum = checksum;
+	}
+
+	/* sets the number of parallel streams the file is striped over (gbn and sr) */
+	public void setStreams(int streams) {
+		this.streams = streams;
+	}
+	public int getStreams() {
+		return streams;
+	}
+
+	/* sets the window size announced to the server in the metadata */
+	public void setWindow(int window) {
+		this.window = window;
+		sizeReceiveBuffer();
+	}
+
+	/* selects whether a reader thread reads the segments ahead of the sender (channel reads only) */
+	public void setPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	/* selects whether the input file is memory mapped or read with positional channel reads */
+	public void setMappedReader(boolean mappedReader) {
+		this.mappedReader = mappedReader && batch == null;   // a batch is read file by file
+	}
+
+	/* releases the input file and the socket once the transfer is over */
+	public void close() {
+		try {
+			if (prefetcher != null) {
+				prefetcher.close();
+			}
+			if (reader != null) {
+				reader.close();
+			}
+		} catch (IOException e) {
+			System.err.println("ERROR --> Cannot close the input file");
+		}
+		if (compression != null) {
+			compression.end();
+		}
+		socket.close();
+	}
+
+	/*
+	 * This method initialises ALL the attributes needed to allow the Protocol methods to work properly
+	 */
+	public void initProtocol(String hostName , String portNumber, String fileName, String outputFileName, String payloadSize, String mode) throws UnknownHostException, SocketException {
+		this.portNumber = Integer.parseInt(portNumber);
+		this.ipAddress = InetAddress.getByName(hostName);
+		this.socket = new DatagramSocket();
+		this.inputFile = checkFile(fileName);
+		this.inputFileName = fileName;
+		this.outputFileName =  outputFileName;
+		this.fileSize       =this.inputFile.length();
+		if (this.inputFile.isDirectory()) {
+			try {
+				this.batch = Batch.of(this.inputFile.toPath());
+				this.fileSize = batch.size();
+			} catch (IOException e) {
+				System.err.println("ERROR --> Cannot list the directory " + fileName + ": " + e.getMessage() + " (Terminating Client)");
+				System.exit(1);
+			}
+		}
+
+		this.remainingBytes = this.fileSize;
+		this.maxPayload = Integer.parseInt(payloadSize);
+		this.mode = mode;
+		this.wireVersion = WireFormat.VERSION;
+		this.checksum = Checksum.CRC32C;
+		this.adaptiveWindow = true;
+		this.resume = true;
+		this.prefetch = true;
+		this.transferId = ThreadLocalRandom.current().nextInt();
+		this.streams = 1;
+		this.stream = 0;
+		this.firstSegment = 0;
+		this.endSegment = -1;
+		this.sendBuffer = ByteBuffer.allocate(WireFormat.HEADER_SIZE + this.maxPayload);
+		sizeReceiveBuffer();
+		this.dataSeg = new Segment();
+		this.ackSeg = new Segment();
+
+		this.timeout = DEFAULT_TIMEOUT;
+		this.rtt = new RttEstimator(this.timeout * 1000L);
+		this.maxRetries = DEFAULT_RETRIES;
+
+		this.sentBytes = 0;
+		this.lossProb =0;
+		this.totalSegments =0;
+		this.resentSegments = 0;
+		this.currRetry = 0;
+	}
+
+	/* transfer the given file using the resources provided by the protocol
+	 *      attributes, according to the normal file transfer without timeout
+	 *      or retransmission (for part 2).
+	 */
+	public void sendFileNormal() throws IOException {
+		while (this.remainingBytes!=0) {
+			readData();
+			sendData();
+			if(!receiveAck(this.dataSeg.getSq()))  System.exit(0);
+		}
+		Log.info("Total Segments "+ this.totalSegments );
+	}
+
+	/* calculate the segment checksum by adding the payload
+	 * Parameters:
+	 * payload - the payload string
+	 * corrupted - a boolean to indicate whether the checksum should be corrupted
+	 *      to simulate a network error
+	 *
+	 * Return:
+	 * An integer value calculated from the payload of a segment
+	 */
+	public static int checksum(String payload, Boolean corrupted)
+	{
+		if (!corrupted)
+		{
+			int i;
+
+			int sum = 0;
+			for (i = 0; i < payload.length(); i++)
+				sum += (int)payload.charAt(i);
+			return sum;
+		}
+		return 0;
+	}
+
+	/* used by Client.java to set the loss probability (for part 3)*/
+	public void setLossProb(float loss) {
+		this.lossProb = loss;
+	}
+
+	/*
+	 * returns true with the given probability
+	 *
+	 * The result can be passed to the checksum function to "corrupt" a
+	 * checksum with the given probability to simulate network errors in
+	 * file transfer.
+	 *
+	 */
+	private static Boolean isCorrupted(float prob) {
+
+		double randomValue = Math.random();  //0.0 to 99.9
+		return randomValue <= prob;
+	}
+
+	/* check if the input file does exist before sending it */
+	private static File checkFile(String fileName)
+	{
+		File file = new File(fileName);
+		if(!file.exists()) {
+			System.out.println("SENDER: File does not exists");
+			System.out.println("SENDER: Exit ..");
+			System.exit(0);
+		}
+		return file;
+	}
+}
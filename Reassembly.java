@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Bounded off-heap staging of the segments that arrive ahead of the next one
+ * a stream expects in order.
+ *
+ * Every stream owns a fixed number of slots of one segment each in a single
+ * direct buffer, and a segment goes into slot index % slots. Only segments
+ * less than slots ahead of the expected one are held, so two of them never
+ * share a slot, holding one allocates nothing and the payloads stay out of
+ * the Java heap. Once the gap before them is filled they are taken out in
+ * order and written, so each stream writes its part of the file front to back
+ * and a held payload no longer depends on the receive buffer it came in.
+ *
+ * A Transfer uses it from one thread at a time.
+ */
+final class Reassembly {
+
+	static final int MAX_BYTES = 16 << 20;   // most payload bytes held for one transfer
+
+	private final ByteBuffer buffer;   // slots of all streams, slots of stream s from s * slots on
+	private final int slots;           // slots per stream
+	private final int slotSize;        // largest payload of a slot
+	private final int[] held;          // segment index in each slot, -1 for an empty one
+	private final int[] length;        // payload length in each slot
+
+	Reassembly(int streams, int window, int slotSize) {
+		this.slots = Math.max(1, Math.min(window, MAX_BYTES / streams / slotSize));
+		this.slotSize = slotSize;
+		this.buffer = ByteBuffer.allocateDirect(streams * slots * slotSize);
+		this.held = new int[streams * slots];
+		this.length = new int[streams * slots];
+		Arrays.fill(held, -1);
+	}
+
+	/* how far ahead of the expected segment of a stream one is held */
+	int slots() {
+		return slots;
+	}
+
+	/* copies the payload of the given segment into its slot; the caller keeps it within slots of the expected one */
+	void hold(int stream, int index, ByteBuffer payload) {
+		int slot = stream * slots + index % slots;
+		int size = Math.min(payload.remaining(), slotSize);
+		buffer.put(slot * slotSize, payload, payload.position(), size);
+		held[slot] = index;
+		length[slot] = size;
+	}
+
+	/* whether the given segment of a stream is held */
+	boolean holds(int stream, int index) {
+		return held[stream * slots + index % slots] == index;
+	}
+
+	/* the payload of the given segment of a stream, left in its slot, or null if it is not held */
+	ByteBuffer peek(int stream, int index) {
+		int slot = stream * slots + index % slots;
+		return held[slot] == index ? buffer.slice(slot * slotSize, length[slot]) : null;
+	}
+
+	/* takes the given segment of a stream out and returns its payload, valid until the slot is used again, or null if it is not held */
+	ByteBuffer take(int stream, int index) {
+		int slot = stream * slots + index % slots;
+		if (held[slot] != index) {
+			return null;
+		}
+		held[slot] = -1;
+		return buffer.slice(slot * slotSize, length[slot]);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Estimates the round trip time of a transfer and derives the retransmission
+ * timeout from it, following Jacobson/Karels as specified in RFC 6298:
+ *
+ *      srtt   = 7/8 srtt + 1/8 sample
+ *      rttvar = 3/4 rttvar + 1/4 |srtt - sample|
+ *      rto    = srtt + 4 rttvar
+ *
+ * Every timeout doubles the rto (exponential backoff) until the next valid
+ * sample. By Karn's rule the caller must not sample segments that were
+ * retransmitted, since their ACK may belong to either transmission.
+ * The rto is kept between MIN_RTO and the maximum given by the protocol.
+ */
+public class RttEstimator {
+
+	static final long INITIAL_RTO = 1000;   // rto in milliseconds before the first sample
+	static final long MIN_RTO = 10;         // lower bound in milliseconds, the resolution of the protocol timers
+
+	private final long maxRto;       // upper bound of the rto in milliseconds
+	private double srtt = -1;        // smoothed rtt in milliseconds, negative until the first sample
+	private double rttvar;           // rtt variation in milliseconds
+	private double minRtt = -1;      // smallest sample in milliseconds, negative until the first sample
+	private long rto;                // current retransmission timeout in milliseconds
+
+	public RttEstimator(long maxRto) {
+		this.maxRto = maxRto;
+		this.rto = Math.min(INITIAL_RTO, maxRto);
+	}
+
+	/* records the round trip time of a segment that was sent exactly once */
+	public void sample(long rttNanos) {
+		double r = rttNanos / 1e6;
+		minRtt = minRtt < 0 ? r : Math.min(minRtt, r);
+		if (srtt < 0) {
+			srtt = r;
+			rttvar = r / 2;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - r);
+			srtt = 0.875 * srtt + 0.125 * r;
+		}
+		rto = clamp((long) Math.ceil(srtt + 4 * rttvar));
+	}
+
+	/* doubles the timeout after a retransmission timer expired */
+	public void backoff() {
+		rto = clamp(rto * 2);
+	}
+
+	/* the current retransmission timeout in milliseconds */
+	public long timeout() {
+		return rto;
+	}
+
+	/* the smoothed round trip time in milliseconds, or -1 before the first sample */
+	public double srtt() {
+		return srtt;
+	}
+
+	/* the smallest round trip time seen in milliseconds, or -1 before the first sample */
+	public double minRtt() {
+		return minRtt;
+	}
+
+	private long clamp(long millis) {
+		return Math.max(MIN_RTO, Math.min(maxRto, millis));
+	}
+}
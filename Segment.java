@@ -1,53 +1,96 @@
-/******** DO NOT EDIT THIS FILE ********/
-import java.io.Serializable;
-
-//Segment type - either Data segment or Acknowledgment segment
-enum SegmentType {
-	Data, Ack 
-}
-
-/* 
- * segment definition for the client to transfer a payload of data to 
- * the server or for the server to respond with an ACK - the type determines
- * which segment it is
- */
-public class Segment implements Serializable {
-
-	private static final long serialVersionUID = 1L;
-	private int size;            //size of the payload
-	private int sq;              //sequence number of segment
-	private SegmentType type;    //segment type
-	private String payLoad;      //payload data (file content in chunks)
-	private int checksum;        //checksum of payload
-
-	public int getSize() {
-		return size;
-	}
-	public void setSize(int size) {
-		this.size = size;
-	}
-	public int getSq() {
-		return sq;
-	}
-	public void setSq(int sq) {
-		this.sq = sq;
-	}
-	public SegmentType getType() {
-		return type;
-	}
-	public void setType(SegmentType type) {
-		this.type = type;
-	}
-	public String getPayLoad() {
-		return payLoad;
-	}
-	public void setPayLoad(String payLoad) {
-		this.payLoad = payLoad;
-	}
-	public int getChecksum() {
-		return checksum;
-	}
-	public void setChecksum(int checksum) {
-		this.checksum = checksum;
-	}
-}
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+//Segment type - either Data segment or Acknowledgment segment
+enum SegmentType {
+	Data, Ack 
+}
+
+/* 
+ * segment definition for the client to transfer a payload of data to 
+ * the server or for the server to respond with an ACK - the type determines
+ * which segment it is
+ */
+public class Segment implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private int size;            //size of the payload
+	private int sq;              //sequence number of segment
+	private SegmentType type;    //segment type
+	private String payLoad;      //payload data (file content in chunks)
+	private int checksum;        //checksum of payload
+	private long offset;         //offset of the payload in the file
+	private transient ByteBuffer data; //raw payload bytes (binary wire format only, payLoad is unused then)
+	private BitSet sack;         //selective ACK: bit i set if segment sq+1+i was received out of order
+	private int transferId;      //transfer the segment belongs to, so a server can tell concurrent transfers apart
+	private transient boolean deflated; //data holds the payload compressed with raw deflate, size is its length inflated
+	private transient boolean parity;   //a parity segment of the group starting at offset, sq is its class (see Fec)
+
+	public int getSize() {
+		return size;
+	}
+	public void setSize(int size) {
+		this.size = size;
+	}
+	public int getSq() {
+		return sq;
+	}
+	public void setSq(int sq) {
+		this.sq = sq;
+	}
+	public SegmentType getType() {
+		return type;
+	}
+	public void setType(SegmentType type) {
+		this.type = type;
+	}
+	public String getPayLoad() {
+		return payLoad;
+	}
+	public void setPayLoad(String payLoad) {
+		this.payLoad = payLoad;
+	}
+	public int getChecksum() {
+		return checksum;
+	}
+	public void setChecksum(int checksum) {
+		this.checksum = checksum;
+	}
+	public long getOffset() {
+		return offset;
+	}
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+	public ByteBuffer getData() {
+		return data;
+	}
+	public void setData(ByteBuffer data) {
+		this.data = data;
+	}
+	public BitSet getSack() {
+		return sack;
+	}
+	public void setSack(BitSet sack) {
+		this.sack = sack;
+	}
+	public int getTransferId() {
+		return transferId;
+	}
+	public void setTransferId(int transferId) {
+		this.transferId = transferId;
+	}
+	public boolean isDeflated() {
+		return deflated;
+	}
+	public void setDeflated(boolean deflated) {
+		this.deflated = deflated;
+	}
+	public boolean isParity() {
+		return parity;
+	}
+	public void setParity(boolean parity) {
+		this.parity = parity;
+	}
+}
@@ -0,0 +1,162 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32C;
+
+/*
+ * Reads the input file in fixed size segments through a single FileChannel
+ * that stays open for the whole transfer.
+ *
+ * Segments are addressed by index, so a retransmission or a GoBackN rewind
+ * can re-read any segment without re-opening the file. In mapped mode the
+ * file is mapped in regions that hold a whole number of segments, so no
+ * segment ever straddles two regions. Reads never move a shared position
+ * and are safe to issue from several threads; a region is mapped by the
+ * first thread that needs it and published to the others atomically.
+ *
+ * The segments of a Batch are cut from its files concatenated, and read
+ * through the batch instead of a channel of their own; a batch is never mapped.
+ */
+final class SegmentReader implements Closeable {
+
+	static final int HASH_BUFFER = 1 << 20;   // bytes read at a time while hashing the file
+
+	private final FileChannel channel;          // the input file, null for a batch
+	private final Batch batch;                  // the files of a batch, null for a single file
+	private final long fileSize;
+	private final int segmentSize;
+	private final long regionSize;              // bytes per mapped region, a multiple of segmentSize
+	private final AtomicReferenceArray<MappedByteBuffer> regions;   // lazily mapped regions, null in channel mode
+
+	public SegmentReader(File file, int segmentSize, boolean mapped) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.batch = null;
+		this.fileSize = channel.size();
+		this.segmentSize = segmentSize;
+		this.regionSize = (Integer.MAX_VALUE / segmentSize) * (long) segmentSize;
+		this.regions = mapped ? new AtomicReferenceArray<>((int) ((fileSize + regionSize - 1) / regionSize)) : null;
+	}
+
+	public SegmentReader(Batch batch, int segmentSize) {
+		this.channel = null;
+		this.batch = batch;
+		this.fileSize = batch.size();
+		this.segmentSize = segmentSize;
+		this.regionSize = (Integer.MAX_VALUE / segmentSize) * (long) segmentSize;
+		this.regions = null;
+	}
+
+	/* the number of segments in the file */
+	public int segmentCount() {
+		return (int) ((fileSize + segmentSize - 1) / segmentSize);
+	}
+
+	/* the file offset of the first byte of the given segment */
+	public long offsetOf(int index) {
+		return (long) index * segmentSize;
+	}
+
+	/* the number of payload bytes in the given segment */
+	public int sizeOf(int index) {
+		return (int) Math.min(segmentSize, fileSize - offsetOf(index));
+	}
+
+	/*
+	 * copies the given segment into dst at its position and returns the number
+	 * of bytes read, or -1 if the index is past the end of the file
+	 */
+	public int read(int index, ByteBuffer dst) throws IOException {
+		if (index < 0 || index >= segmentCount()) {
+			return -1;
+		}
+		int size = sizeOf(index);
+		if (regions != null) {
+			dst.put(slice(index));
+			return size;
+		}
+
+		long position = offsetOf(index);
+		int limit = dst.limit();
+		dst.limit(dst.position() + size);
+		try {
+			if (batch != null && batch.read(dst, position) < size) {
+				throw new IOException("Input file shrank during the transfer");
+			}
+			while (dst.hasRemaining()) {
+				int n = channel.read(dst, position);
+				if (n < 0) {
+					throw new IOException("Input file shrank during the transfer");
+				}
+				position += n;
+			}
+		} finally {
+			dst.limit(limit);
+		}
+		return size;
+	}
+
+	/* returns a read-only view of the given segment of the mapped file, without copying */
+	public ByteBuffer slice(int index) throws IOException {
+		if (regions == null) {
+			throw new IllegalStateException("Reader is not in mapped mode");
+		}
+		int region = (int) (offsetOf(index) / regionSize);
+		MappedByteBuffer map = regions.get(region);
+		if (map == null) {
+			long start = region * regionSize;
+			map = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, fileSize - start));
+			if (!regions.compareAndSet(region, null, map)) {
+				map = regions.get(region);   // another thread mapped it first, its mapping is unmapped once unreachable
+			}
+		}
+		return map.slice((int) (offsetOf(index) - region * regionSize), sizeOf(index)).asReadOnlyBuffer();
+	}
+
+	/* copies the file from the given offset into dst until it is full or the file ends, and returns the number of bytes read */
+	public int readAt(long position, ByteBuffer dst) throws IOException {
+		if (batch != null) {
+			return batch.read(dst, position);
+		}
+		int read = 0;
+		while (dst.hasRemaining()) {
+			int n = channel.read(dst, position + read);
+			if (n < 0) {
+				break;
+			}
+			read += n;
+		}
+		return read;
+	}
+
+	/* CRC32C of the whole file, which identifies its content to a server that resumes transfers */
+	public int contentHash() throws IOException {
+		CRC32C crc = new CRC32C();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER);
+		long position = 0;
+		while (position < fileSize) {
+			buffer.clear();
+			int n = batch != null ? batch.read(buffer, position) : channel.read(buffer, position);
+			if (n < 0) {
+				throw new IOException("Input file shrank while hashing it");
+			}
+			position += n;
+			buffer.flip();
+			crc.update(buffer);
+		}
+		return (int) crc.getValue();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (batch != null) {
+			batch.close();
+			return;
+		}
+		channel.close();
+	}
+}
@@ -1,158 +1,207 @@
-/******** DO NOT EDIT THIS FILE ********/
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-
-/*
- * This file contains the main method for the server.
- * Do NOT change anything in this file.
- * 
- * start server as:
- *      
- *      java Server <port number>
- *
- * where port number is a port for the server to listen on in the range 1025 to 65535
- */
-
-
-public class Server {
-	public static final String ANSI_PURPLE = "\u001B[35m"; 
-	public static final String RESET = "\033[0m";  // Text Reset
-
-	DatagramSocket socket = null;
-	long totalBytes =0;
-	String outputFileName;
-
-	/* the main method  */
-	public static void main(String[] args) throws IOException, InterruptedException {
-		if (args.length < 1) {
-			System.err.println("Usage: java Server <port number>");
-			System.err.println("port number: is a positive number in the range 1025 to 65535");
-			System.exit(1);
-		} 
-
-		Server server = new Server();
-		int portNumber = Integer.parseInt(args[0]);
-		// create a socket  
-		server.socket = new DatagramSocket(portNumber); 
-
-		System.out.println("SERVER: binding ... Ready to receive meta info from the client "); 
-		System.out.println("------------------------------------------------------------------");
-		System.out.println("------------------------------------------------------------------");
-		server.ReceiveMetaData();
-
-		System.out.println("------------------------------------------------------------------");
-		System.out.println("------------------------------------------------------------------");
-		System.out.println("SERVER: Waiting for the actual file .."); 
-		System.out.println("------------------------------------------------------------------");
-		server.receiveFile(); 
-	}
-
-	/* Receive the file in chuncks on the given socket from the client */
-	public void receiveFile() throws IOException {
-		FileWriter myWriter = new FileWriter(outputFileName);
-		int currentTotal =0;
-		byte[] incomingData = new byte[1024];
-		Segment dataSeg = new Segment(); 
-
-		// while still receiving segments  
-		while (currentTotal < totalBytes) {
-			DatagramPacket incomingPacket = new DatagramPacket(incomingData, incomingData.length);
-
-			// receive from the client    
-			socket.receive(incomingPacket);
-
-			byte[] data = incomingPacket.getData();
-			ByteArrayInputStream in = new ByteArrayInputStream(data);
-			ObjectInputStream is = new ObjectInputStream(in);
-
-			// read and print the content of the segment
-			try {
-				dataSeg = (Segment) is.readObject(); 
-				System.out.println("SERVER: A Segment with sq "+ dataSeg.getSq()+" is received: "); 
-				System.out.println("\tINFO: size "+ dataSeg.getSize() +", checksum "+ dataSeg.getChecksum()+", content ("+dataSeg.getPayLoad()+")" );
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-			}
-
-			// extract the client IP address and port number
-			InetAddress IPAddress = incomingPacket.getAddress();
-			int port = incomingPacket.getPort();
-
-			// calculate the checksum, the checksum is not corrupted
-			int x = Protocol.checksum(dataSeg.getPayLoad(), false);
-
-			// if the calculated checksum is same as that of received checksum then send corresponding ack
-			if(x == dataSeg.getChecksum()){
-				System.out.println("SERVER: Calculated checksum is " + x + "  VALID");
-				Segment ackSeg = new Segment();
-
-				// prepare the Ack segment  
-				ackSeg.setSq(dataSeg.getSq()); 
-				ackSeg.setType(SegmentType.Ack);
-				System.out.println("SERVER: Sending an ACK with sq " + ackSeg.getSq());
-
-				ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-				ObjectOutputStream os = new ObjectOutputStream(outputStream);
-				os.writeObject(ackSeg);			
-				byte[] dataAck = outputStream.toByteArray();			
-				DatagramPacket replyPacket = new DatagramPacket(dataAck, dataAck.length, IPAddress, port);
-
-				// send the Ack segment 
-				socket.send(replyPacket);
-
-				// write the payload of the data segment to output file  
-				myWriter.write(dataSeg.getPayLoad());
-				currentTotal = currentTotal + dataSeg.getSize();
-
-				System.out.println("\t\t>>>>>>> NETWORK: ACK is sent successfully <<<<<<<<<");
-				System.out.println("------------------------------------------------");
-				System.out.println("------------------------------------------------");
-			}
-			else
-			{
-				System.out.println("SERVER: Calculated checksum is " + x + "  INVALID");
-				System.out.println("SERVER: Not sending any ACK ");
-				System.out.println("*************************** "); 
-			}
-		} 
-		System.out.println("SERVER: File copying complete\n"); 
-		myWriter.close();
-	}
-
-
-	/* Received meta data from the client */
-	public void ReceiveMetaData() throws IOException, InterruptedException {
-		MetaData metaData = new MetaData();
-
-		byte[] receive = new byte[65535];
-		DatagramPacket receiveMetaData = new DatagramPacket(receive, receive.length);
-
-		// receive from the client    
-		socket.receive(receiveMetaData);
-
-		byte[] data = receiveMetaData.getData();
-		ByteArrayInputStream in = new ByteArrayInputStream(data);
-		ObjectInputStream is = new ObjectInputStream(in);
-
-		try {
-			metaData = (MetaData) is.readObject();  
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		}
-
-		//extract the size of the file, the name of the output file and the size of the payload
-		totalBytes = metaData.getSize();
-		outputFileName = metaData.getName();
-		int maxSegSize = metaData.getMaxSegSize();
-
-		//print the expected number of segments
-		System.out.println("SERVER: Meta info are received successfully: (file name, size, expected number of Segments): ("+ metaData.getName()+", " + metaData.getSize()+", " + (int) Math.ceil((float)totalBytes/maxSegSize)+")");
-	}
-}
\ No newline at end of file
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/*
+ * This file contains the main method for the server.
+ * 
+ * start server as:
+ *      
+ *      java Server <port number> [single|nio|vt] [log=trace|info|quiet] [acks=N] [fsync=none|end|N] [metrics=FILE]
+ *
+ * where port number is a port for the server to listen on in the range 1025 to 65535
+ *      single receives one file and exits (default)
+ *      nio keeps running and receives any number of concurrent transfers on one
+ *          non-blocking channel
+ *      vt keeps running and receives every transfer on its own virtual thread
+ *      log=trace prints every segment and ACK (default), log=info one summary
+ *          per transfer, log=quiet warnings only
+ *      acks=N sends one cumulative ACK per N in-order segments of a gbn or sr
+ *          transfer, or after a short delay, instead of one ACK per segment
+ *      fsync=none|end|N forces received files to disk never (default), once
+ *          they are complete, or every N MB written
+ *      metrics=FILE registers the transfer metrics as a JMX MBean and writes
+ *          them to FILE as JSON every second and at exit
+ */
+
+
+public class Server {
+	public static final String ANSI_PURPLE = "\u001B[35m"; 
+	public static final String RESET = "\033[0m";  // Text Reset
+
+	static final String SINGLE_MODE = "single";  // receive one transfer on a blocking socket, then exit
+	static final String NIO_MODE = "nio";        // serve many transfers from one selector loop
+	static final String VT_MODE = "vt";          // serve many transfers with a (virtual) thread each
+	static final long IDLE_TIMEOUT = 30000;      // milliseconds without traffic before the transfer is abandoned
+
+	DatagramSocket socket = null;
+	Transfer transfer;   // the transfer announced by the metadata
+	int ackEvery = 1;    // in-order segments covered by one ACK (gbn and sr)
+	long syncEvery = DiskWriter.SYNC_NONE;   // sync policy of the output file (see DiskWriter)
+
+	/* the main method  */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: java Server <port number> [single|nio|vt] [log=trace|info|quiet] [acks=N] [fsync=none|end|N] [metrics=FILE]");
+			System.err.println("port number: is a positive number in the range 1025 to 65535");
+			System.err.println("single receives one file and exits|nio serves concurrent transfers until stopped|vt does so with a thread per transfer");
+			System.exit(1);
+		} 
+
+		int portNumber = Integer.parseInt(args[0]);
+		String mode = SINGLE_MODE;
+		int ackEvery = 1;
+		long syncEvery = DiskWriter.SYNC_NONE;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].startsWith("log=")) {
+				Log.setLevel(args[i].substring(4));
+			} else if (args[i].startsWith("acks=")) {
+				ackEvery = Integer.parseInt(args[i].substring(5));
+			} else if (args[i].startsWith("fsync=")) {
+				syncEvery = DiskWriter.syncPolicy(args[i].substring(6));
+			} else if (args[i].startsWith("metrics=")) {
+				Metrics.publish(args[i].substring(8));
+			} else {
+				mode = args[i];
+			}
+		}
+		if (mode.equalsIgnoreCase(NIO_MODE)) {
+			new NioServer(portNumber, ackEvery, syncEvery).run();
+			return;
+		}
+		if (mode.equalsIgnoreCase(VT_MODE)) {
+			new VirtualThreadServer(portNumber, ackEvery, syncEvery).run();
+			return;
+		}
+		if (!mode.equalsIgnoreCase(SINGLE_MODE)) {
+			System.err.println("Error! mode is not recognised");
+			System.exit(1);
+		}
+
+		Server server = new Server();
+		server.ackEvery = ackEvery;
+		server.syncEvery = syncEvery;
+		// create a socket  
+		server.socket = new DatagramSocket(portNumber); 
+
+		Log.info("SERVER: binding ... Ready to receive meta info from the client "); 
+		Log.info("------------------------------------------------------------------");
+		Log.info("------------------------------------------------------------------");
+		server.ReceiveMetaData();
+
+		Log.info("------------------------------------------------------------------");
+		Log.info("------------------------------------------------------------------");
+		Log.info("SERVER: Waiting for the actual file .."); 
+		Log.info("------------------------------------------------------------------");
+		server.receiveFile(); 
+		Log.flush();
+	}
+
+	/* Receive the file in chuncks on the given socket from the client */
+	public void receiveFile() throws IOException {
+		byte[] incomingData = new byte[transfer.getMaxDatagram()];
+
+		// while still receiving segments  
+		while (!transfer.isComplete()) {
+			DatagramPacket incomingPacket = new DatagramPacket(incomingData, incomingData.length);
+
+			// receive from the client, until a delayed ACK is due or the client has gone quiet
+			long deadline = transfer.nextAckDeadline();
+			socket.setSoTimeout((int) Math.max(1, (deadline < 0 ? transfer.getLastActivity() + IDLE_TIMEOUT : deadline) - System.currentTimeMillis()));
+			try {
+				socket.receive(incomingPacket);
+			} catch (SocketTimeoutException e) {
+				Transfer.Ack ack = transfer.pollDelayedAck(System.currentTimeMillis());
+				if (ack != null) {
+					ByteBuffer dataAck = transfer.encode(ack.segment);
+					socket.send(new DatagramPacket(dataAck.array(), dataAck.remaining(), ack.to));
+				} else if (System.currentTimeMillis() - transfer.getLastActivity() >= IDLE_TIMEOUT) {
+					// keep the journal, so the client can resume the transfer against a new server
+					Log.warn("SERVER: Abandoning idle transfer of " + transfer.getOutputFileName() + " after " + transfer.getCurrentTotal() + " bytes");
+					transfer.close();
+					return;
+				}
+				continue;
+			}
+
+			ByteBuffer data = ByteBuffer.wrap(incomingPacket.getData(), 0, incomingPacket.getLength());
+			if (WireFormat.isProbe(data)) {
+				reply(WireFormat.replyToProbe(data), incomingPacket);
+				continue;
+			}
+			if (WireFormat.isDelta(data)) {
+				reply(transfer.delta(data), incomingPacket);
+				continue;
+			}
+			Segment dataSeg;
+			try {
+				Object message = WireFormat.decode(data);
+				if (message instanceof MetaData) {
+					// the reply to the metadata was lost, or another stream of the transfer joins
+					reply(transfer.reply((MetaData) message), incomingPacket);
+					continue;
+				}
+				dataSeg = (Segment) message;
+			} catch (IOException e) {
+				Log.trace("SERVER: Dropping undecodable segment: " + e.getMessage());
+				continue;
+			}
+
+			// write the segment and send the Ack segment back to the client IP address and port number
+			Segment ackSeg = transfer.receive(dataSeg, incomingPacket.getSocketAddress());
+			if (ackSeg != null) {
+				ByteBuffer dataAck = transfer.encode(ackSeg);
+				socket.send(new DatagramPacket(dataAck.array(), dataAck.remaining(), incomingPacket.getAddress(), incomingPacket.getPort()));
+
+				if (Log.isTrace()) {
+					Log.trace("\t\t>>>>>>> NETWORK: ACK is sent successfully <<<<<<<<<");
+					Log.trace("------------------------------------------------");
+					Log.trace("------------------------------------------------");
+				}
+			}
+		} 
+		// the other streams of a striped transfer may still wait for their last ACK
+		Transfer.Ack ack;
+		while ((ack = transfer.pollDelayedAck(Long.MAX_VALUE)) != null) {
+			ByteBuffer dataAck = transfer.encode(ack.segment);
+			socket.send(new DatagramPacket(dataAck.array(), dataAck.remaining(), ack.to));
+		}
+		Log.info("SERVER: File copying complete\n"); 
+		transfer.close();
+	}
+
+
+	/* Received meta data from the client */
+	public void ReceiveMetaData() throws IOException, InterruptedException {
+		byte[] receive = new byte[65535];
+		DatagramPacket receiveMetaData = new DatagramPacket(receive, receive.length);
+
+		// receive from the client, answering the probes that look for the largest datagram size
+		ByteBuffer data;
+		while (true) {
+			socket.receive(receiveMetaData);
+			data = ByteBuffer.wrap(receiveMetaData.getData(), 0, receiveMetaData.getLength());
+			if (!WireFormat.isProbe(data)) {
+				break;
+			}
+			reply(WireFormat.replyToProbe(data), receiveMetaData);
+		}
+
+		// the first byte tells whether the client speaks the binary format or Java serialization
+		byte wireVersion = WireFormat.versionOf(data);
+		MetaData metaData = WireFormat.decodeAnyMetaData(data);
+
+		//extract the size of the file, the name of the output file and the size of the payload
+		transfer = new Transfer(metaData, wireVersion, ackEvery, syncEvery);
+		reply(transfer.reply(metaData), receiveMetaData);
+	}
+
+	/* sends a reply to where the given packet came from, if there is one */
+	private void reply(ByteBuffer reply, DatagramPacket packet) throws IOException {
+		if (reply != null) {
+			socket.send(new DatagramPacket(reply.array(), reply.remaining(), packet.getAddress(), packet.getPort()));
+		}
+	}
+}
@@ -0,0 +1,39 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Executors that run every task on its own thread, for one thread per transfer.
+ *
+ * On a JDK with virtual threads (21 and later) each task gets a virtual thread,
+ * so thousands of blocking transfers cost no platform thread each. The method
+ * is looked up reflectively so the code still compiles and runs on older JDKs,
+ * which fall back to a cached pool of daemon platform threads.
+ */
+final class Threads {
+
+	private Threads() {
+	}
+
+	/* an executor that starts a new (virtual if possible) thread for every task */
+	static ExecutorService perTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/* whether perTaskExecutor() hands out virtual threads on this JDK */
+	static boolean virtualThreadsAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+import java.util.Arrays;
+
+/*
+ * Hashed timing wheel that holds one retransmission timer per in-flight segment.
+ *
+ * Time is divided into ticks of tickMillis and each timer is filed in the slot
+ * of the tick it expires in, so scheduling is O(1) and expiring only looks at
+ * the slots of the ticks that have passed. A timer further away than one turn
+ * of the wheel simply stays in its slot until its tick comes round.
+ *
+ * Timers are not cancelled: the owner ignores expiries of segments that were
+ * acknowledged in the meantime. The wheel is not thread-safe, it is driven by
+ * the sending loop alone.
+ */
+public class TimerWheel {
+
+	private final long tickMillis;
+	private final long start;           // time of tick 0
+	private final long[][] slots;       // per slot: packed (tick << 32 | id) entries
+	private final int[] sizes;          // number of entries in each slot
+	private final int mask;
+	private long currentTick;           // the earliest tick that may still hold timers
+	private int count;                  // number of timers in the wheel
+
+	public TimerWheel(long tickMillis, int slotCount, long now) {
+		if (Integer.bitCount(slotCount) != 1) {
+			throw new IllegalArgumentException("slot count must be a power of two: " + slotCount);
+		}
+		this.tickMillis = tickMillis;
+		this.start = now;
+		this.slots = new long[slotCount][4];
+		this.sizes = new int[slotCount];
+		this.mask = slotCount - 1;
+	}
+
+	/* starts a timer for id that expires at the given time */
+	public void schedule(int id, long deadline) {
+		long tick = Math.max(currentTick, (deadline - start + tickMillis - 1) / tickMillis);
+		int slot = (int) (tick & mask);
+		if (sizes[slot] == slots[slot].length) {
+			slots[slot] = Arrays.copyOf(slots[slot], sizes[slot] * 2);
+		}
+		slots[slot][sizes[slot]++] = (tick << 32) | (id & 0xFFFFFFFFL);
+		count++;
+	}
+
+	/* returns the id of a timer that has expired by now and removes it, or -1 if none has */
+	public int poll(long now) {
+		long nowTick = (now - start) / tickMillis;
+		if (count == 0) {
+			currentTick = Math.max(currentTick, nowTick);
+			return -1;
+		}
+		while (count > 0 && currentTick <= nowTick) {
+			int slot = (int) (currentTick & mask);
+			long[] entries = slots[slot];
+			for (int i = 0; i < sizes[slot]; i++) {
+				if ((entries[i] >>> 32) <= currentTick) {
+					int id = (int) entries[i];
+					entries[i] = entries[--sizes[slot]];
+					count--;
+					return id;
+				}
+			}
+			currentTick++;
+		}
+		return -1;
+	}
+
+	/* the time of the next tick, when poll() may next find an expired timer */
+	public long nextTick(long now) {
+		long nowTick = (now - start) / tickMillis;
+		return start + (nowTick + 1) * tickMillis;
+	}
+
+	/* the number of timers that have not expired yet, including ones the owner no longer cares about */
+	public int size() {
+		return count;
+	}
+}
@@ -0,0 +1,1040 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+
+/*
+ * The receiving side of one file transfer: the output file, the byte counters
+ * and the expected sequence number of a single client.
+ *
+ * receive() takes a decoded data segment, writes what is acceptable to the
+ * output file and returns the ACK to send back, so the same state machine
+ * serves the blocking single-transfer server and the selector loop that
+ * multiplexes many transfers over one channel. Once the file is complete,
+ * receive() and delta() answer from the counters alone and touch neither the
+ * file nor its writer, so close() may run on another thread meanwhile.
+ *
+ * With delayed ACKs (ackEvery above 1, gbn and sr only) an in-order segment
+ * is not acknowledged at once: one cumulative ACK covers every ackEvery
+ * segments, or whatever arrived within ACK_DELAY. Anything that shows a gap,
+ * a duplicate or the end of the file is acknowledged at once as before. The
+ * server asks nextAckDeadline() when to call pollDelayedAck() for the rest.
+ *
+ * A binary transfer whose metadata carries a content hash keeps a Journal of
+ * the received segments, checkpointed every Journal.FLUSH_INTERVAL after the
+ * output file is forced to disk. Checkpoints run on a background thread from a
+ * snapshot of the received set, so the receive loop never waits for the disk.
+ * A later transfer of the same content to the
+ * same output file continues from the journal: every stream resumes after the
+ * received range that starts it, and the reply to its metadata tells the
+ * client that offset. The journal is removed once the file is complete.
+ *
+ * Segments are keyed by their index: the file offset of a binary segment, or
+ * the sequence number of a gbn or sr segment in the legacy format, whose string
+ * payloads carry no offset. With gbn and sr a segment ahead of the expected one
+ * is kept: it is staged in the Reassembly buffer while it fits, or else written
+ * at its position at once, and the received bitmap turns away duplicates. The
+ * staged segments are written in order once the gap before them is filled, and
+ * the cumulative ACK then covers them all. Only legacy nm and wt payloads are
+ * still appended in arrival order, with a repeat of the last sequence number
+ * taken for a retransmission.
+ *
+ * Payloads are written to the output by a DiskWriter on a thread of its own,
+ * so the thread that calls receive() goes back to the socket while the disk
+ * catches up; the writer forces the file to disk by the sync policy.
+ *
+ * A deflated payload is inflated before its checksum is checked, so the
+ * checksum still covers the bytes that end up in the file.
+ *
+ * When the client sends parity (gbn and sr, see Fec) a parity segment whose
+ * class misses exactly one member rebuilds it from the other members, taken
+ * from the staging buffer or read back from the output file, and the rebuilt
+ * segment is accepted as if it had arrived. A parity segment that arrives
+ * while its class still misses more than one member waits, up to
+ * MAX_PARITIES of them, until all but one have arrived.
+ *
+ * A batch writes a directory of files instead of one file (see Batch): the
+ * output name is the directory, and segments are only taken once every chunk
+ * of the manifest has arrived. A batch does not resume and is not sent as a
+ * delta.
+ *
+ * When the client asks for a delta and the output file exists already, the
+ * old file becomes the basis: its Delta signature is computed in the
+ * background and handed out by delta(), which also makes the copies the
+ * client then sends from the basis into a new file. The copies of a chunk are
+ * made in the background, so a large one does not hold up the other transfers,
+ * and the chunk is acknowledged once they are done and the CRC32C of the bytes
+ * copied equals the one the client computed over its own; segments of a chunk
+ * that does not match are refused and the client sends them. Copied segments
+ * count as received, so the client only sends the others. Once every byte is
+ * written the CRC32C of the new file is checked against the content hash of
+ * the client's file in the background, and the transfer only completes, with
+ * its last ACK or the answer to the chunk of copies that completed it, once
+ * the two match. A chunk of copies that completed a file that does not match
+ * is refused after all, so the client sends its segments; a file completed by
+ * segments that does not match is never acknowledged, so the client reports
+ * the failure instead of success. The new file replaces the old one once the
+ * transfer completes and is removed otherwise.
+ */
+public class Transfer implements Closeable {
+
+	static final long ACK_DELAY = 5;      // milliseconds an ACK may be held back, below the sender's smallest rto
+
+	static final String DELTA_SUFFIX = ".delta";   // appended to the output file name while a delta builds the new file
+	static final int MAX_PARITIES = 64;   // parity segments kept waiting for members of their class
+
+	private static final ExecutorService checkpoints = Threads.perTaskExecutor();   // forces output files, writes journals, hashes old files and checks new ones
+
+	/* the copies of one chunk, made in the background */
+	static final class Copies {
+		final int[] first;                // per copy: the first segment it makes
+		final int[] count;                // per copy: the segments it makes
+		final Future<Boolean> made;       // whether the bytes copied match the client's, once copied
+		int answer = -1;                  // the count answered to the chunk, -1 while copying or checking the file
+		boolean counted;                  // whether its segments count as received
+
+		Copies(int[] first, int[] count, Future<Boolean> made) {
+			this.first = first;
+			this.count = count;
+			this.made = made;
+		}
+	}
+
+	/* a delayed ACK and the address of the stream it goes to */
+	static final class Ack {
+		final Segment segment;
+		final SocketAddress to;
+
+		Ack(Segment segment, SocketAddress to) {
+			this.segment = segment;
+			this.to = to;
+		}
+	}
+
+	private final FileChannel output;     // the output file, null for a batch
+	private final String outputFileName;
+	private final long totalBytes;        // size of the file being received
+	private final byte wireVersion;       // wire format the client used for its metadata, ACKs are sent back in the same format
+	private final int transferId;         // id the client picked for this transfer, echoed in every ACK
+	private final int maxSegSize;         // payload size of every segment but the last
+	private final boolean selective;      // whether the client uses Selective Repeat, so out-of-order segments are kept
+	private final boolean windowed;       // whether the client uses gbn or sr, whose sq is the segment index and whose ACKs are cumulative
+	private final int window;             // the client's window, how far ahead of the expected segment one is kept
+	private final MetaData layout;        // how the segments are striped over the client's streams
+	private final Checksum checksum;      // algorithm the client computes segment checksums with
+	private final int maxDatagram;        // largest datagram of this transfer, the size of a receive buffer
+	private final int ackEvery;           // in-order segments covered by one ACK, 1 to acknowledge every segment
+	private final long syncEvery;         // sync policy of the output (see DiskWriter)
+	private final Journal journal;        // checkpoint of the received segments, null if the transfer cannot resume
+	private final int[] resumeIndex;      // per stream: the segment it resumed at, told to the client in every reply
+	private final FileChannel basis;      // the old output file a delta copies from, null without a delta
+	private final Future<Delta> signature;   // the signature of the basis, computed in the background
+	private final Map<Integer, Copies> copyChunks = new HashMap<>();   // chunks of copies started so far, by chunk, to answer repeats
+	private final int contentHash;        // CRC32C of the client's whole file, 0 if it sent none
+	private Future<Boolean> verifying;    // the check of a delta against the content hash, started once every byte is written
+	private boolean verified;             // whether the check passed, taken over by the thread that calls receive() and delta()
+	private final int fecGroup;           // segments per parity group, 0 if the client sends no parity
+	private final int fecParity;          // parity segments per group
+	private final Map<Long, ByteBuffer> parities = new HashMap<>();   // parity segments that cannot rebuild yet, by group start << 8 | class
+	private final boolean batched;        // whether the output is a directory of files sent as a batch
+	private final Map<Integer, ByteBuffer> manifest = new HashMap<>();   // chunks of the manifest of a batch received so far, by chunk
+	private Batch batch;                  // the files of a batch, created once its manifest is complete
+	private boolean closed;               // whether close() ran
+	private final Metrics.Receiving metrics;   // the counters of this transfer, listed while it is open
+
+	private long currentTotal;            // bytes written so far
+	private long expectedOffset;          // file offset of the next segment expected in order (legacy payloads only)
+	private final int[] expectedIndex;    // per stream: index of the next segment expected in order
+	private final int[] lastInOrderSq;    // per stream: sq of the last segment received in order, re-acknowledged for anything else
+	private final BitSet received = new BitSet();   // indexes of the segments written so far
+	private long lastActivity;            // when the last segment of this transfer arrived
+	private final int[] unacked;          // per stream: in-order segments received since the last ACK
+	private final long[] ackDeadline;     // per stream: when the delayed ACK is due
+	private final SocketAddress[] ackTo;  // per stream: where its ACKs go
+	private long lastCheckpoint;          // when the last checkpoint was started
+	private Future<?> checkpointing;      // the checkpoint in flight, if any
+	private Compression compression;      // inflates deflated payloads, created for the first one
+	private Reassembly staging;           // segments ahead of the expected ones (gbn and sr), created for the first one
+	private DiskWriter writer;            // writes the payloads to the output, created for the first one
+
+	public Transfer(MetaData metaData, byte wireVersion) throws IOException {
+		this(metaData, wireVersion, 1, DiskWriter.SYNC_NONE);
+	}
+
+	public Transfer(MetaData metaData, byte wireVersion, int ackEvery, long syncEvery) throws IOException {
+		this.outputFileName = metaData.getName();
+		this.totalBytes = metaData.getSize();
+		this.wireVersion = wireVersion;
+		this.transferId = metaData.getTransferId();
+		this.maxSegSize = metaData.getMaxSegSize();
+		this.selective = Protocol.SR_MODE.equals(metaData.getMode());
+		this.window = metaData.getWindow();
+		this.layout = metaData;
+		this.checksum = metaData.getChecksum();
+		this.maxDatagram = acceptedDatagram(metaData);
+		if (metaData.getStreams() < 1) {
+			metaData.setStreams(1);   // metadata of old clients has no stream count
+		}
+		this.windowed = selective || Protocol.GBN_MODE.equals(metaData.getMode());
+		boolean fec = windowed && wireVersion != WireFormat.LEGACY && metaData.getFecParity() > 0 && metaData.getFecParity() <= metaData.getFecGroup();
+		this.fecGroup = fec ? metaData.getFecGroup() : 0;
+		this.fecParity = fec ? metaData.getFecParity() : 0;
+		this.batched = wireVersion != WireFormat.LEGACY && metaData.isBatch();
+
+		// continue from the journal of an earlier transfer of the same content, as far as the file holds it
+		Path path = Paths.get(outputFileName);
+		Journal journal = !batched && wireVersion != WireFormat.LEGACY && metaData.getContentHash() != 0 ? new Journal(outputFileName, totalBytes, metaData.getContentHash()) : null;
+		long[] ranges = journal == null ? null : journal.load();
+		long existing = ranges != null && Files.exists(path) ? Files.size(path) : 0;
+
+		// or build the new file from the old one and the differences the client sends
+		boolean delta = existing == 0 && !batched && wireVersion != WireFormat.LEGACY && metaData.isDelta()
+				&& Files.isRegularFile(path) && Files.size(path) >= maxSegSize;
+		this.journal = delta ? null : journal;
+		this.basis = delta ? FileChannel.open(path, StandardOpenOption.READ) : null;
+		this.signature = delta ? checkpoints.submit(() -> Delta.of(basis, maxSegSize)) : null;
+		this.contentHash = metaData.getContentHash();
+
+		this.expectedIndex = new int[metaData.getStreams()];
+		this.lastInOrderSq = new int[metaData.getStreams()];
+		this.resumeIndex = new int[metaData.getStreams()];
+		for (int i = 0; i < expectedIndex.length; i++) {
+			int first = layout.firstSegmentOf(i);
+			int end = layout.firstSegmentOf(i + 1);
+			expectedIndex[i] = first;
+			if (existing > 0) {
+				// a stream that starts past the end of the file holds nothing yet
+				long covered = Math.max((long) first * maxSegSize, Math.min(Journal.coveredFrom(ranges, (long) first * maxSegSize), existing));
+				expectedIndex[i] = covered >= totalBytes ? end : (int) Math.min(covered / maxSegSize, end);
+				received.set(first, expectedIndex[i]);
+				currentTotal += Math.min((long) expectedIndex[i] * maxSegSize, totalBytes) - (long) first * maxSegSize;
+			}
+			resumeIndex[i] = expectedIndex[i];
+			// gbn and sr sqs are segment indexes, so nothing received yet is the segment before the stream's first
+			lastInOrderSq[i] = windowed ? expectedIndex[i] - 1 : -1;
+		}
+		// delay ACKs of window modes only, and never past half a window so the sender keeps going
+		this.ackEvery = windowed && wireVersion != WireFormat.LEGACY ? Math.max(1, Math.min(ackEvery, window / 2)) : 1;
+		this.syncEvery = syncEvery;
+		this.unacked = new int[expectedIndex.length];
+		this.ackDeadline = new long[expectedIndex.length];
+		this.ackTo = new SocketAddress[expectedIndex.length];
+		// parity rebuilds read members back from the file
+		this.output = batched ? null
+				: existing > 0
+				? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(delta ? Paths.get(outputFileName + DELTA_SUFFIX) : path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.lastActivity = System.currentTimeMillis();
+		this.lastCheckpoint = lastActivity;
+
+		//print the expected number of segments
+		if (Log.isInfo()) {
+			Log.info("SERVER: Meta info are received successfully: (file name, size, expected number of Segments): ("+ outputFileName +", " + totalBytes +", " + (int) Math.ceil((float)totalBytes/maxSegSize)+")");
+			Log.info("SERVER: Wire format " + (wireVersion == WireFormat.LEGACY ? "Java serialization" : "binary v" + wireVersion) + ", transfer id " + transferId + ", " + expectedIndex.length + " stream(s), checksum " + checksum + ", ACK every " + ackEvery + " segment(s)");
+			if (currentTotal > 0) {
+				Log.info("SERVER: Resuming from the journal with " + currentTotal + " of " + totalBytes + " bytes received");
+			}
+			if (delta) {
+				Log.info("SERVER: Building a delta against the old " + outputFileName + " of " + basis.size() + " bytes");
+			}
+			if (batched) {
+				Log.info("SERVER: Receiving a batch of files into the directory " + outputFileName);
+			}
+			if (fec) {
+				Log.info("SERVER: Rebuilding losses from " + fecParity + " parity segment(s) per " + fecGroup + " segments");
+			}
+		}
+		this.metrics = Metrics.open(transferId, outputFileName, totalBytes);
+	}
+
+	/*
+	 * handles one data segment from the given address and returns the ACK to send back,
+	 * or null if the checksum is invalid or the ACK is delayed
+	 */
+	public Segment receive(Segment dataSeg, SocketAddress from) throws IOException {
+		lastActivity = System.currentTimeMillis();
+		metrics.received(dataSeg.getSize());
+		if (Log.isTrace()) {
+			Log.trace("SERVER: A Segment with sq "+ dataSeg.getSq()+" is received: ");
+			Log.trace("\tINFO: size "+ dataSeg.getSize() +", offset "+ dataSeg.getOffset() +", checksum "+ dataSeg.getChecksum());
+		}
+		if (batched && batch == null) {
+			Log.trace("SERVER: The manifest of the batch is not complete yet, not sending any ACK");
+			return null;
+		}
+		if (isComplete()) {
+			// a retransmission whose ACK was lost, answered from the counters alone: the file
+			// may be closing on another thread meanwhile
+			Log.trace("SERVER: Transfer is complete, acknowledging a retransmission");
+			metrics.duplicate();
+			ackTo[0] = from;
+			return ack(0, dataSeg.getData() == null && !windowed);
+		}
+
+		if (dataSeg.isDeflated()) {
+			if (compression == null) {
+				compression = new Compression(maxSegSize);
+			}
+			try {
+				dataSeg.setData(compression.inflate(dataSeg.getData(), dataSeg.getSize()));
+			} catch (DataFormatException e) {
+				if (Log.isTrace()) {
+					Log.trace("SERVER: Cannot inflate the payload: " + e.getMessage() + ", not sending any ACK");
+				}
+				metrics.checksumFailure();
+				return null;
+			}
+		}
+
+		// a payload longer than a segment would spill over the next one
+		int length = dataSeg.getData() != null ? dataSeg.getData().remaining() : dataSeg.getPayLoad().length();
+		if (length > maxSegSize) {
+			if (Log.isTrace()) {
+				Log.trace("SERVER: Payload of " + length + " bytes is longer than a segment, not sending any ACK");
+			}
+			metrics.checksumFailure();
+			return null;
+		}
+
+		// calculate the checksum, the checksum is not corrupted
+		int x = checksum.of(dataSeg);
+		if (x != dataSeg.getChecksum()) {
+			if (Log.isTrace()) {
+				Log.trace("SERVER: Calculated checksum is " + x + "  INVALID");
+				Log.trace("SERVER: Not sending any ACK ");
+				Log.trace("*************************** ");
+			}
+			metrics.checksumFailure();
+			return null;
+		}
+		if (Log.isTrace()) {
+			Log.trace("SERVER: Calculated checksum is " + x + "  VALID");
+		}
+		if (dataSeg.isParity()) {
+			return parity(dataSeg, from);
+		}
+
+		int stream = 0;
+		boolean appended = dataSeg.getData() == null && !windowed;   // a legacy nm or wt payload, which has no position
+		boolean inOrder = false;   // whether the segment was the next one and left no gap behind
+		if (appended) {
+			// appended in arrival order; the alternating sq repeats only for a retransmission whose ACK was lost
+			if (dataSeg.getSq() == lastInOrderSq[0]) {
+				Log.trace("SERVER: Segment repeats the last sq, discarding");
+				metrics.duplicate();
+			} else {
+				ByteBuffer payload = ByteBuffer.wrap(dataSeg.getPayLoad().getBytes());
+				long position = expectedOffset;
+				expectedOffset += payload.remaining();
+				writer().write(payload, position);
+				currentTotal = currentTotal + dataSeg.getSize();
+				metrics.written(dataSeg.getSize());
+				lastInOrderSq[0] = dataSeg.getSq();
+			}
+		} else {
+			// the next segment in order within its stream is written, and with gbn and sr so is one
+			// further ahead within the window. Anything else is discarded and the last in-order
+			// segment of the stream is acknowledged again.
+			int index = dataSeg.getData() == null ? dataSeg.getSq() : (int) (dataSeg.getOffset() / maxSegSize);
+			ByteBuffer payload = dataSeg.getData() == null ? ByteBuffer.wrap(dataSeg.getPayLoad().getBytes()) : dataSeg.getData();
+			stream = streamOf(index);
+			int end = layout.firstSegmentOf(stream + 1);
+			int expected = expectedIndex[stream];
+			if (index < expected || received.get(index) || (staging != null && staging.holds(stream, index))) {
+				if (Log.isTrace()) {
+					Log.trace("SERVER: Segment " + index + " is a duplicate, discarding");
+				}
+				metrics.duplicate();
+			} else {
+				inOrder = accept(stream, index, dataSeg.getSq(), payload);
+			}
+		}
+
+		if (journal != null && !isComplete() && lastActivity - lastCheckpoint >= Journal.FLUSH_INTERVAL
+				&& (checkpointing == null || checkpointing.isDone())) {
+			BitSet written = (BitSet) received.clone();
+			checkpointing = checkpoints.submit(() -> checkpoint(written));
+			lastCheckpoint = lastActivity;
+		}
+
+		// the last ACK of a delta waits until the file is checked, the client sends the segment again meanwhile
+		if (unverified()) {
+			Arrays.fill(unacked, 0);
+			return null;
+		}
+
+		// hold back the ACK of an in-order segment until enough of them arrived or the delay is up
+		ackTo[stream] = from;
+		if (inOrder && ackEvery > 1 && !isComplete() && ++unacked[stream] < ackEvery) {
+			if (unacked[stream] == 1) {
+				ackDeadline[stream] = lastActivity + ACK_DELAY;
+			}
+			return null;
+		}
+		return ack(stream, appended);
+	}
+
+	/*
+	 * takes a segment that is not a duplicate: the next one in order within its stream is written,
+	 * and with gbn and sr so is one further ahead within the window. Anything else is discarded and
+	 * the last in-order segment of the stream is acknowledged again. Returns whether the segment was
+	 * the next one and left no gap behind.
+	 */
+	private boolean accept(int stream, int index, int sq, ByteBuffer payload) throws IOException {
+		int end = layout.firstSegmentOf(stream + 1);
+		int expected = expectedIndex[stream];
+		boolean inOrder = false;
+		if (index == expected && index < end) {
+			write(index, payload);
+			advance(stream);
+			lastInOrderSq[stream] = windowed ? expectedIndex[stream] - 1 : sq;
+			inOrder = expectedIndex[stream] == index + 1;
+		} else if (windowed && index < end && index < expected + window) {
+			if (staging == null) {
+				staging = new Reassembly(expectedIndex.length, window, maxSegSize);
+			}
+			if (index < expected + staging.slots()) {
+				staging.hold(stream, index, payload);
+			} else {
+				write(index, payload);   // beyond the staging buffer, written where it belongs at once
+			}
+			if (Log.isTrace()) {
+				Log.trace("SERVER: Segment " + index + " is ahead of segment " + expected + ", keeping it");
+			}
+		} else {
+			if (Log.isTrace()) {
+				Log.trace("SERVER: Segment " + index + " is out of order (expected segment " + expected + "), discarding");
+			}
+			return false;
+		}
+		if (!parities.isEmpty()) {
+			// a waiting parity segment of its class may rebuild the last missing member now
+			int start = Fec.groupStart(index, layout.firstSegmentOf(stream), fecGroup);
+			ByteBuffer sum = parities.get(parityKey(start, (index - start) % fecParity));
+			if (sum != null) {
+				rebuild(stream, start, (index - start) % fecParity, sum);
+			}
+		}
+		return inOrder;
+	}
+
+	/* handles a parity segment: returns the ACK if it rebuilt a missing segment, otherwise null */
+	private Segment parity(Segment paritySeg, SocketAddress from) throws IOException {
+		int start = (int) (paritySeg.getOffset() / maxSegSize);
+		int j = paritySeg.getSq();
+		if (fecGroup == 0 || isComplete() || paritySeg.getOffset() % maxSegSize != 0 || start < 0 || start >= layout.segmentCount()
+				|| j < 0 || j >= fecParity || paritySeg.getData() == null || paritySeg.getData().remaining() > maxSegSize) {
+			return null;
+		}
+		int stream = streamOf(start);
+		if (start != Fec.groupStart(start, layout.firstSegmentOf(stream), fecGroup)) {
+			return null;
+		}
+		ByteBuffer sum = ByteBuffer.allocate(maxSegSize);
+		sum.put(paritySeg.getData().duplicate());
+		if (!rebuild(stream, start, j, sum)) {
+			return null;
+		}
+		ackTo[stream] = from;
+		return ack(stream, false);
+	}
+
+	/*
+	 * rebuilds the one missing member of class j of the group from start on out of its parity
+	 * sum and accepts it. With more members missing the parity waits for them; returns
+	 * whether a member was rebuilt.
+	 */
+	private boolean rebuild(int stream, int start, int j, ByteBuffer sum) throws IOException {
+		int end = Math.min(start + fecGroup, layout.firstSegmentOf(stream + 1));
+		int missing = -1;
+		for (int i = start + j; i < end; i += fecParity) {
+			if (!received.get(i) && (staging == null || !staging.holds(stream, i))) {
+				if (missing >= 0) {
+					keepParity(parityKey(start, j), sum);
+					return false;
+				}
+				missing = i;
+			}
+		}
+		parities.remove(parityKey(start, j));
+		if (missing < 0) {
+			return false;
+		}
+		for (int i = start + j; i < end; i += fecParity) {
+			if (i != missing) {
+				ByteBuffer member = staging == null ? null : staging.peek(stream, i);
+				Fec.xor(sum, member != null ? member : readBack(i));
+			}
+		}
+		metrics.rebuilt();
+		if (Log.isTrace()) {
+			Log.trace("SERVER: Segment " + missing + " is rebuilt from parity " + j + " of the group from segment " + start);
+		}
+		accept(stream, missing, missing, sum.duplicate().position(0).limit(segmentLength(missing)));
+		return true;
+	}
+
+	/* keeps a parity segment that waits for members of its class, unless too many wait already */
+	private void keepParity(long key, ByteBuffer sum) {
+		if (parities.size() >= MAX_PARITIES && !parities.containsKey(key)) {
+			// forget the ones whose group was delivered in order meanwhile
+			parities.keySet().removeIf(k -> {
+				int start = (int) (k >>> 8);
+				return start + fecGroup <= expectedIndex[streamOf(start)];
+			});
+			if (parities.size() >= MAX_PARITIES) {
+				return;
+			}
+		}
+		parities.put(key, sum);
+	}
+
+	private static long parityKey(int start, int j) {
+		return (long) start << 8 | j;
+	}
+
+	/* the payload of a segment written to the output file already */
+	private ByteBuffer readBack(int index) throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(segmentLength(index));
+		long position = (long) index * maxSegSize;
+		if (writer != null) {
+			writer.drain();
+		}
+		if (batch != null) {
+			batch.read(payload, position);
+		} else {
+			while (payload.hasRemaining() && output.read(payload, position + payload.position()) >= 0) {
+			}
+		}
+		return payload.flip();
+	}
+
+	/* the payload size of the given segment, maxSegSize for all but the last */
+	private int segmentLength(int index) {
+		return (int) Math.min(maxSegSize, totalBytes - (long) index * maxSegSize);
+	}
+
+	/* writes the payload of the given segment at its position and counts it received */
+	private void write(int index, ByteBuffer payload) throws IOException {
+		long position = (long) index * maxSegSize;
+		currentTotal = currentTotal + payload.remaining();
+		metrics.written(payload.remaining());
+		writer().write(payload, position);
+		received.set(index);
+	}
+
+	/* the writer of the output, started for the first payload */
+	private DiskWriter writer() {
+		if (writer == null) {
+			writer = new DiskWriter(output, batch, syncEvery, maxSegSize, layout.segmentCount());
+		}
+		return writer;
+	}
+
+	/* moves the expected segment of a stream past the received ones, writing the staged ones on the way */
+	private void advance(int stream) throws IOException {
+		int end = layout.firstSegmentOf(stream + 1);
+		while (expectedIndex[stream] < end) {
+			int index = expectedIndex[stream];
+			ByteBuffer staged = staging == null ? null : staging.take(stream, index);
+			if (staged != null && !received.get(index)) {
+				write(index, staged);
+			} else if (!received.get(index)) {
+				break;
+			}
+			expectedIndex[stream]++;
+		}
+	}
+
+	/* when the earliest delayed ACK is due, or -1 if none is held back */
+	public long nextAckDeadline() {
+		long deadline = -1;
+		for (int i = 0; i < unacked.length; i++) {
+			if (unacked[i] > 0 && (deadline < 0 || ackDeadline[i] < deadline)) {
+				deadline = ackDeadline[i];
+			}
+		}
+		return deadline;
+	}
+
+	/* returns a delayed ACK that is due by now, or null if there is none */
+	public Ack pollDelayedAck(long now) {
+		if (basis != null && currentTotal >= totalBytes && !verified) {
+			Arrays.fill(unacked, 0);   // the last ACK of a delta waits for its check
+			return null;
+		}
+		for (int i = 0; i < unacked.length; i++) {
+			if (unacked[i] > 0 && ackDeadline[i] <= now) {
+				return new Ack(ack(i, false), ackTo[i]);
+			}
+		}
+		return null;
+	}
+
+	/* the ACK of the given stream, cumulative for everything it delivered in order */
+	private Segment ack(int stream, boolean appended) {
+		unacked[stream] = 0;
+		metrics.ackSent();
+		Segment ackSeg = new Segment();
+		ackSeg.setSq(lastInOrderSq[stream]);
+		ackSeg.setOffset(appended ? expectedOffset : Math.min((long) expectedIndex[stream] * maxSegSize, totalBytes));
+		ackSeg.setType(SegmentType.Ack);
+		ackSeg.setTransferId(transferId);
+		if (selective) {
+			// selective ACK: which segments after the cumulative one are held already
+			int from = expectedIndex[stream];
+			int to = Math.min(from + window, layout.firstSegmentOf(stream + 1));
+			BitSet sack = new BitSet(window);
+			for (int i = received.nextSetBit(from); i >= 0 && i < to; i = received.nextSetBit(i + 1)) {
+				sack.set(i - from);
+			}
+			for (int i = from + 1; staging != null && i < to && i < from + staging.slots(); i++) {
+				if (staging.holds(stream, i)) {
+					sack.set(i - from);
+				}
+			}
+			ackSeg.setSack(sack);
+		}
+		if (Log.isTrace()) {
+			Log.trace("SERVER: Sending an ACK with sq " + ackSeg.getSq());
+		}
+		return ackSeg;
+	}
+
+	/* the stream that sends the given segment */
+	private int streamOf(int index) {
+		int stream = expectedIndex.length - 1;
+		while (stream > 0 && index < layout.firstSegmentOf(stream)) {
+			stream--;
+		}
+		return stream;
+	}
+
+	/*
+	 * checks that an output name, a file or the directory of a batch, lies below the working
+	 * directory, so a client of a long-running server writes nowhere else
+	 */
+	static void checkOutputName(String name) throws IOException {
+		try {
+			Path root = Paths.get("").toAbsolutePath().normalize();
+			Path file = root.resolve(name).normalize();
+			if (name.isEmpty() || Paths.get(name).isAbsolute() || !file.startsWith(root) || file.equals(root)) {
+				throw new IOException("Invalid output file name: " + name);
+			}
+		} catch (InvalidPathException e) {
+			throw new IOException("Invalid output file name: " + name);
+		}
+	}
+
+	/* the largest datagram a server receives for the announced transfer; any size for old clients that do not say */
+	static int acceptedDatagram(MetaData metaData) {
+		return metaData.getMaxDatagram() > 0 ? Math.min(metaData.getMaxDatagram(), WireFormat.MAX_DATAGRAM) : WireFormat.MAX_DATAGRAM;
+	}
+
+	/*
+	 * the reply that confirms the metadata and the datagram size to the client and tells the stream
+	 * where to resume, sent again for every repeat of the metadata; null for clients that speak Java
+	 * serialization, which expect none
+	 */
+	public ByteBuffer reply(MetaData metaData) {
+		if (wireVersion == WireFormat.LEGACY) {
+			return null;
+		}
+		int stream = metaData.getStream();
+		long resume = stream >= 0 && stream < resumeIndex.length ? Math.min((long) resumeIndex[stream] * maxSegSize, totalBytes) : 0;
+		ByteBuffer reply = ByteBuffer.allocate(WireFormat.REPLY_SIZE);
+		short flags = (short) ((basis != null ? WireFormat.FLAG_DELTA : 0) | (fecGroup > 0 ? WireFormat.FLAG_FEC : 0) | (batched ? WireFormat.FLAG_BATCH : 0));
+		WireFormat.encodeReply(WireFormat.MSG_META_REPLY, flags, metaData.getTransferId(), acceptedDatagram(metaData), stream, resume, reply);
+		reply.flip();
+		return reply;
+	}
+
+	/*
+	 * answers a delta message: a request for a chunk of the signature of the old file, or a
+	 * chunk of copies, or a chunk of the manifest of a batch. Returns null for messages of a
+	 * transfer without a delta.
+	 *
+	 * The first request for a chunk of copies starts them in the background; the answer counts
+	 * -1 until they are made, and while the file they complete is checked, then the copies made,
+	 * or 0 if they were refused.
+	 */
+	public ByteBuffer delta(ByteBuffer request) throws IOException {
+		if (WireFormat.typeOf(request) == WireFormat.MSG_MANIFEST) {
+			return manifest(request);
+		}
+		if (basis == null) {
+			return null;
+		}
+		lastActivity = System.currentTimeMillis();
+		int chunk = WireFormat.deltaChunk(request);
+		ByteBuffer reply;
+		if (WireFormat.typeOf(request) == WireFormat.MSG_SIG_REQUEST) {
+			Delta delta = signature.isDone() && !signature.isCancelled() ? signature() : null;
+			int perChunk = (maxDatagram - WireFormat.DELTA_HEADER_SIZE) / WireFormat.SIGNATURE_ENTRY;
+			int from = delta == null ? 0 : Math.min((int) Math.min((long) chunk * perChunk, Integer.MAX_VALUE), delta.weak.length);
+			int to = delta == null ? 0 : Math.min(from + perChunk, delta.weak.length);
+			reply = ByteBuffer.allocate(WireFormat.DELTA_HEADER_SIZE + (to - from) * WireFormat.SIGNATURE_ENTRY);
+			WireFormat.encodeDeltaHeader(WireFormat.MSG_SIGNATURE, transferId, chunk, delta == null ? -1 : delta.weak.length, maxSegSize, reply);
+			for (int i = from; i < to; i++) {
+				reply.putInt(delta.weak[i]);
+				reply.putLong(delta.strong[i]);
+			}
+		} else if (WireFormat.typeOf(request) == WireFormat.MSG_COPY) {
+			if (isComplete() && !copyChunks.containsKey(chunk)) {
+				return null;   // no copy may start once the file is complete, it may be closing
+			}
+			int answer = copies(chunk, request);
+			reply = ByteBuffer.allocate(WireFormat.DELTA_HEADER_SIZE);
+			WireFormat.encodeDeltaHeader(WireFormat.MSG_COPY_ACK, transferId, chunk, answer, 0, reply);
+		} else {
+			return null;
+		}
+		reply.flip();
+		return reply;
+	}
+
+	/*
+	 * answers a chunk of the manifest of a batch; once every chunk has arrived segments are
+	 * taken. Returns null for a transfer that is not a batch.
+	 */
+	private ByteBuffer manifest(ByteBuffer request) throws IOException {
+		if (!batched) {
+			return null;
+		}
+		lastActivity = System.currentTimeMillis();
+		int chunk = WireFormat.deltaChunk(request);
+		int chunks = WireFormat.deltaCount(request);
+		if (batch == null && chunk >= 0 && chunk < chunks && !manifest.containsKey(chunk)) {
+			ByteBuffer entries = request.duplicate().position(request.position() + WireFormat.DELTA_HEADER_SIZE);
+			manifest.put(chunk, ByteBuffer.wrap(Arrays.copyOfRange(entries.array(), entries.arrayOffset() + entries.position(), entries.arrayOffset() + entries.limit())));
+			if (manifest.size() == chunks) {
+				List<String> names = new ArrayList<>();
+				List<Long> sizes = new ArrayList<>();
+				for (int i = 0; i < chunks; i++) {
+					Batch.decode(manifest.get(i), names, sizes);
+				}
+				manifest.clear();
+				long[] size = sizes.stream().mapToLong(Long::longValue).toArray();
+				if (Arrays.stream(size).sum() != totalBytes) {
+					throw new IOException("The manifest lists " + Arrays.stream(size).sum() + " bytes, the metadata " + totalBytes);
+				}
+				batch = new Batch(Paths.get(outputFileName), names.toArray(new String[0]), size, true);
+				if (syncEvery != DiskWriter.SYNC_NONE) {
+					batch.force();   // so files closed before a sync are forced too
+				}
+				Log.info("SERVER: Manifest of " + names.size() + " files received, " + totalBytes + " bytes in all");
+			}
+		}
+		ByteBuffer reply = ByteBuffer.allocate(WireFormat.DELTA_HEADER_SIZE);
+		WireFormat.encodeDeltaHeader(WireFormat.MSG_MANIFEST_ACK, transferId, chunk, 0, 0, reply);
+		reply.flip();
+		return reply;
+	}
+
+	/*
+	 * starts the copies of a chunk on its first request, and counts their segments received once
+	 * they are made and match the CRC32C the client sent along; returns the answer to the chunk.
+	 * A chunk that completes the file is answered once the file is checked, and refused if it
+	 * does not match, which counts its segments missing again.
+	 */
+	private int copies(int chunk, ByteBuffer request) throws IOException {
+		Copies copies = copyChunks.get(chunk);
+		if (copies == null) {
+			ByteBuffer entries = request.duplicate().position(request.position() + WireFormat.DELTA_HEADER_SIZE);
+			int n = entries.remaining() / WireFormat.COPY_ENTRY;
+			int[] first = new int[n];
+			int[] count = new int[n];
+			long[] source = new long[n];
+			for (int i = 0; i < n; i++) {
+				first[i] = entries.getInt();
+				count[i] = entries.getInt();
+				source[i] = entries.getLong();
+				long length = Math.min((long) count[i] * maxSegSize, totalBytes - (long) first[i] * maxSegSize);
+				if (first[i] < 0 || count[i] <= 0 || ((long) first[i] + count[i] - 1) * maxSegSize >= totalBytes || source[i] < 0 || source[i] + length > basis.size()) {
+					throw new IOException("Invalid copy of " + count[i] + " segments at " + first[i] + " from " + source[i]);
+				}
+			}
+			int expected = WireFormat.deltaBlockSize(request);
+			copies = new Copies(first, count, checkpoints.submit(() -> copy(first, count, source) == expected));
+			copyChunks.put(chunk, copies);
+		}
+		if (copies.answer < 0 && !copies.counted && copies.made.isDone()) {
+			if (matches(copies)) {
+				count(copies, true);
+			} else {
+				Log.warn("SERVER: The copies of chunk " + chunk + " do not match the client's file, taking its segments instead");
+				copies.answer = 0;
+			}
+		}
+		if (copies.answer < 0 && copies.counted) {
+			if (!unverified()) {
+				copies.answer = copies.first.length;
+			} else if (verifying.isDone()) {
+				Log.warn("SERVER: Refusing the copies of chunk " + chunk + ", which completed a file that does not match, taking its segments instead");
+				count(copies, false);
+				verifying = null;
+				copies.answer = 0;
+			}
+		}
+		return copies.answer;
+	}
+
+	/* counts the segments of the copies of a chunk received, or missing again */
+	private void count(Copies copies, boolean made) throws IOException {
+		for (int i = 0; i < copies.first.length; i++) {
+			for (int index = copies.first[i]; index < copies.first[i] + copies.count[i]; index++) {
+				if (received.get(index) != made) {
+					received.set(index, made);
+					currentTotal += (made ? 1 : -1) * Math.min(maxSegSize, totalBytes - (long) index * maxSegSize);
+				}
+				int stream = streamOf(index);
+				if (!made && index < expectedIndex[stream]) {
+					expectedIndex[stream] = index;
+				}
+			}
+		}
+		for (int stream = 0; stream < expectedIndex.length; stream++) {
+			advance(stream);
+			if (windowed) {
+				lastInOrderSq[stream] = expectedIndex[stream] - 1;
+			}
+		}
+		copies.counted = made;
+	}
+
+	/*
+	 * whether a delta whose bytes are all written waits for its check against the content hash,
+	 * or failed it; the first call after the last byte starts the check in the background. Only
+	 * this call takes the result over, so the transfer completes within receive() or delta().
+	 */
+	private boolean unverified() {
+		if (basis == null || currentTotal < totalBytes) {
+			return false;
+		}
+		if (verifying == null) {
+			verifying = checkpoints.submit(this::verify);
+		}
+		if (!verified && verifying.isDone()) {
+			try {
+				verified = verifying.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// verify() reports its own failures
+			}
+		}
+		return !verified;
+	}
+
+	/* checks the new file built by a delta against the content hash, once the writer wrote it */
+	private boolean verify() {
+		try {
+			if (writer != null) {
+				writer.drain();
+			}
+			if (matchesContent(Paths.get(outputFileName + DELTA_SUFFIX))) {
+				return true;
+			}
+			Log.warn("SERVER: The delta built for " + outputFileName + " does not match the client's file, withholding its completion");
+		} catch (IOException e) {
+			Log.warn("SERVER: Cannot check the delta built for " + outputFileName + ": " + e.getMessage());
+		}
+		return false;
+	}
+
+	/* whether the copies made match the client's file; false if they failed */
+	private boolean matches(Copies copies) {
+		try {
+			return copies.made.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			Log.warn("SERVER: Cannot copy from the old " + outputFileName + ": " + e.getCause());
+			return false;
+		}
+	}
+
+	/*
+	 * copies segments out of the old file into the new one, per copy count segments from first on
+	 * starting at source, and returns the CRC32C of the bytes copied. Runs in the background, so it
+	 * only reads and writes at explicit positions.
+	 */
+	private int copy(int[] first, int[] count, long[] source) throws IOException {
+		CRC32C crc = new CRC32C();
+		ByteBuffer buffer = ByteBuffer.allocate(SegmentReader.HASH_BUFFER);
+		for (int i = 0; i < first.length; i++) {
+			long position = (long) first[i] * maxSegSize;
+			long length = Math.min((long) count[i] * maxSegSize, totalBytes - position);
+			if (Log.isTrace()) {
+				Log.trace("SERVER: Copying segments " + first[i] + " to " + (first[i] + count[i] - 1) + " from offset " + source[i] + " of the old file");
+			}
+			for (long done = 0; done < length; ) {
+				buffer.clear().limit((int) Math.min(buffer.capacity(), length - done));
+				while (buffer.hasRemaining()) {
+					if (basis.read(buffer, source[i] + done + buffer.position()) < 0) {
+						throw new IOException("The old file shrank while copying from it");
+					}
+				}
+				buffer.flip();
+				crc.update(buffer.duplicate());
+				while (buffer.hasRemaining()) {
+					output.write(buffer, position + done + buffer.position());
+				}
+				done += buffer.limit();
+			}
+		}
+		return (int) crc.getValue();
+	}
+
+	/* the signature of the basis, once it is computed */
+	private Delta signature() throws IOException {
+		try {
+			return signature.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while hashing the old file");
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	/* whether the CRC32C of the given file is the content hash the client sent, or it sent none */
+	private boolean matchesContent(Path file) throws IOException {
+		if (contentHash == 0) {
+			return true;
+		}
+		try (SegmentReader reader = new SegmentReader(file.toFile(), maxSegSize, false)) {
+			int hash = reader.contentHash();
+			return (hash == 0 ? 1 : hash) == contentHash;   // the client announces a hash of 0 as 1
+		}
+	}
+
+	/* forces the given written segments to disk, then records them in the journal */
+	private void checkpoint(BitSet written) {
+		try {
+			if (writer != null) {
+				writer.drain();
+			}
+			output.force(false);
+			journal.write(written, maxSegSize);
+		} catch (IOException e) {
+			Log.warn("SERVER: Cannot checkpoint " + outputFileName + ": " + e.getMessage());
+		}
+	}
+
+	/* encodes an ACK in the wire format of this transfer */
+	public ByteBuffer encode(Segment ackSeg) throws IOException {
+		if (wireVersion == WireFormat.LEGACY) {
+			return ByteBuffer.wrap(WireFormat.serialize(ackSeg));
+		}
+		ByteBuffer ackBuffer = ByteBuffer.allocate(WireFormat.encodedSize(ackSeg));
+		WireFormat.encode(ackSeg, ackBuffer);
+		ackBuffer.flip();
+		return ackBuffer;
+	}
+
+	/* whether every byte of the file has been written, and for a delta found to match the client's file */
+	public boolean isComplete() {
+		return currentTotal >= totalBytes && (!batched || batch != null) && (basis == null || verified);
+	}
+
+	/* when the last segment of this transfer arrived */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	public int getMaxDatagram() {
+		return maxDatagram;
+	}
+
+	public String getOutputFileName() {
+		return outputFileName;
+	}
+
+	public long getCurrentTotal() {
+		return currentTotal;
+	}
+
+	/*
+	 * closes the output file, removing the journal of a complete file and checkpointing an unfinished one;
+	 * a complete delta replaces the old file, any other one is removed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		Metrics.close(metrics);
+		try {
+			if (writer != null) {
+				writer.close();
+			}
+			if (checkpointing != null) {
+				checkpointing.get();   // it must not write the journal after this
+			}
+			if (journal != null && isComplete()) {
+				journal.delete();
+			} else if (journal != null) {
+				checkpoint(received);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.warn("SERVER: Cannot checkpoint " + outputFileName + ": " + e.getCause());
+		} finally {
+			for (Copies copies : copyChunks.values()) {
+				if (copies.answer < 0) {
+					matches(copies);   // no copy may write after the output is closed
+				}
+			}
+			if (verifying != null) {
+				try {
+					verifying.get();   // nor may the check read it
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// verify() reports its own failures
+				}
+			}
+			if (output != null) {
+				output.close();
+			}
+			if (batch != null) {
+				batch.close();
+			}
+			if (compression != null) {
+				compression.end();
+			}
+			if (basis != null) {
+				signature.cancel(true);
+				basis.close();
+				Path built = Paths.get(outputFileName + DELTA_SUFFIX);
+				if (isComplete()) {
+					Files.move(built, Paths.get(outputFileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} else {
+					Files.deleteIfExists(built);
+				}
+			}
+		}
+	}
+}
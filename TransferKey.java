@@ -0,0 +1,35 @@
+import java.net.InetSocketAddress;
+
+/* identifies a transfer on a multi-transfer server: the client's address and port plus the id it picked */
+final class TransferKey {
+	private final InetSocketAddress client;
+	private final int transferId;
+
+	TransferKey(InetSocketAddress client, int transferId) {
+		this.client = client;
+		this.transferId = transferId;
+	}
+
+	InetSocketAddress getClient() {
+		return client;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TransferKey)) {
+			return false;
+		}
+		TransferKey other = (TransferKey) o;
+		return transferId == other.transferId && client.equals(other.client);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * client.hashCode() + transferId;
+	}
+
+	@Override
+	public String toString() {
+		return client + "#" + transferId;
+	}
+}
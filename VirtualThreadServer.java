@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Long-running server that runs every transfer on its own (virtual) thread.
+ *
+ * One dispatcher thread receives all datagrams on the socket. A metadata
+ * datagram opens the Transfer and starts a session thread for it; data
+ * segments are queued to the session of their (client address, port, transfer
+ * id), and repeated metadata is answered from the session's Transfer. Each
+ * session keeps the simple blocking style of Server.receiveFile(): take the
+ * next segment, write it, send the ACK. A session ends once its queue has
+ * been idle for IDLE_TIMEOUT, which lets a finished transfer still ACK a
+ * retransmitted last segment and closes an abandoned one.
+ *
+ * The streams of a striped transfer share one session: the first stream's
+ * metadata also files its queue under the client address with port 0, the
+ * metadata of every further stream joins it from there, and each ACK goes
+ * back to the port its segment came from.
+ *
+ * A session holding back a delayed ACK waits on its queue only until the ACK
+ * is due, and sends it if nothing arrived meanwhile.
+ *
+ * Delta messages are queued to the session like segments, so the session
+ * thread is the only one that receives into its Transfer. The dispatcher only
+ * asks it for the reply to repeated metadata, which reads what the transfer
+ * fixed when it started. A segment that fails with a RuntimeException is
+ * dropped with a warning and the session goes on.
+ *
+ * Output files, and the directories of batches, are only written below the
+ * working directory of the server.
+ */
+public class VirtualThreadServer {
+
+	static final long IDLE_TIMEOUT = 30000;    // milliseconds without traffic before a session ends
+
+	private final DatagramSocket socket;
+	private final ExecutorService sessions = Threads.perTaskExecutor();
+	private final ConcurrentHashMap<TransferKey, Session> active = new ConcurrentHashMap<>();
+	private final int ackEvery;   // in-order segments covered by one ACK
+	private final long syncEvery; // sync policy of the received files (see DiskWriter)
+
+	/* a data segment or a delta message queued to its session together with the socket address it came from */
+	private static final class Arrival {
+		final Segment segment;
+		final ByteBuffer request;   // the delta message, null for a segment
+		final InetSocketAddress from;
+
+		Arrival(Segment segment, InetSocketAddress from) {
+			this.segment = segment;
+			this.request = null;
+			this.from = from;
+		}
+
+		Arrival(ByteBuffer request, InetSocketAddress from) {
+			this.segment = null;
+			this.request = request;
+			this.from = from;
+		}
+	}
+
+	/* a transfer and the queue its session thread takes segments from */
+	private static final class Session {
+		final Transfer transfer;
+		final BlockingQueue<Arrival> queue = new LinkedBlockingQueue<>();
+
+		Session(Transfer transfer) {
+			this.transfer = transfer;
+		}
+	}
+
+	public VirtualThreadServer(int port, int ackEvery, long syncEvery) throws IOException {
+		this.ackEvery = ackEvery;
+		this.syncEvery = syncEvery;
+		socket = new DatagramSocket(port);
+	}
+
+	/* dispatches datagrams to session threads until the process is stopped */
+	public void run() throws IOException {
+		byte[] buffer = new byte[WireFormat.MAX_DATAGRAM];
+		Log.info("SERVER: binding ... Ready to receive transfers on port " + socket.getLocalPort()
+				+ (Threads.virtualThreadsAvailable() ? " (virtual threads)" : " (platform threads)"));
+
+		while (true) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			socket.receive(packet);
+
+			ByteBuffer received = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+			if (WireFormat.isProbe(received)) {
+				reply(WireFormat.replyToProbe(received), (InetSocketAddress) packet.getSocketAddress());
+				continue;
+			}
+
+			// copy the datagram: the decoded payload is a view of it and is used after the buffer is reused
+			ByteBuffer datagram = ByteBuffer.wrap(Arrays.copyOf(packet.getData(), packet.getLength()));
+			try {
+				dispatch((InetSocketAddress) packet.getSocketAddress(), datagram);
+			} catch (RuntimeException e) {
+				// one bad datagram must not stop the loop that serves every other session
+				Log.warn("SERVER: Dropping datagram from " + packet.getSocketAddress() + ": " + e);
+			}
+		}
+	}
+
+	/* starts a session for new metadata, or queues a segment to the session it belongs to */
+	private void dispatch(InetSocketAddress from, ByteBuffer datagram) {
+		if (WireFormat.isDelta(datagram)) {
+			Session session = active.get(new TransferKey(from, WireFormat.deltaTransferId(datagram)));
+			if (session != null) {
+				session.queue.add(new Arrival(datagram, from));
+			} else if (Log.isTrace()) {
+				Log.trace("SERVER: Dropping delta message of unknown transfer from " + from);
+			}
+			return;
+		}
+		byte wireVersion = WireFormat.versionOf(datagram);
+		Object message;
+		try {
+			message = WireFormat.decode(datagram);
+		} catch (IOException e) {
+			if (Log.isTrace()) {
+				Log.trace("SERVER: Dropping undecodable datagram from " + from + ": " + e.getMessage());
+			}
+			return;
+		}
+
+		if (message instanceof MetaData) {
+			MetaData metaData = (MetaData) message;
+			TransferKey key = new TransferKey(from, metaData.getTransferId());
+			TransferKey striped = new TransferKey(new InetSocketAddress(from.getAddress(), 0), metaData.getTransferId());
+			Session session = active.get(key);
+			if (session != null) {
+				if (Log.isTrace()) {
+					Log.trace("SERVER: Repeating the reply to metadata from " + from);
+				}
+				reply(session.transfer.reply(metaData), from);
+				return;
+			}
+			if (metaData.getStream() > 0) {
+				session = active.get(striped);
+				if (session == null) {
+					if (Log.isTrace()) {
+						Log.trace("SERVER: Dropping stream " + metaData.getStream() + " of unknown transfer from " + from);
+					}
+					return;
+				}
+				active.put(key, session);
+				reply(session.transfer.reply(metaData), from);
+				return;
+			}
+			try {
+				Transfer.checkOutputName(metaData.getName());
+				session = new Session(new Transfer(metaData, wireVersion, ackEvery, syncEvery));
+			} catch (IOException e) {
+				Log.warn("SERVER: Cannot start transfer of " + metaData.getName() + ": " + e.getMessage());
+				return;
+			}
+			active.put(key, session);
+			if (metaData.getStreams() > 1) {
+				active.put(striped, session);
+			}
+			Session started = session;
+			sessions.execute(() -> session(key, started));
+			reply(session.transfer.reply(metaData), from);
+			return;
+		}
+
+		if (!(message instanceof Segment)) {
+			return;
+		}
+		Segment dataSeg = (Segment) message;
+		Session session = active.get(new TransferKey(from, dataSeg.getTransferId()));
+		if (session == null) {
+			if (Log.isTrace()) {
+				Log.trace("SERVER: Dropping segment of unknown transfer from " + from);
+			}
+			return;
+		}
+		session.queue.add(new Arrival(dataSeg, from));
+	}
+
+	/* sends a reply to the client, if there is one */
+	private void reply(ByteBuffer reply, InetSocketAddress to) {
+		if (reply == null) {
+			return;
+		}
+		try {
+			socket.send(new DatagramPacket(reply.array(), reply.remaining(), to));
+		} catch (IOException e) {
+			Log.warn("SERVER: Cannot reply to " + to + ": " + e.getMessage());
+		}
+	}
+
+	/* receives one transfer, blocking on its queue the way Server.receiveFile() blocks on the socket */
+	private void session(TransferKey key, Session session) {
+		Transfer transfer = session.transfer;
+		try {
+			while (true) {
+				// wait for the next segment, or only until a delayed ACK is due
+				long deadline = transfer.nextAckDeadline();
+				long wait = deadline < 0 ? IDLE_TIMEOUT : Math.max(0, deadline - System.currentTimeMillis());
+				Arrival arrival = session.queue.poll(wait, TimeUnit.MILLISECONDS);
+				if (arrival == null) {
+					if (deadline < 0) {
+						break;
+					}
+					sendDelayedAcks(transfer, System.currentTimeMillis());
+					continue;
+				}
+
+				boolean wasComplete = transfer.isComplete();
+				try {
+					if (arrival.request != null) {
+						reply(transfer.delta(arrival.request), arrival.from);
+					} else {
+						Segment ackSeg = transfer.receive(arrival.segment, arrival.from);
+						if (ackSeg != null) {
+							ByteBuffer dataAck = transfer.encode(ackSeg);
+							socket.send(new DatagramPacket(dataAck.array(), dataAck.remaining(), arrival.from));
+						}
+					}
+				} catch (RuntimeException e) {
+					// one bad datagram must not end the session, the client would retry into nothing
+					Log.warn("SERVER: Dropping datagram from " + arrival.from + " of " + transfer.getOutputFileName() + ": " + e);
+				}
+				if (!wasComplete && transfer.isComplete()) {
+					// the other streams of a striped transfer may still wait for their last ACK
+					sendDelayedAcks(transfer, Long.MAX_VALUE);
+					Log.info("SERVER: File copying complete: " + transfer.getOutputFileName() + " from " + key.getClient());
+					transfer.close();
+				}
+			}
+
+			if (!transfer.isComplete()) {
+				Log.info("SERVER: Abandoning idle transfer of " + transfer.getOutputFileName() + " after " + transfer.getCurrentTotal() + " bytes");
+			}
+		} catch (IOException e) {
+			Log.warn("SERVER: Transfer of " + transfer.getOutputFileName() + " failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			active.values().removeIf(s -> s == session);
+			try {
+				transfer.close();
+			} catch (IOException e) {
+				Log.warn("SERVER: Cannot close " + transfer.getOutputFileName() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/* sends the delayed ACKs of the transfer that are due by now */
+	private void sendDelayedAcks(Transfer transfer, long now) throws IOException {
+		Transfer.Ack ack;
+		while ((ack = transfer.pollDelayedAck(now)) != null) {
+			ByteBuffer dataAck = transfer.encode(ack.segment);
+			socket.send(new DatagramPacket(dataAck.array(), dataAck.remaining(), ack.to));
+		}
+	}
+}
@@ -0,0 +1,514 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Set;
+
+/*
+ * Compact binary encoding of segments and metadata on the wire.
+ *
+ * Every binary datagram starts with a version byte followed by a type byte.
+ * A Java serialization stream always starts with the magic 0xACED, so the
+ * first byte of a datagram tells a receiver which format the peer speaks:
+ * old peers keep using object serialization, new peers use this layout.
+ * VERSION changes with every change to any of the layouts below, and a peer
+ * drops binary datagrams of any other version instead of misreading them:
+ * version 1 was the first layout, without the flags, offset, transfer id,
+ * streams, checksum, datagram size, content hash, delta, FEC and batch fields.
+ *
+ * segment layout (big endian):
+ *      0  byte   version
+ *      1  byte   type (SegmentType ordinal)
+ *      2  short  flags (FLAG_DEFLATED, FLAG_PARITY)
+ *      4  int    transfer id
+ *      8  int    sq
+ *     12  long   offset of the payload in the file
+ *     20  int    size of the payload read from the file
+ *     24  int    checksum
+ *     28  int    length of the payload bytes that follow (-1 for none)
+ *     32  ...    payload, or the SACK bitmap of an ACK
+ *
+ * A parity segment (FLAG_PARITY, see Fec) carries the offset of the first
+ * segment of its group and its class as the sq.
+ *
+ * metadata layout (big endian):
+ *      0  byte   version
+ *      1  byte   MSG_META
+ *      2  short  flags (FLAG_DELTA: the client asks for a delta against the old file,
+ *                FLAG_FEC: the client sends parity, described after the file name,
+ *                FLAG_BATCH: the file name is a directory whose manifest follows)
+ *      4  int    transfer id
+ *      8  long   size of the file
+ *     16  int    max payload size
+ *     20  int    window size
+ *     24  int    largest datagram the client sends
+ *     28  short  number of streams
+ *     30  short  stream that sent the metadata
+ *     32  int    content hash of the file, 0 if the transfer cannot resume
+ *     36  byte   checksum algorithm (Checksum ordinal)
+ *     37  byte   length of the mode
+ *     38  ...    mode (ASCII)
+ *      .  short  length of the file name
+ *      .  ...    file name (UTF-8)
+ *      .  byte   FLAG_FEC only: segments per parity group
+ *      .  byte   FLAG_FEC only: parity segments per group
+ *
+ * The server answers binary metadata with a reply, and a datagram size probe
+ * with a probe reply; a probe is padded with zeros to the size it tests.
+ * reply and probe layout (big endian):
+ *      0  byte   version
+ *      1  byte   MSG_META_REPLY, MSG_PROBE or MSG_PROBE_REPLY
+ *      2  short  flags (FLAG_DELTA: the server has an old file to send the delta against,
+ *                FLAG_FEC: the server rebuilds segments from parity,
+ *                FLAG_BATCH: the server takes the manifest of a batch)
+ *      4  int    transfer id
+ *      8  int    largest datagram the server receives for the transfer, or the probe size
+ *     12  int    stream the metadata came from
+ *     16  long   file offset the stream resumes at
+ *
+ * For a delta the client fetches the signature of the server's old file chunk
+ * by chunk and then sends the copies the server makes from it, each chunk
+ * answered by the server (see Delta).
+ * delta layout (big endian):
+ *      0  byte   version
+ *      1  byte   MSG_SIG_REQUEST, MSG_SIGNATURE, MSG_COPY or MSG_COPY_ACK
+ *      2  short  flags
+ *      4  int    transfer id
+ *      8  int    chunk
+ *     12  int    MSG_SIGNATURE: blocks in the signature, -1 while it is computed; MSG_COPY: chunks of copies;
+ *                MSG_COPY_ACK: copies made, -1 while they are made, 0 if they do not match
+ *     16  int    MSG_SIGNATURE: block size; MSG_COPY: CRC32C of the client's bytes the copies make
+ *     20  ...    MSG_SIGNATURE: (int weak, long strong) per block; MSG_COPY: (int first, int count, long source) per copy
+ *
+ * The manifest of a batch (see Batch) goes the same way, chunk by chunk after the
+ * reply to the metadata, in messages with the delta layout: MSG_MANIFEST carries
+ * the number of chunks as its count, 0 as its block size and (long size, short
+ * length of the name, name in UTF-8) per file; the server answers MSG_MANIFEST_ACK.
+ *
+ * Decoding never trusts the peer: metadata whose fields the server would size
+ * or divide by is rejected with an IOException like a truncated datagram, and
+ * Java serialization only ever instantiates the classes of LEGACY_CLASSES.
+ */
+public class WireFormat {
+
+	static final byte LEGACY = 0;              // Java object serialization (the original format)
+	static final byte VERSION = 2;             // current binary format version, see above
+	static final byte MSG_META = 0x40;         // type byte of a metadata datagram
+	static final byte MSG_META_REPLY = 0x41;   // type byte of the server's reply to metadata
+	static final byte MSG_PROBE = 0x42;        // type byte of a datagram size probe
+	static final byte MSG_PROBE_REPLY = 0x43;  // type byte of the server's reply to a probe
+	static final byte MSG_SIG_REQUEST = 0x44;  // type byte of a request for a chunk of the signature
+	static final byte MSG_SIGNATURE = 0x45;    // type byte of a chunk of the signature
+	static final byte MSG_COPY = 0x46;         // type byte of a chunk of copies
+	static final byte MSG_COPY_ACK = 0x47;     // type byte of the server's answer to a chunk of copies
+	static final byte MSG_MANIFEST = 0x48;     // type byte of a chunk of the manifest of a batch
+	static final byte MSG_MANIFEST_ACK = 0x49; // type byte of the server's answer to a chunk of the manifest
+	static final short FLAG_DEFLATED = 0x1;    // segment flag: the payload is compressed with raw deflate
+	static final short FLAG_PARITY = 0x2;      // segment flag: a parity segment of a group
+	static final short FLAG_DELTA = 0x1;       // metadata and reply flag: a delta against the server's old file
+	static final short FLAG_FEC = 0x2;         // metadata and reply flag: parity segments for forward error correction
+	static final short FLAG_BATCH = 0x4;       // metadata and reply flag: a batch of files under a directory
+	static final int HEADER_SIZE = 32;         // size of a segment header
+	static final int META_HEADER_SIZE = 40;    // size of a metadata header without the mode and name
+	static final int REPLY_SIZE = 24;          // size of a reply, and of a probe before its padding
+	static final int DELTA_HEADER_SIZE = 20;   // size of a delta message before its entries
+	static final int SIGNATURE_ENTRY = 12;     // size of the signature of one block
+	static final int COPY_ENTRY = 16;          // size of one copy
+	static final int MAX_DATAGRAM = 65507;     // largest UDP payload over IPv4
+	static final int LEGACY_DATAGRAM = 1024;   // receive buffer of servers that only speak Java serialization
+	static final int LEGACY_OVERHEAD = 512;    // upper bound of what Java serialization adds to a segment
+
+	static final int LEGACY_DEPTH = 8;         // deepest object graph a legacy datagram may hold
+
+	private static final byte STREAM_MAGIC = (byte) 0xAC;   // first byte of a Java serialization stream
+	private static final Set<Class<?>> LEGACY_CLASSES = Set.of(Segment.class, MetaData.class, SegmentType.class, Checksum.class,
+			BitSet.class, String.class, Enum.class);   // the classes a legacy datagram may hold, with arrays of primitives
+	private static final ObjectInputFilter LEGACY_FILTER = info -> {
+		if (info.depth() > LEGACY_DEPTH || info.arrayLength() > MAX_DATAGRAM) {
+			return ObjectInputFilter.Status.REJECTED;
+		}
+		Class<?> type = info.serialClass();
+		while (type != null && type.isArray()) {
+			type = type.getComponentType();
+		}
+		if (type == null || type.isPrimitive() || LEGACY_CLASSES.contains(type)) {
+			return ObjectInputFilter.Status.ALLOWED;
+		}
+		return ObjectInputFilter.Status.REJECTED;
+	};
+
+	/* returns the wire format version of the datagram starting at buf's position */
+	static byte versionOf(ByteBuffer buf) {
+		if (!buf.hasRemaining()) {
+			return VERSION;   // nothing to sniff, decoding reports the empty datagram
+		}
+		byte first = buf.get(buf.position());
+		return first == STREAM_MAGIC ? LEGACY : first;
+	}
+
+	/* returns the type byte of a binary datagram, or -1 for Java serialization or another binary version */
+	static byte typeOf(ByteBuffer buf) {
+		if (versionOf(buf) != VERSION || buf.remaining() < 2) {
+			return -1;
+		}
+		return buf.get(buf.position() + 1);
+	}
+
+	/* an upper bound of the datagram size of a segment with the given payload size in the given format */
+	static int maxDatagramSize(byte version, int payloadSize) {
+		if (version == LEGACY) {
+			// legacy payloads are strings, serialized with up to 3 bytes per char
+			return LEGACY_OVERHEAD + 3 * payloadSize;
+		}
+		return HEADER_SIZE + payloadSize;
+	}
+
+	/* returns the number of bytes needed to encode the given segment */
+	static int encodedSize(Segment seg) {
+		if (seg.getSack() != null) {
+			return HEADER_SIZE + seg.getSack().length() / 8 + 1;
+		}
+		if (seg.getData() != null) {
+			return HEADER_SIZE + seg.getData().remaining();
+		}
+		String payload = seg.getPayLoad();
+		return HEADER_SIZE + (payload == null ? 0 : payload.length() * 3);
+	}
+
+	/*
+	 * writes the segment to buf at its position, leaving the position after the segment.
+	 * The raw payload bytes are used if present, otherwise the string payload as UTF-8.
+	 */
+	static void encode(Segment seg, ByteBuffer buf) {
+		ByteBuffer payload = seg.getSack() != null ? ByteBuffer.wrap(seg.getSack().toByteArray())
+				: seg.getData() != null ? seg.getData().duplicate()
+				: seg.getPayLoad() != null ? ByteBuffer.wrap(seg.getPayLoad().getBytes(StandardCharsets.UTF_8)) : null;
+
+		buf.put(VERSION);
+		buf.put((byte) seg.getType().ordinal());
+		buf.putShort((short) ((seg.isDeflated() ? FLAG_DEFLATED : 0) | (seg.isParity() ? FLAG_PARITY : 0)));
+		buf.putInt(seg.getTransferId());
+		buf.putInt(seg.getSq());
+		buf.putLong(seg.getOffset());
+		buf.putInt(seg.getSize());
+		buf.putInt(seg.getChecksum());
+		if (payload == null) {
+			buf.putInt(-1);
+		} else {
+			buf.putInt(payload.remaining());
+			buf.put(payload);
+		}
+	}
+
+	/*
+	 * reads a segment from buf at its position. The payload is returned as a view
+	 * of buf, so it is only valid until buf is reused for the next datagram.
+	 */
+	static Segment decodeSegment(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < HEADER_SIZE) {
+			throw new IOException("Truncated segment: " + buf.remaining() + " bytes");
+		}
+		byte version = buf.get();
+		if (version != VERSION) {
+			throw new IOException("Unsupported wire format version " + version);
+		}
+		int type = buf.get();
+		if (type < 0 || type >= SegmentType.values().length) {
+			throw new IOException("Unknown segment type " + type);
+		}
+		short flags = buf.getShort();
+
+		Segment seg = new Segment();
+		seg.setType(SegmentType.values()[type]);
+		seg.setDeflated((flags & FLAG_DEFLATED) != 0);
+		seg.setParity((flags & FLAG_PARITY) != 0);
+		seg.setTransferId(buf.getInt());
+		seg.setSq(buf.getInt());
+		seg.setOffset(buf.getLong());
+		seg.setSize(buf.getInt());
+		seg.setChecksum(buf.getInt());
+
+		int length = buf.getInt();
+		if (length > buf.remaining()) {
+			throw new IOException("Truncated payload: expected " + length + " bytes, got " + buf.remaining());
+		}
+		if (length < 0 && seg.getType() != SegmentType.Ack) {
+			throw new IOException("Data segment without a payload");
+		}
+		if (length >= 0 && seg.getType() == SegmentType.Ack) {
+			seg.setSack(BitSet.valueOf(buf.slice(buf.position(), length)));
+			buf.position(buf.position() + length);
+		} else if (length >= 0) {
+			seg.setData(buf.slice(buf.position(), length));
+			buf.position(buf.position() + length);
+		}
+		return seg;
+	}
+
+	/* reads a segment from buf in whichever format it was written */
+	static Segment decodeAny(ByteBuffer buf) throws IOException {
+		if (versionOf(buf) == LEGACY) {
+			Object message = deserialize(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			if (!(message instanceof Segment)) {
+				throw new IOException("Not a segment: " + message.getClass().getName());
+			}
+			return checkSegment((Segment) message);
+		}
+		return decodeSegment(buf);
+	}
+
+	/* writes the metadata to buf at its position */
+	static void encode(MetaData metaData, ByteBuffer buf) {
+		byte[] name = metaData.getName().getBytes(StandardCharsets.UTF_8);
+		byte[] mode = metaData.getMode() == null ? new byte[0] : metaData.getMode().getBytes(StandardCharsets.US_ASCII);
+
+		buf.put(VERSION);
+		buf.put(MSG_META);
+		buf.putShort((short) ((metaData.isDelta() ? FLAG_DELTA : 0) | (metaData.getFecGroup() > 0 ? FLAG_FEC : 0) | (metaData.isBatch() ? FLAG_BATCH : 0)));
+		buf.putInt(metaData.getTransferId());
+		buf.putLong(metaData.getSize());
+		buf.putInt(metaData.getMaxSegSize());
+		buf.putInt(metaData.getWindow());
+		buf.putInt(metaData.getMaxDatagram());
+		buf.putShort((short) metaData.getStreams());
+		buf.putShort((short) metaData.getStream());
+		buf.putInt(metaData.getContentHash());
+		buf.put((byte) metaData.getChecksum().ordinal());
+		buf.put((byte) mode.length);
+		buf.put(mode);
+		buf.putShort((short) name.length);
+		buf.put(name);
+		if (metaData.getFecGroup() > 0) {
+			buf.put((byte) metaData.getFecGroup());
+			buf.put((byte) metaData.getFecParity());
+		}
+	}
+
+	/* reads metadata from buf at its position */
+	static MetaData decodeMetaData(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < META_HEADER_SIZE) {
+			throw new IOException("Truncated metadata: " + buf.remaining() + " bytes");
+		}
+		byte version = buf.get();
+		if (version != VERSION) {
+			throw new IOException("Unsupported wire format version " + version);
+		}
+		if (buf.get() != MSG_META) {
+			throw new IOException("Not a metadata datagram");
+		}
+		short flags = buf.getShort();
+
+		MetaData metaData = new MetaData();
+		metaData.setDelta((flags & FLAG_DELTA) != 0);
+		metaData.setBatch((flags & FLAG_BATCH) != 0);
+		metaData.setTransferId(buf.getInt());
+		metaData.setSize(buf.getLong());
+		metaData.setMaxSegSize(buf.getInt());
+		metaData.setWindow(buf.getInt());
+		metaData.setMaxDatagram(buf.getInt());
+		metaData.setStreams(buf.getShort());
+		metaData.setStream(buf.getShort());
+		metaData.setContentHash(buf.getInt());
+		int checksum = buf.get();
+		if (checksum < 0 || checksum >= Checksum.values().length) {
+			throw new IOException("Unknown checksum algorithm " + checksum);
+		}
+		metaData.setChecksum(Checksum.values()[checksum]);
+		int modeLength = buf.get() & 0xFF;
+		if (modeLength + 2 > buf.remaining()) {
+			throw new IOException("Truncated mode");
+		}
+		metaData.setMode(new String(buf.array(), buf.arrayOffset() + buf.position(), modeLength, StandardCharsets.US_ASCII));
+		buf.position(buf.position() + modeLength);
+		int length = buf.getShort() & 0xFFFF;
+		if (length > buf.remaining()) {
+			throw new IOException("Truncated file name");
+		}
+		metaData.setName(new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8));
+		buf.position(buf.position() + length);
+		if ((flags & FLAG_FEC) != 0) {
+			if (buf.remaining() < 2) {
+				throw new IOException("Truncated parity settings");
+			}
+			metaData.setFecGroup(buf.get() & 0xFF);
+			metaData.setFecParity(buf.get() & 0xFF);
+		}
+		return checkMetaData(metaData);
+	}
+
+	/* returns the metadata if the server can start a transfer from its fields, else throws */
+	static MetaData checkMetaData(MetaData metaData) throws IOException {
+		if (metaData.getName() == null || metaData.getName().isEmpty()) {
+			throw new IOException("Metadata without a file name");
+		}
+		if (metaData.getSize() < 0) {
+			throw new IOException("Invalid file size " + metaData.getSize());
+		}
+		if (metaData.getMaxSegSize() < 1 || metaData.getMaxSegSize() > MAX_DATAGRAM) {
+			throw new IOException("Invalid payload size " + metaData.getMaxSegSize());
+		}
+		if (metaData.getSize() / metaData.getMaxSegSize() >= Integer.MAX_VALUE) {
+			throw new IOException("Too many segments: " + metaData.getSize() + " bytes of " + metaData.getMaxSegSize());
+		}
+		if (metaData.getWindow() < 0 || metaData.getMaxDatagram() < 0) {
+			throw new IOException("Invalid window " + metaData.getWindow() + " or datagram size " + metaData.getMaxDatagram());
+		}
+		// old clients send no stream count, which means one stream
+		if (metaData.getStreams() < 0 || metaData.getStream() < 0 || metaData.getStream() >= Math.max(1, metaData.getStreams())) {
+			throw new IOException("Invalid stream " + metaData.getStream() + " of " + metaData.getStreams());
+		}
+		if (metaData.getFecGroup() < 0 || metaData.getFecParity() < 0) {
+			throw new IOException("Invalid parity settings");
+		}
+		return metaData;
+	}
+
+	/* returns the legacy segment if it has a type, and a payload unless it is an ACK, else throws */
+	private static Segment checkSegment(Segment seg) throws IOException {
+		if (seg.getType() == null) {
+			throw new IOException("Segment without a type");
+		}
+		if (seg.getType() != SegmentType.Ack && seg.getData() == null && seg.getPayLoad() == null) {
+			throw new IOException("Data segment without a payload");
+		}
+		return seg;
+	}
+
+	/* writes a reply or probe header of the given type to buf at its position */
+	static void encodeReply(byte type, short flags, int transferId, int maxDatagram, int stream, long resumeOffset, ByteBuffer buf) {
+		buf.put(VERSION);
+		buf.put(type);
+		buf.putShort(flags);
+		buf.putInt(transferId);
+		buf.putInt(maxDatagram);
+		buf.putInt(stream);
+		buf.putLong(resumeOffset);
+	}
+
+	/* reads a reply or probe from buf at its position into a MetaData with flags, transfer id, datagram size, stream and resume offset */
+	static MetaData decodeReply(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < REPLY_SIZE || versionOf(buf) != VERSION) {
+			throw new IOException("Not a reply: " + buf.remaining() + " bytes");
+		}
+		buf.getShort();
+		short flags = buf.getShort();
+		MetaData reply = new MetaData();
+		reply.setDelta((flags & FLAG_DELTA) != 0);
+		reply.setFecGroup((flags & FLAG_FEC) != 0 ? 1 : 0);
+		reply.setBatch((flags & FLAG_BATCH) != 0);
+		reply.setTransferId(buf.getInt());
+		reply.setMaxDatagram(buf.getInt());
+		reply.setStream(buf.getInt());
+		reply.setResumeOffset(buf.getLong());
+		return reply;
+	}
+
+	/* whether the datagram at buf's position is a datagram size probe */
+	static boolean isProbe(ByteBuffer buf) {
+		return typeOf(buf) == MSG_PROBE && buf.remaining() >= REPLY_SIZE;
+	}
+
+	/* the reply to a probe datagram, telling the client the size that arrived */
+	static ByteBuffer replyToProbe(ByteBuffer probe) {
+		ByteBuffer reply = ByteBuffer.allocate(REPLY_SIZE);
+		encodeReply(MSG_PROBE_REPLY, (short) 0, probe.getInt(probe.position() + 4), Math.min(probe.remaining(), MAX_DATAGRAM), 0, 0, reply);
+		reply.flip();
+		return reply;
+	}
+
+	/* writes the header of a delta message to buf at its position, its entries follow */
+	static void encodeDeltaHeader(byte type, int transferId, int chunk, int count, int blockSize, ByteBuffer buf) {
+		buf.put(VERSION);
+		buf.put(type);
+		buf.putShort((short) 0);
+		buf.putInt(transferId);
+		buf.putInt(chunk);
+		buf.putInt(count);
+		buf.putInt(blockSize);
+	}
+
+	/* whether the datagram at buf's position is a delta message, or a chunk of a manifest in the same layout */
+	static boolean isDelta(ByteBuffer buf) {
+		byte type = typeOf(buf);
+		return type >= MSG_SIG_REQUEST && type <= MSG_MANIFEST_ACK && buf.remaining() >= DELTA_HEADER_SIZE;
+	}
+
+	/* the transfer id of a delta message */
+	static int deltaTransferId(ByteBuffer buf) {
+		return buf.getInt(buf.position() + 4);
+	}
+
+	/* the chunk of a delta message */
+	static int deltaChunk(ByteBuffer buf) {
+		return buf.getInt(buf.position() + 8);
+	}
+
+	/* the block count of a signature chunk, the chunk count of a chunk of copies, or the copies made of an answer to one */
+	static int deltaCount(ByteBuffer buf) {
+		return buf.getInt(buf.position() + 12);
+	}
+
+	/* the block size of a signature chunk, or the CRC32C of a chunk of copies */
+	static int deltaBlockSize(ByteBuffer buf) {
+		return buf.getInt(buf.position() + 16);
+	}
+
+	/* reads metadata from buf in whichever format it was written */
+	static MetaData decodeAnyMetaData(ByteBuffer buf) throws IOException {
+		if (versionOf(buf) == LEGACY) {
+			Object message = deserialize(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			if (!(message instanceof MetaData)) {
+				throw new IOException("Not metadata: " + message.getClass().getName());
+			}
+			return checkMetaData((MetaData) message);
+		}
+		return decodeMetaData(buf);
+	}
+
+	/* reads a datagram in whichever format it was written, returning either a MetaData or a Segment */
+	static Object decode(ByteBuffer buf) throws IOException {
+		if (versionOf(buf) == LEGACY) {
+			Object message = deserialize(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			if (message instanceof MetaData) {
+				return checkMetaData((MetaData) message);
+			}
+			if (message instanceof Segment) {
+				return checkSegment((Segment) message);
+			}
+			throw new IOException("Neither a segment nor metadata: " + message.getClass().getName());
+		}
+		if (buf.remaining() > 1 && buf.get(buf.position() + 1) == MSG_META) {
+			return decodeMetaData(buf);
+		}
+		return decodeSegment(buf);
+	}
+
+	/* encodes an object with Java serialization (the legacy format) */
+	static byte[] serialize(Object obj) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		ObjectOutputStream os = new ObjectOutputStream(outputStream);
+		os.writeObject(obj);
+		os.close();
+		return outputStream.toByteArray();
+	}
+
+	/* decodes an object written with Java serialization (the legacy format), of the LEGACY_CLASSES only */
+	static Object deserialize(byte[] data, int offset, int length) throws IOException {
+		ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+		is.setObjectInputFilter(LEGACY_FILTER);
+		try {
+			Object message = is.readObject();
+			if (message == null) {
+				throw new IOException("Empty serialization stream");
+			}
+			return message;
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The checksum of a payload: Protocol.checksum() on the string of the original
+ * sum against each Checksum algorithm on raw bytes, per payload size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+	@Param({"500", "1400", "8192", "65000"})
+	int payload;                   // payload bytes
+
+	@Param({"SUM", "CRC32C"})
+	String algorithm;              // Checksum the bytes are summed with
+
+	private ByteBuffer bytes;      // the payload
+	private Object text;           // the payload as a legacy string
+	private Object checksum;       // the Checksum of algorithm
+
+	@Setup
+	public void setUp() {
+		bytes = Handles.randomText(payload);
+		text = StandardCharsets.US_ASCII.decode(bytes.duplicate()).toString();
+		checksum = Handles.constant("Checksum", algorithm);
+	}
+
+	/* the original sum over the chars of a string payload, the same for every algorithm */
+	@Benchmark
+	public int string() throws Throwable {
+		return (int) Handles.STRING_CHECKSUM.invokeExact(text, (Object) Boolean.FALSE);
+	}
+
+	/* the checksum of algorithm over the payload bytes */
+	@Benchmark
+	public int bytes() throws Throwable {
+		return (int) Handles.CHECKSUM.invokeExact(checksum, (Object) bytes);
+	}
+}
@@ -0,0 +1,105 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Method handles of the code under benchmark.
+ *
+ * The transfer classes live in the default package, which no class in a
+ * package can import, and JMH only generates benchmarks for classes in a
+ * package. So the benchmarks call that code through these handles, looked up
+ * once by name. Every reference type of a handle is erased to Object, so a
+ * benchmark calls it with invokeExact on Object arguments; a constant handle
+ * called that way is inlined by the JIT like a direct call.
+ */
+final class Handles {
+
+	static final MethodHandle STRING_CHECKSUM = method("Protocol", "checksum", String.class, Boolean.class);   // (String, Boolean) int
+	static final MethodHandle CHECKSUM = method("Checksum", "of", ByteBuffer.class);                         // (Checksum, ByteBuffer) int
+	static final MethodHandle SERIALIZE = method("WireFormat", "serialize", Object.class);                   // (Object) byte[]
+	static final MethodHandle DESERIALIZE = method("WireFormat", "deserialize", byte[].class, int.class, int.class);   // (byte[], int, int) Object
+	static final MethodHandle ENCODED_SIZE = method("WireFormat", "encodedSize", type("Segment"));           // (Segment) int
+	static final MethodHandle ENCODE = method("WireFormat", "encode", type("Segment"), ByteBuffer.class);    // (Segment, ByteBuffer) void
+	static final MethodHandle DECODE = method("WireFormat", "decodeSegment", ByteBuffer.class);              // (ByteBuffer) Segment
+	static final MethodHandle SEGMENT_SIZE = method("Segment", "getSize");                                   // (Segment) int
+	static final MethodHandle READ_DATA = method("Protocol", "readData");                                    // (Protocol) int
+
+	private Handles() {
+	}
+
+	/* the class of the given name */
+	static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("The benchmarks need " + name + " on the class path", e);
+		}
+	}
+
+	/* a handle of the given method, static or not, whatever its access, with its reference types erased to Object */
+	static MethodHandle method(String type, String name, Class<?>... parameters) {
+		try {
+			Method method = type(type).getDeclaredMethod(name, parameters);
+			method.setAccessible(true);
+			MethodHandle handle = MethodHandles.lookup().unreflect(method);
+			return handle.asType(handle.type().erase());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot find " + type + "." + name, e);
+		}
+	}
+
+	/* calls a method that is not benchmarked, by reflection */
+	static Object call(Object target, String type, String name, Class<?>[] parameters, Object... arguments) {
+		try {
+			Method method = type(type).getDeclaredMethod(name, parameters);
+			method.setAccessible(true);
+			return method.invoke(target, arguments);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot call " + type + "." + name, e);
+		}
+	}
+
+	/* the constant of the given name of an enum */
+	static Object constant(String type, String name) {
+		for (Object constant : type(type).getEnumConstants()) {
+			if (((Enum<?>) constant).name().equals(name)) {
+				return constant;
+			}
+		}
+		throw new IllegalArgumentException("No " + type + "." + name);
+	}
+
+	/* a data segment with the header fields of the given payload size set */
+	static Object segment(int size) {
+		try {
+			Object seg = type("Segment").getDeclaredConstructor().newInstance();
+			call(seg, "Segment", "setType", new Class<?>[] {type("SegmentType")}, constant("SegmentType", "Data"));
+			call(seg, "Segment", "setSq", new Class<?>[] {int.class}, 1);
+			call(seg, "Segment", "setSize", new Class<?>[] {int.class}, size);
+			call(seg, "Segment", "setOffset", new Class<?>[] {long.class}, 123L * size);
+			call(seg, "Segment", "setChecksum", new Class<?>[] {int.class}, 42);
+			call(seg, "Segment", "setTransferId", new Class<?>[] {int.class}, 7);
+			return seg;
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create a segment", e);
+		}
+	}
+
+	/* printable random bytes, which survive the legacy string payload unchanged */
+	static ByteBuffer randomText(int size) {
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) (' ' + ThreadLocalRandom.current().nextInt(95));
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	/* turns the logging of the code under benchmark off */
+	static void quiet() {
+		call(null, "Log", "setLevel", new Class<?>[] {String.class}, "quiet");
+	}
+}
@@ -0,0 +1,81 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Protocol.readData() over a whole input file, per payload size, with
+ * positional channel reads, with those read ahead by the prefetcher and with a
+ * memory map. One operation reads the whole file, so the score divided by its
+ * segments is the cost of one read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+	@Param({"500", "1400", "8192", "65000"})
+	int payload;                   // payload bytes per segment
+
+	@Param({"channel", "prefetch", "mmap"})
+	String reader;                 // how the segments are read
+
+	@Param("64")
+	int sizeMb;                    // size of the input file
+
+	private File input;            // random bytes of sizeMb
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		Handles.quiet();
+		input = File.createTempFile("benchmark", ".bin");
+		byte[] block = new byte[1 << 20];
+		try (RandomAccessFile out = new RandomAccessFile(input, "rw")) {
+			for (int i = 0; i < sizeMb; i++) {
+				ThreadLocalRandom.current().nextBytes(block);
+				out.write(block);
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.delete(input.toPath());
+	}
+
+	/* reads every segment of the input, returning how many */
+	@Benchmark
+	public long readData() throws Throwable {
+		Object proto = Handles.type("Protocol").getDeclaredConstructor().newInstance();
+		Handles.call(proto, "Protocol", "initProtocol", new Class<?>[] {String.class, String.class, String.class, String.class, String.class, String.class},
+				"127.0.0.1", "5999", input.getPath(), "unused", Integer.toString(payload), "nm");
+		Handles.call(proto, "Protocol", "setMappedReader", new Class<?>[] {boolean.class}, reader.equals("mmap"));
+		Handles.call(proto, "Protocol", "setPrefetch", new Class<?>[] {boolean.class}, reader.equals("prefetch"));
+		long reads = 0;
+		while ((int) Handles.READ_DATA.invokeExact(proto) != -1) {
+			reads++;
+		}
+		Handles.call(proto, "Protocol", "close", new Class<?>[0]);
+		return reads;
+	}
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Encoding and decoding a data segment with Java serialization, the legacy
+ * path, against the binary wire format, per payload size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireBenchmark {
+
+	@Param({"500", "1400", "8192", "65000"})
+	int payload;                   // payload bytes
+
+	private Object legacy;         // a segment with a string payload
+	private Object binary;         // the same segment with a byte payload
+	private byte[] serialized;     // legacy, serialized
+	private ByteBuffer encoded;    // binary, encoded
+	private ByteBuffer buf;        // where binary is encoded to
+
+	@Setup
+	public void setUp() throws Throwable {
+		ByteBuffer bytes = Handles.randomText(payload);
+		legacy = Handles.segment(payload);
+		Handles.call(legacy, "Segment", "setPayLoad", new Class<?>[] {String.class}, StandardCharsets.US_ASCII.decode(bytes.duplicate()).toString());
+		binary = Handles.segment(payload);
+		Handles.call(binary, "Segment", "setData", new Class<?>[] {ByteBuffer.class}, bytes);
+		serialized = (byte[]) (Object) Handles.SERIALIZE.invokeExact(legacy);
+		buf = ByteBuffer.allocate((int) Handles.ENCODED_SIZE.invokeExact(binary));
+		encoded = ByteBuffer.allocate(buf.capacity());
+		Handles.ENCODE.invokeExact(binary, (Object) encoded);
+		encoded.flip();
+	}
+
+	@Benchmark
+	public int encodeSerialization() throws Throwable {
+		return ((byte[]) (Object) Handles.SERIALIZE.invokeExact(legacy)).length;
+	}
+
+	@Benchmark
+	public int decodeSerialization() throws Throwable {
+		Object seg = (Object) Handles.DESERIALIZE.invokeExact((Object) serialized, 0, serialized.length);
+		return (int) Handles.SEGMENT_SIZE.invokeExact(seg);
+	}
+
+	@Benchmark
+	public int encodeBinary() throws Throwable {
+		buf.clear();
+		Handles.ENCODE.invokeExact(binary, (Object) buf);
+		return buf.position();
+	}
+
+	@Benchmark
+	public int decodeBinary() throws Throwable {
+		Object seg = (Object) Handles.DECODE.invokeExact((Object) encoded.duplicate());
+		return (int) Handles.SEGMENT_SIZE.invokeExact(seg);
+	}
+}
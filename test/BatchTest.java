@@ -0,0 +1,137 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* the files of a directory as one stream of bytes, and their manifest */
+class BatchTest {
+
+	@TempDir
+	Path dir;
+
+	private final Random random = new Random(23);
+
+	private byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	@Test
+	void manifestNamesStayBelowTheRoot() throws IOException {
+		for (String name : new String[] {"", ".", "..", "../escaped.bin", "sub/../../escaped.bin", dir.resolve("absolute.bin").toString()}) {
+			assertThrows(IOException.class, () -> new Batch(dir, new String[] {name}, new long[] {1}, true), name);
+		}
+		new Batch(dir, new String[] {"sub/../inside.bin", "sub/deeper/inside.bin"}, new long[] {1, 1}, true).close();
+	}
+
+	@Test
+	void negativeSizeIsRefused() {
+		assertThrows(IOException.class, () -> new Batch(dir, new String[] {"a.bin"}, new long[] {-1}, true));
+	}
+
+	@Test
+	void writesSpanTheFiles() throws IOException {
+		String[] names = {"a.bin", "empty.bin", "sub/b.bin", "c.bin"};
+		byte[] stream = randomBytes(5 + 0 + 7 + 3);
+		try (Batch batch = new Batch(dir, names, new long[] {5, 0, 7, 3}, true)) {
+			assertEquals(15, batch.size());
+			batch.write(ByteBuffer.wrap(stream, 8, 7), 8);   // the end of b.bin and all of c.bin, out of order
+			batch.write(ByteBuffer.wrap(stream, 0, 8), 0);
+			assertThrows(IOException.class, () -> batch.write(ByteBuffer.allocate(1), 15));
+		}
+		assertArrayEquals(Arrays.copyOfRange(stream, 0, 5), Files.readAllBytes(dir.resolve("a.bin")));
+		assertEquals(0, Files.size(dir.resolve("empty.bin")));   // created once the batch closes
+		assertArrayEquals(Arrays.copyOfRange(stream, 5, 12), Files.readAllBytes(dir.resolve("sub/b.bin")));
+		assertArrayEquals(Arrays.copyOfRange(stream, 12, 15), Files.readAllBytes(dir.resolve("c.bin")));
+	}
+
+	@Test
+	void readsSpanTheFilesInNameOrder() throws IOException {
+		byte[] a = randomBytes(40);
+		byte[] b = randomBytes(25);
+		Files.createDirectories(dir.resolve("sub"));
+		Files.write(dir.resolve("sub/b.bin"), b);
+		Files.write(dir.resolve("a.bin"), a);
+		Files.write(dir.resolve("empty.bin"), new byte[0]);
+
+		try (Batch batch = Batch.of(dir)) {
+			assertEquals(3, batch.files());
+			assertEquals(65, batch.size());
+			ByteBuffer dst = ByteBuffer.allocate(30);
+			assertEquals(30, batch.read(dst, 30));
+			byte[] expected = new byte[30];
+			System.arraycopy(a, 30, expected, 0, 10);
+			System.arraycopy(b, 0, expected, 10, 20);
+			assertArrayEquals(expected, dst.array());
+
+			// the stream ends before the buffer is full
+			dst.clear();
+			assertEquals(5, batch.read(dst, 60));
+			assertEquals(30, dst.limit());
+		}
+	}
+
+	@Test
+	void manyFilesOutlastTheOpenOnes() throws IOException {
+		int files = Batch.OPEN_FILES * 2 + 1;
+		String[] names = new String[files];
+		long[] sizes = new long[files];
+		for (int i = 0; i < files; i++) {
+			names[i] = "f" + i + ".bin";
+			sizes[i] = 2;
+		}
+		byte[] stream = randomBytes(2 * files);
+		try (Batch batch = new Batch(dir, names, sizes, true)) {
+			// one byte at a time, every file is opened twice with many others in between
+			for (int pass = 0; pass < 2; pass++) {
+				for (int i = 0; i < files; i++) {
+					batch.write(ByteBuffer.wrap(stream, 2 * i + pass, 1), 2 * i + pass);
+				}
+			}
+		}
+		for (int i = 0; i < files; i++) {
+			assertArrayEquals(Arrays.copyOfRange(stream, 2 * i, 2 * i + 2), Files.readAllBytes(dir.resolve(names[i])), names[i]);
+		}
+	}
+
+	@Test
+	void manifestRoundTripsInChunks() throws IOException {
+		String[] names = {"a.bin", "sub/b.bin", "na\u00efve.txt"};
+		long[] sizes = {5, 1L << 33, 0};
+		Batch batch = new Batch(dir, names, sizes, false);
+
+		List<String> decodedNames = new ArrayList<>();
+		List<Long> decodedSizes = new ArrayList<>();
+		ByteBuffer chunk = ByteBuffer.allocate(Batch.ENTRY_HEADER + 12);   // room for one entry at a time
+		int file = 0;
+		while (file < batch.files()) {
+			chunk.clear();
+			int next = batch.encode(file, chunk);
+			assertEquals(file + 1, next);
+			Batch.decode(chunk.flip(), decodedNames, decodedSizes);
+			file = next;
+		}
+		assertEquals(Arrays.asList(names), decodedNames);
+		assertEquals(Arrays.asList(5L, 1L << 33, 0L), decodedSizes);
+	}
+
+	@Test
+	void truncatedManifestIsRefused() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		new Batch(dir, new String[] {"a.bin"}, new long[] {5}, false).encode(0, buf);
+		buf.flip();
+		assertThrows(IOException.class, () -> Batch.decode(buf.duplicate().limit(buf.limit() - 1), new ArrayList<>(), new ArrayList<>()));
+		assertThrows(IOException.class, () -> Batch.decode(buf.duplicate().limit(Batch.ENTRY_HEADER - 1), new ArrayList<>(), new ArrayList<>()));
+	}
+}
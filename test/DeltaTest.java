@@ -0,0 +1,130 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* the signature of an old file and the copies an input is matched into against it */
+class DeltaTest {
+
+	static final int BLOCK = 64;
+
+	@TempDir
+	Path dir;
+
+	private final Random random = new Random(17);
+
+	private byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/* the signature of the given old content */
+	private Delta signature(byte[] old) throws IOException {
+		Path path = dir.resolve("old.bin");
+		Files.write(path, old);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return Delta.of(channel, BLOCK);
+		}
+	}
+
+	/* the copies of the given input against the signature, each checked to copy the bytes the input holds */
+	private List<Delta.Copy> match(Delta signature, byte[] old, byte[] input) throws IOException {
+		Path path = dir.resolve("input.bin");
+		Files.write(path, input);
+		List<Delta.Copy> copies;
+		try (SegmentReader reader = new SegmentReader(path.toFile(), BLOCK, false)) {
+			copies = signature.match(reader, input.length);
+		}
+		for (Delta.Copy copy : copies) {
+			int from = copy.first * BLOCK;
+			int to = Math.min(from + copy.count * BLOCK, input.length);
+			byte[] copied = Arrays.copyOfRange(old, (int) copy.source, (int) copy.source + to - from);
+			assertArrayEquals(Arrays.copyOfRange(input, from, to), copied, "copy of segment " + copy.first);
+		}
+		return copies;
+	}
+
+	/* the segments the copies make */
+	private static int copied(List<Delta.Copy> copies) {
+		return copies.stream().mapToInt(copy -> copy.count).sum();
+	}
+
+	@Test
+	void signatureLeavesOutAShortLastBlock() throws IOException {
+		byte[] old = randomBytes(10 * BLOCK + 5);
+		Delta signature = signature(old);
+		assertEquals(10, signature.weak.length);
+		assertEquals(10, signature.strong.length);
+		assertEquals(Delta.weak(ByteBuffer.wrap(old), 3 * BLOCK, BLOCK), signature.weak[3]);
+	}
+
+	@Test
+	void sameFileIsOneCopy() throws IOException {
+		byte[] old = randomBytes(50 * BLOCK);
+		List<Delta.Copy> copies = match(signature(old), old, old);
+		assertEquals(1, copies.size());
+		assertEquals(0, copies.get(0).first);
+		assertEquals(50, copies.get(0).count);
+		assertEquals(0, copies.get(0).source);
+	}
+
+	@Test
+	void insertionShiftsTheCopies() throws IOException {
+		byte[] old = randomBytes(50 * BLOCK);
+		byte[] input = new byte[old.length + 10];
+		System.arraycopy(old, 0, input, 10, old.length);   // 10 bytes inserted at the front
+
+		List<Delta.Copy> copies = match(signature(old), old, input);
+		// every segment but the first, which holds the insertion, lies inside the matched run
+		assertEquals(50, copied(copies));
+		assertEquals(1, copies.get(0).first);
+		assertEquals(BLOCK - 10, copies.get(0).source);
+	}
+
+	@Test
+	void changedBytesCostTheSegmentsTheyTouch() throws IOException {
+		byte[] old = randomBytes(50 * BLOCK);
+		byte[] input = old.clone();
+		input[20 * BLOCK + 3] ^= 1;
+		input[35 * BLOCK] ^= 1;
+
+		List<Delta.Copy> copies = match(signature(old), old, input);
+		assertEquals(48, copied(copies));
+	}
+
+	@Test
+	void movedBlocksAreFound() throws IOException {
+		byte[] old = randomBytes(20 * BLOCK);
+		byte[] input = new byte[old.length];
+		System.arraycopy(old, 10 * BLOCK, input, 0, 10 * BLOCK);   // the halves swapped
+		System.arraycopy(old, 0, input, 10 * BLOCK, 10 * BLOCK);
+
+		List<Delta.Copy> copies = match(signature(old), old, input);
+		assertEquals(20, copied(copies));
+		assertEquals(2, copies.size());
+	}
+
+	@Test
+	void unrelatedFileHasNoCopies() throws IOException {
+		byte[] old = randomBytes(20 * BLOCK);
+		assertTrue(match(signature(old), old, randomBytes(20 * BLOCK)).isEmpty());
+	}
+
+	@Test
+	void inputShorterThanABlockHasNoCopies() throws IOException {
+		byte[] old = randomBytes(20 * BLOCK);
+		assertTrue(match(signature(old), old, Arrays.copyOf(old, BLOCK - 1)).isEmpty());
+	}
+}
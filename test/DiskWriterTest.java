@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* the ring of slots that hands payloads from the receiving thread to the writer thread */
+class DiskWriterTest {
+
+	static final int SLOT = 100;
+
+	@TempDir
+	Path dir;
+
+	private final Random random = new Random(24);
+
+	private byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private FileChannel open() throws IOException {
+		return FileChannel.open(dir.resolve("out.bin"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	@Test
+	void syncPolicyOfTheOption() {
+		assertEquals(DiskWriter.SYNC_NONE, DiskWriter.syncPolicy("none"));
+		assertEquals(DiskWriter.SYNC_AT_END, DiskWriter.syncPolicy("END"));
+		assertEquals(64L << 20, DiskWriter.syncPolicy("64"));
+		assertThrows(IllegalArgumentException.class, () -> DiskWriter.syncPolicy("0"));
+		assertThrows(IllegalArgumentException.class, () -> DiskWriter.syncPolicy("always"));
+	}
+
+	@Test
+	void segmentsLandWhereTheyBelongThroughASmallRing() throws IOException {
+		byte[] content = randomBytes(40 * SLOT + 37);
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i <= 40; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, random);
+		try (FileChannel output = open()) {
+			// a ring of four slots wraps around many times and fills up while the writer runs behind
+			DiskWriter writer = new DiskWriter(output, null, DiskWriter.SYNC_AT_END, SLOT, 4);
+			for (int i : order) {
+				ByteBuffer payload = ByteBuffer.wrap(content, i * SLOT, Math.min(SLOT, content.length - i * SLOT));
+				writer.write(payload, (long) i * SLOT);
+				assertFalse(payload.hasRemaining());
+			}
+			writer.close();
+		}
+		assertArrayEquals(content, Files.readAllBytes(dir.resolve("out.bin")));
+	}
+
+	@Test
+	void payloadLargerThanASlotTakesSeveral() throws IOException {
+		byte[] content = randomBytes(3 * SLOT + 50);
+		try (FileChannel output = open()) {
+			DiskWriter writer = new DiskWriter(output, null, DiskWriter.SYNC_NONE, SLOT, 100);
+			writer.write(ByteBuffer.wrap(content, 0, 2 * SLOT + 10), 0);
+			writer.write(ByteBuffer.wrap(content, 2 * SLOT + 10, SLOT + 40), 2 * SLOT + 10);
+			writer.close();
+		}
+		assertArrayEquals(content, Files.readAllBytes(dir.resolve("out.bin")));
+	}
+
+	@Test
+	void drainMakesTheWritesReadable() throws IOException {
+		byte[] content = randomBytes(10 * SLOT);
+		try (FileChannel output = open()) {
+			DiskWriter writer = new DiskWriter(output, null, DiskWriter.SYNC_NONE, SLOT, 10);
+			writer.write(ByteBuffer.wrap(content), 0);
+			writer.drain();
+			ByteBuffer read = ByteBuffer.allocate(content.length);
+			while (read.hasRemaining() && output.read(read, read.position()) >= 0) {
+			}
+			assertArrayEquals(content, read.array());
+			writer.close();
+		}
+	}
+
+	@Test
+	void writesSpanTheFilesOfABatch() throws IOException {
+		byte[] content = randomBytes(2 * SLOT + 30);
+		Batch batch = new Batch(dir, new String[] {"a.bin", "b.bin"}, new long[] {SLOT + 70, SLOT - 40}, true);
+		DiskWriter writer = new DiskWriter(null, batch, DiskWriter.SYNC_AT_END, SLOT, 3);
+		for (int i = 2; i >= 0; i--) {
+			writer.write(ByteBuffer.wrap(content, i * SLOT, Math.min(SLOT, content.length - i * SLOT)), (long) i * SLOT);
+		}
+		writer.close();
+		batch.close();
+		assertArrayEquals(Arrays.copyOfRange(content, 0, SLOT + 70), Files.readAllBytes(dir.resolve("a.bin")));
+		assertArrayEquals(Arrays.copyOfRange(content, SLOT + 70, content.length), Files.readAllBytes(dir.resolve("b.bin")));
+	}
+
+	@Test
+	void writeErrorFailsTheReceivingSide() throws IOException {
+		FileChannel output = open();
+		output.close();
+		DiskWriter writer = new DiskWriter(output, null, DiskWriter.SYNC_NONE, SLOT, 4);
+		writer.write(ByteBuffer.wrap(randomBytes(SLOT)), 0);
+		assertThrows(IOException.class, writer::drain);
+		assertThrows(IOException.class, () -> writer.write(ByteBuffer.wrap(randomBytes(SLOT)), SLOT));
+		assertThrows(IOException.class, writer::close);
+	}
+}
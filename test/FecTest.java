@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/* the XOR parity of groups of segments and rebuilding a lost member from it */
+class FecTest {
+
+	static final int PAYLOAD = 100;
+
+	private final Random random = new Random(22);
+
+	private byte[][] members(int count, int lastLength) {
+		byte[][] members = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			members[i] = new byte[i == count - 1 ? lastLength : PAYLOAD];
+			random.nextBytes(members[i]);
+		}
+		return members;
+	}
+
+	/* rebuilds member missing of class j from the parity and the other members of the class */
+	private static byte[] rebuild(ByteBuffer parity, byte[][] members, int start, int missing, int classes) {
+		ByteBuffer sum = ByteBuffer.allocate(PAYLOAD);
+		sum.put(parity.duplicate());
+		for (int i = (missing - start) % classes + start; i - start < members.length; i += classes) {
+			if (i != missing) {
+				Fec.xor(sum, ByteBuffer.wrap(members[i - start]));
+			}
+		}
+		return Arrays.copyOf(sum.array(), members[missing - start].length);
+	}
+
+	@Test
+	void groupsStartAtTheFirstSegmentOfTheStream() {
+		assertEquals(0, Fec.groupStart(7, 0, 8));
+		assertEquals(8, Fec.groupStart(8, 0, 8));
+		assertEquals(100, Fec.groupStart(107, 100, 8));
+		assertEquals(108, Fec.groupStart(108, 100, 8));
+	}
+
+	@Test
+	void parityRebuildsAnyOneLostMember() {
+		byte[][] members = members(8, PAYLOAD);
+		Fec fec = new Fec(8, 1, PAYLOAD, 0, 100);
+		for (int i = 0; i < 8; i++) {
+			assertEquals(i == 7, fec.add(i, ByteBuffer.wrap(members[i])));
+		}
+		assertEquals(0, fec.groupStart());
+		for (int lost = 0; lost < 8; lost++) {
+			assertArrayEquals(members[lost], rebuild(fec.parity(0), members, 0, lost, 1));
+		}
+	}
+
+	@Test
+	void classesRebuildABurst() {
+		byte[][] members = members(8, PAYLOAD);
+		Fec fec = new Fec(8, 2, PAYLOAD, 16, 100);
+		for (int i = 0; i < 8; i++) {
+			fec.add(16 + i, ByteBuffer.wrap(members[i]));
+		}
+		// segments 19 and 20 are lost together, one in each class
+		assertArrayEquals(members[3], rebuild(fec.parity(1), members, 16, 19, 2));
+		assertArrayEquals(members[4], rebuild(fec.parity(0), members, 16, 20, 2));
+	}
+
+	@Test
+	void shortLastGroupEndsAtTheStreamEnd() {
+		byte[][] members = members(3, 40);   // segments 8 to 10 of a stream that ends at 11, the last one short
+		Fec fec = new Fec(8, 1, PAYLOAD, 0, 11);
+		assertFalse(fec.add(8, ByteBuffer.wrap(members[0])));
+		assertFalse(fec.add(9, ByteBuffer.wrap(members[1])));
+		assertTrue(fec.add(10, ByteBuffer.wrap(members[2])));
+		assertEquals(PAYLOAD, fec.parity(0).remaining());
+		assertArrayEquals(members[2], rebuild(fec.parity(0), members, 8, 10, 1));
+	}
+
+	@Test
+	void groupWithAGapGetsNoParity() {
+		Fec fec = new Fec(4, 1, PAYLOAD, 0, 100);
+		byte[][] members = members(4, PAYLOAD);
+		fec.add(0, ByteBuffer.wrap(members[0]));
+		fec.add(2, ByteBuffer.wrap(members[2]));
+		assertFalse(fec.add(3, ByteBuffer.wrap(members[3])));
+		// the next group starts afresh
+		for (int i = 4; i < 7; i++) {
+			assertFalse(fec.add(i, ByteBuffer.wrap(members[i - 4])));
+		}
+		assertTrue(fec.add(7, ByteBuffer.wrap(members[3])));
+	}
+
+	@Test
+	void emptyClassHasAnEmptyParity() {
+		Fec fec = new Fec(4, 4, PAYLOAD, 0, 2);   // a group of only two members
+		fec.add(0, ByteBuffer.wrap(new byte[PAYLOAD]));
+		assertTrue(fec.add(1, ByteBuffer.wrap(new byte[PAYLOAD])));
+		assertEquals(0, fec.parity(3).remaining());
+	}
+}
@@ -0,0 +1,95 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/* the log-linear buckets of a histogram and the percentiles read from them */
+class HistogramTest {
+
+	@Test
+	void everyValueFallsInTheBucketThatHoldsIt() {
+		Random random = new Random(20);
+		for (int i = 0; i < 100_000; i++) {
+			long value = i < 1000 ? i : random.nextLong() >>> (64 - Histogram.MAX_BITS);
+			int index = Histogram.indexOf(value);
+			assertTrue(Histogram.lowestOf(index) <= value && value < Histogram.lowestOf(index + 1), "value " + value);
+			// a bucket is never wider than 1/SUB_BUCKETS of the values in it
+			long width = Histogram.lowestOf(index + 1) - Histogram.lowestOf(index);
+			assertTrue(width == 1 || width * Histogram.SUB_BUCKETS <= Histogram.lowestOf(index), "value " + value);
+		}
+	}
+
+	@Test
+	void emptyHistogramReadsZero() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.count());
+		assertEquals(0, histogram.mean());
+		assertEquals(0, histogram.max());
+		assertEquals(0, histogram.percentile(0.99));
+	}
+
+	@Test
+	void smallValuesAreExact() {
+		Histogram histogram = new Histogram();
+		for (int value = 0; value < Histogram.SUB_BUCKETS; value++) {
+			histogram.record(value);
+		}
+		assertEquals(Histogram.SUB_BUCKETS, histogram.count());
+		assertEquals((Histogram.SUB_BUCKETS - 1) / 2.0, histogram.mean());
+		assertEquals(0, histogram.percentile(0));
+		assertEquals(Histogram.SUB_BUCKETS / 2 - 1, histogram.percentile(0.5));
+		assertEquals(Histogram.SUB_BUCKETS - 1, histogram.percentile(1));
+	}
+
+	@Test
+	void percentilesAreWithinTheBucketPrecision() {
+		Histogram histogram = new Histogram();
+		for (int value = 1; value <= 10_000; value++) {
+			histogram.record(value);
+		}
+		assertEquals(10_000, histogram.count());
+		assertEquals(5000.5, histogram.mean());
+		assertEquals(10_000, histogram.max());
+		for (double fraction : new double[] {0.5, 0.9, 0.99, 0.999}) {
+			long exact = (long) Math.ceil(fraction * 10_000);
+			long read = histogram.percentile(fraction);
+			assertTrue(read >= exact && read <= exact + exact / Histogram.SUB_BUCKETS, fraction + " read " + read);
+		}
+		assertEquals(10_000, histogram.percentile(1));
+	}
+
+	@Test
+	void outliersStopAtTheMaximum() {
+		Histogram histogram = new Histogram();
+		histogram.record(-5);   // counted as 0
+		histogram.record(1L << 50);   // past the last bucket
+		assertEquals(0, histogram.percentile(0.5));
+		assertEquals(1L << 50, histogram.max());
+		assertEquals(1L << 50, histogram.percentile(1));
+	}
+
+	@Test
+	void concurrentRecordsAreAllCounted() throws InterruptedException {
+		Histogram histogram = new Histogram();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 10_000; i++) {
+					histogram.record(i % 100);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(80_000, histogram.count());
+		assertEquals(49.5, histogram.mean());
+		assertEquals(99, histogram.max());
+		assertEquals(99, histogram.percentile(1));
+	}
+}
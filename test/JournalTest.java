@@ -0,0 +1,95 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* writing and loading the checkpoint of the received ranges of a file */
+class JournalTest {
+
+	@TempDir
+	Path dir;
+
+	@BeforeAll
+	static void quiet() {
+		Log.setLevel("quiet");
+	}
+
+	private String name() {
+		return dir.resolve("out.bin").toString();
+	}
+
+	@Test
+	void rangesRoundTrip() throws IOException {
+		BitSet received = new BitSet();
+		received.set(0, 3);
+		received.set(5);
+		received.set(8, 10);
+		new Journal(name(), 950, 42).write(received, 100);
+
+		// runs of segments become byte ranges, the last one ends at the end of the file
+		long[] ranges = new Journal(name(), 950, 42).load();
+		assertArrayEquals(new long[] {0, 300, 500, 600, 800, 950}, ranges);
+		assertFalse(Files.exists(Path.of(name() + Journal.SUFFIX + ".tmp")));
+	}
+
+	@Test
+	void emptyJournalHasNoRanges() throws IOException {
+		new Journal(name(), 950, 42).write(new BitSet(), 100);
+		assertArrayEquals(new long[0], new Journal(name(), 950, 42).load());
+	}
+
+	@Test
+	void journalOfAnotherContentIsIgnored() throws IOException {
+		BitSet received = new BitSet();
+		received.set(0, 4);
+		new Journal(name(), 950, 42).write(received, 100);
+		assertNull(new Journal(name(), 950, 43).load());
+		assertNull(new Journal(name(), 951, 42).load());
+	}
+
+	@Test
+	void missingOrBrokenJournalIsIgnored() throws IOException {
+		assertNull(new Journal(name(), 950, 42).load());
+		Files.write(Path.of(name() + Journal.SUFFIX), new byte[] {1, 2, 3});
+		assertNull(new Journal(name(), 950, 42).load());
+	}
+
+	@Test
+	void truncatedJournalIsIgnored() throws IOException {
+		BitSet received = new BitSet();
+		received.set(0);
+		received.set(2);
+		new Journal(name(), 950, 42).write(received, 100);
+		Path path = Path.of(name() + Journal.SUFFIX);
+		byte[] bytes = Files.readAllBytes(path);
+		Files.write(path, Arrays.copyOf(bytes, bytes.length - 16));
+		assertNull(new Journal(name(), 950, 42).load());
+	}
+
+	@Test
+	void deleteRemovesTheJournal() throws IOException {
+		Journal journal = new Journal(name(), 950, 42);
+		journal.write(new BitSet(), 100);
+		journal.delete();
+		assertNull(journal.load());
+	}
+
+	@Test
+	void coveredFromFollowsTheRangeOfTheOffset() {
+		long[] ranges = {0, 300, 500, 600};
+		assertEquals(300, Journal.coveredFrom(ranges, 0));
+		assertEquals(300, Journal.coveredFrom(ranges, 299));
+		assertEquals(300, Journal.coveredFrom(ranges, 300));
+		assertEquals(600, Journal.coveredFrom(ranges, 550));
+		assertEquals(700, Journal.coveredFrom(ranges, 700));
+	}
+}
@@ -0,0 +1,77 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/* the leveled logger and the streams its writer thread prints to */
+class LogTest {
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+	private PrintStream systemOut;
+	private PrintStream systemErr;
+
+	@BeforeEach
+	void capture() {
+		Log.flush();
+		systemOut = System.out;
+		systemErr = System.err;
+		System.setOut(new PrintStream(out, true, StandardCharsets.UTF_8));
+		System.setErr(new PrintStream(err, true, StandardCharsets.UTF_8));
+	}
+
+	@AfterEach
+	void restore() {
+		Log.flush();
+		System.setOut(systemOut);
+		System.setErr(systemErr);
+		Log.setLevel("quiet");
+	}
+
+	private static String text(ByteArrayOutputStream stream) {
+		return stream.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void warningsGoToStandardError() {
+		Log.setLevel("info");
+		Log.info("SENDER --> info one");
+		Log.warn("SENDER --> warning");
+		Log.info("SENDER --> info two");
+		Log.flush();
+		assertTrue(text(out).contains("SENDER --> info one" + System.lineSeparator() + "SENDER --> info two"));
+		assertTrue(text(err).contains("SENDER --> warning"));
+		assertFalse(text(out).contains("SENDER --> warning"));
+		assertFalse(text(err).contains("SENDER --> info"));
+	}
+
+	@Test
+	void levelDropsTheMessagesBelowIt() {
+		Log.setLevel("info");
+		assertFalse(Log.isTrace());
+		Log.trace("SENDER --> trace");
+		Log.setLevel("quiet");
+		assertFalse(Log.isInfo());
+		Log.info("SENDER --> info");
+		Log.warn("SENDER --> still a warning");
+		Log.flush();
+		assertFalse(text(out).contains("SENDER --> trace"));
+		assertFalse(text(out).contains("SENDER --> info"));
+		assertTrue(text(err).contains("SENDER --> still a warning"));
+	}
+
+	@Test
+	void flushWaitsForABurstLargerThanTheRing() {
+		Log.setLevel("trace");
+		for (int i = 0; i < Log.CAPACITY * 2; i++) {
+			Log.trace("SENDER --> segment " + i);
+		}
+		Log.flush();
+		assertTrue(text(out).contains("SENDER --> segment " + (Log.CAPACITY * 2 - 1) + System.lineSeparator()));
+	}
+}
@@ -0,0 +1,117 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* the process-wide counters, the counters of each open transfer and the JSON snapshot of both */
+class MetricsTest {
+
+	static final int SEGMENT = 100;
+
+	@TempDir
+	Path dir;
+
+	@BeforeAll
+	static void quiet() {
+		Log.setLevel("quiet");
+	}
+
+	private Transfer transfer(int transferId, String name) throws IOException {
+		MetaData metaData = new MetaData();
+		metaData.setName(dir.resolve(name).toString());
+		metaData.setSize(3 * SEGMENT);
+		metaData.setMaxSegSize(SEGMENT);
+		metaData.setMode(Protocol.SR_MODE);
+		metaData.setWindow(8);
+		metaData.setTransferId(transferId);
+		metaData.setChecksum(Checksum.CRC32C);
+		return new Transfer(metaData, WireFormat.VERSION, 1, DiskWriter.SYNC_NONE);
+	}
+
+	private static Segment segment(int transferId, int index) {
+		ByteBuffer payload = ByteBuffer.allocate(SEGMENT);
+		Segment seg = new Segment();
+		seg.setType(SegmentType.Data);
+		seg.setTransferId(transferId);
+		seg.setSq(index);
+		seg.setOffset((long) index * SEGMENT);
+		seg.setSize(SEGMENT);
+		seg.setData(payload);
+		seg.setChecksum(Checksum.CRC32C.of(payload));
+		return seg;
+	}
+
+	@Test
+	void openTransfersAreListedWithTheirOwnCounts() throws IOException {
+		long received = Metrics.segmentsReceived.sum();
+		long duplicates = Metrics.duplicates.sum();
+		long active = Metrics.activeTransfers.sum();
+		InetSocketAddress client = new InetSocketAddress("127.0.0.1", 4000);
+
+		Transfer busy = transfer(41, "busy.bin");
+		Transfer idle = transfer(42, "idle.bin");
+		busy.receive(segment(41, 0), client);
+		busy.receive(segment(41, 0), client);
+		busy.receive(segment(41, 1), client);
+		assertEquals(active + 2, Metrics.activeTransfers.sum());
+		assertEquals(received + 3, Metrics.segmentsReceived.sum());
+		assertEquals(duplicates + 1, Metrics.duplicates.sum());
+
+		String snapshot = Metrics.json(null, 0);
+		assertTrue(snapshot.contains("{\"transferId\":41,\"file\":\"" + dir.resolve("busy.bin").toString().replace("\\", "\\\\") + "\",\"totalBytes\":300,"
+				+ "\"segmentsReceived\":3,\"bytesReceived\":300,\"bytesWritten\":200,\"checksumFailures\":0,\"duplicates\":1,"), snapshot);
+		assertTrue(snapshot.contains("{\"transferId\":42,"), snapshot);
+		assertTrue(snapshot.contains("\"segmentsReceived\":0,"), snapshot);
+
+		busy.close();
+		snapshot = Metrics.json(null, 0);
+		assertFalse(snapshot.contains("\"transferId\":41,"), snapshot);
+		assertTrue(snapshot.contains("\"transferId\":42,"), snapshot);
+		assertEquals(received + 3, Metrics.segmentsReceived.sum());   // the totals keep what closed transfers counted
+		idle.close();
+		idle.close();
+		assertEquals(active, Metrics.activeTransfers.sum());
+		assertFalse(Metrics.json(null, 0).contains("\"transferId\":42,"));
+	}
+
+	@Test
+	void fileNamesAreEscaped() {
+		Metrics.Receiving transfer = Metrics.open(43, "a\"b\\c\n.bin", 0);
+		try {
+			assertTrue(Metrics.json(null, 0).contains("\"file\":\"a\\\"b\\\\c\\u000a.bin\""));
+		} finally {
+			Metrics.close(transfer);
+		}
+	}
+
+	@Test
+	void snapshotAddsTheRatesOfAnInterval() {
+		long[] last = new long[4];
+		String first = Metrics.json(null, 0);
+		assertFalse(first.contains("throughputMBps"));
+		assertTrue(first.startsWith("{\"time\":") && first.endsWith("]}}"), first);
+
+		Metrics.json(last, 0);
+		long sent = last[0];
+		Metrics.bytesSent.add(1 << 20);
+		String interval = Metrics.json(last, 1_000_000_000L);
+		assertTrue(interval.contains("\"throughputMBps\":1.000,"), interval);
+		assertEquals(sent + (1 << 20), last[0]);
+	}
+
+	@Test
+	void retransmitRatioIsResentOverSent() {
+		long sent = Metrics.segmentsSent.sum();
+		long resent = Metrics.segmentsResent.sum();
+		Metrics.segmentsSent.add(4 * (sent + 1) - sent);
+		Metrics.segmentsResent.add(sent + 1 - resent);
+		assertEquals(0.25, Metrics.retransmitRatio());
+	}
+}
@@ -0,0 +1,115 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* the pool of segments a reader thread reads ahead of the sender */
+class PrefetcherTest {
+
+	static final int SEGMENT = 100;
+	static final int SEGMENTS = 300;   // several times the depth, so the reader fills the pool and waits more than once
+
+	@TempDir
+	Path dir;
+
+	private byte[] content;
+	private SegmentReader reader;
+
+	@BeforeEach
+	void input() throws IOException {
+		content = new byte[(SEGMENTS - 1) * SEGMENT + 37];
+		new Random(25).nextBytes(content);
+		Path path = dir.resolve("input.bin");
+		Files.write(path, content);
+		reader = new SegmentReader(path.toFile(), SEGMENT, false);
+	}
+
+	/* the bytes of the given segment of the input */
+	private byte[] segment(int index) {
+		return Arrays.copyOfRange(content, index * SEGMENT, Math.min((index + 1) * SEGMENT, content.length));
+	}
+
+	private static byte[] bytes(ByteBuffer payload) {
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+		return bytes;
+	}
+
+	@Test
+	void segmentsTakenInOrderHoldTheInput() throws IOException {
+		try (Prefetcher prefetcher = new Prefetcher(reader, new BitSet(), 0, SEGMENTS, 8, SEGMENT)) {
+			for (int i = 0; i < SEGMENTS; i++) {
+				ByteBuffer payload = prefetcher.take(i);
+				assertTrue(payload.isReadOnly());
+				assertArrayEquals(segment(i), bytes(payload), "segment " + i);
+			}
+			assertNull(prefetcher.take(SEGMENTS));
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	void segmentTakenBeforeIsGone() throws IOException {
+		try (Prefetcher prefetcher = new Prefetcher(reader, new BitSet(), 10, SEGMENTS, 8, SEGMENT)) {
+			assertNull(prefetcher.take(9));   // before the range
+			assertArrayEquals(segment(10), bytes(prefetcher.take(10)));
+			assertArrayEquals(segment(11), bytes(prefetcher.take(11)));
+			assertNull(prefetcher.take(10));   // a resend reads it itself
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	void skippedSegmentsAreLeftOut() throws IOException {
+		BitSet skip = new BitSet();
+		for (int i = 0; i < SEGMENTS; i += 2) {
+			skip.set(i);   // received by the server already
+		}
+		try (Prefetcher prefetcher = new Prefetcher(reader, skip, 0, SEGMENTS, 8, SEGMENT)) {
+			for (int i = 1; i < SEGMENTS; i += 2) {
+				assertArrayEquals(segment(i), bytes(prefetcher.take(i)), "segment " + i);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	void readerFollowsASenderThatSkipsAhead() throws IOException {
+		try (Prefetcher prefetcher = new Prefetcher(reader, new BitSet(), 0, SEGMENTS, 8, SEGMENT)) {
+			assertArrayEquals(segment(0), bytes(prefetcher.take(0)));
+			assertArrayEquals(segment(250), bytes(prefetcher.take(250)));
+			assertArrayEquals(segment(251), bytes(prefetcher.take(251)));
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	void failedReadLeavesTheSegmentsToTheSender() throws IOException {
+		reader.close();
+		try (Prefetcher prefetcher = new Prefetcher(reader, new BitSet(), 0, SEGMENTS, 8, SEGMENT)) {
+			assertNull(prefetcher.take(0));
+		}
+	}
+
+	@Test
+	void closedPrefetcherReadsNoMore() throws IOException {
+		Prefetcher prefetcher = new Prefetcher(reader, new BitSet(), 0, SEGMENTS, 8, SEGMENT);
+		prefetcher.close();
+		assertNull(prefetcher.take(SEGMENTS - 1));
+		reader.close();
+	}
+}
@@ -0,0 +1,108 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/* whole transfers from a client to an in-process NioServer over the loopback interface */
+class ProtocolTest {
+
+	static final long DEADLINE = 20_000;   // milliseconds a server gets to finish a file
+
+	private static int port;
+
+	private Path dir;   // below the working directory, the only place the server writes to
+	private final Random random = new Random(1);
+
+	@BeforeAll
+	static void server() throws IOException {
+		Log.setLevel("quiet");
+		try (DatagramSocket free = new DatagramSocket(0)) {
+			port = free.getLocalPort();
+		}
+		NioServer server = new NioServer(port, 1, DiskWriter.SYNC_NONE);
+		Thread thread = new Thread(() -> {
+			try {
+				server.run();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}, "test-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@BeforeEach
+	void directory() throws IOException {
+		dir = Paths.get("").toAbsolutePath().relativize(Files.createTempDirectory(Paths.get("").toAbsolutePath(), "test"));
+	}
+
+	@AfterEach
+	void removeDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	private byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/* a client of the loopback server, with the given options set by the caller */
+	private Protocol client(Path input, Path output, int payloadSize) throws IOException {
+		Protocol proto = new Protocol();
+		proto.initProtocol("127.0.0.1", Integer.toString(port), input.toString(), output.toString(), Integer.toString(payloadSize), Protocol.SR_MODE);
+		proto.setWindow(8);
+		return proto;
+	}
+
+	/* waits until the server closed the output file with the given content */
+	private static void awaitContent(byte[] expected, Path output) throws Exception {
+		long giveUp = System.currentTimeMillis() + DEADLINE;
+		while (System.currentTimeMillis() < giveUp) {
+			if (Files.exists(output) && Arrays.equals(expected, Files.readAllBytes(output))
+					&& !Files.exists(Paths.get(output + Transfer.DELTA_SUFFIX))) {
+				return;
+			}
+			Thread.sleep(20);
+		}
+		assertArrayEquals(expected, Files.readAllBytes(output));
+	}
+
+	@Test
+	void deltaWithPayloadsTooSmallForACopySendsTheWholeFile() throws Exception {
+		byte[] content = randomBytes(64);
+		byte[] old = content.clone();
+		old[10] ^= 1;
+		Path input = dir.resolve("input.bin");
+		Path output = dir.resolve("output.bin");
+		Files.write(input, content);
+		Files.write(output, old);
+
+		for (int payloadSize = 1; payloadSize <= 3; payloadSize++) {
+			Protocol proto = client(input, output, payloadSize);
+			proto.setDelta(true);
+			proto.setResume(false);
+			try {
+				proto.sendMetadata();
+				proto.sendFileSelectiveRepeat(8);
+			} finally {
+				proto.close();
+			}
+			awaitContent(content, output);
+			Files.write(output, old);
+		}
+	}
+}
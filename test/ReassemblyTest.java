@@ -0,0 +1,58 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/* the staging slots of segments that arrive ahead of the expected one */
+class ReassemblyTest {
+
+	private static ByteBuffer payload(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static String text(ByteBuffer payload) {
+		return StandardCharsets.US_ASCII.decode(payload).toString();
+	}
+
+	@Test
+	void heldSegmentIsTakenOnce() {
+		Reassembly staging = new Reassembly(1, 8, 16);
+		staging.hold(0, 3, payload("three"));
+		assertTrue(staging.holds(0, 3));
+		assertFalse(staging.holds(0, 11));   // the same slot, another segment
+		assertEquals("three", text(staging.peek(0, 3)));
+		assertEquals("three", text(staging.take(0, 3)));
+		assertFalse(staging.holds(0, 3));
+		assertNull(staging.take(0, 3));
+	}
+
+	@Test
+	void streamsHaveSlotsOfTheirOwn() {
+		Reassembly staging = new Reassembly(2, 4, 16);
+		staging.hold(0, 1, payload("first"));
+		staging.hold(1, 1, payload("second"));
+		assertEquals("first", text(staging.take(0, 1)));
+		assertEquals("second", text(staging.take(1, 1)));
+	}
+
+	@Test
+	void payloadIsCopiedOutOfItsBuffer() {
+		Reassembly staging = new Reassembly(1, 4, 16);
+		ByteBuffer received = payload("original");
+		staging.hold(0, 2, received);
+		received.put(0, (byte) 'X');   // the receive buffer is reused for the next datagram
+		assertEquals("original", text(staging.take(0, 2)));
+		assertEquals(0, received.position());
+	}
+
+	@Test
+	void slotsAreBoundedByTheBytesHeld() {
+		Reassembly staging = new Reassembly(4, 1 << 20, 65000);
+		assertEquals(Reassembly.MAX_BYTES / 4 / 65000, staging.slots());
+		assertEquals(8, new Reassembly(1, 8, 100).slots());
+	}
+}
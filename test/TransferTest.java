@@ -0,0 +1,543 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/* the receive and ACK state machine of a transfer, fed segments directly */
+class TransferTest {
+
+	static final int SEGMENT = 100;      // payload size of the test transfers
+	static final SocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 4000);
+
+	@TempDir
+	Path dir;
+
+	private byte[] content;              // the file being sent
+	private Path output;                 // where the transfer writes it
+
+	@BeforeAll
+	static void quiet() {
+		Log.setLevel("quiet");
+	}
+
+	@BeforeEach
+	void setUp() {
+		content = new byte[10 * SEGMENT + 37];
+		ThreadLocalRandom.current().nextBytes(content);
+		output = dir.resolve("out.bin");
+	}
+
+	/* the metadata of a transfer of content in the given mode and window */
+	private MetaData metaData(String mode, int window) {
+		MetaData metaData = new MetaData();
+		metaData.setName(output.toString());
+		metaData.setSize(content.length);
+		metaData.setMaxSegSize(SEGMENT);
+		metaData.setMode(mode);
+		metaData.setWindow(window);
+		metaData.setTransferId(7);
+		metaData.setChecksum(Checksum.CRC32C);
+		return metaData;
+	}
+
+	/* the data segment of the given index of content, numbered like gbn and sr do */
+	private Segment segment(int index) {
+		int from = index * SEGMENT;
+		ByteBuffer payload = ByteBuffer.wrap(content, from, Math.min(SEGMENT, content.length - from)).slice();
+		Segment seg = new Segment();
+		seg.setType(SegmentType.Data);
+		seg.setTransferId(7);
+		seg.setSq(index);
+		seg.setOffset(from);
+		seg.setSize(payload.remaining());
+		seg.setData(payload);
+		seg.setChecksum(Checksum.CRC32C.of(payload));
+		return seg;
+	}
+
+	/* the number of segments of content */
+	private int segments() {
+		return (content.length + SEGMENT - 1) / SEGMENT;
+	}
+
+	@Test
+	void everyInOrderSegmentIsAcknowledgedWithoutDelay() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.GBN_MODE, 8), WireFormat.VERSION)) {
+			for (int i = 0; i < segments(); i++) {
+				Segment ack = transfer.receive(segment(i), CLIENT);
+				assertNotNull(ack);
+				assertEquals(SegmentType.Ack, ack.getType());
+				assertEquals(i, ack.getSq());
+				assertEquals(Math.min((i + 1) * SEGMENT, content.length), ack.getOffset());
+			}
+			assertTrue(transfer.isComplete());
+		}
+		assertArrayEquals(content, Files.readAllBytes(output));
+	}
+
+	@Test
+	void inOrderSegmentsAreAcknowledgedTogether() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.GBN_MODE, 16), WireFormat.VERSION, 4, DiskWriter.SYNC_NONE)) {
+			for (int i = 0; i < 3; i++) {
+				assertNull(transfer.receive(segment(i), CLIENT));
+			}
+			Segment ack = transfer.receive(segment(3), CLIENT);
+			assertNotNull(ack);
+			assertEquals(3, ack.getSq());
+			assertEquals(4 * SEGMENT, ack.getOffset());
+			assertEquals(-1, transfer.nextAckDeadline());
+		}
+	}
+
+	@Test
+	void heldBackAckIsDueAfterTheDelay() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.GBN_MODE, 16), WireFormat.VERSION, 4, DiskWriter.SYNC_NONE)) {
+			assertNull(transfer.receive(segment(0), CLIENT));
+			long deadline = transfer.nextAckDeadline();
+			assertTrue(deadline > 0);
+			assertTrue(deadline - transfer.getLastActivity() <= Transfer.ACK_DELAY);
+			assertNull(transfer.pollDelayedAck(deadline - 1));
+
+			Transfer.Ack due = transfer.pollDelayedAck(deadline);
+			assertNotNull(due);
+			assertEquals(0, due.segment.getSq());
+			assertEquals(CLIENT, due.to);
+			assertEquals(-1, transfer.nextAckDeadline());
+			assertNull(transfer.pollDelayedAck(Long.MAX_VALUE));
+		}
+	}
+
+	@Test
+	void gapIsAcknowledgedAtOnce() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.GBN_MODE, 16), WireFormat.VERSION, 4, DiskWriter.SYNC_NONE)) {
+			assertNull(transfer.receive(segment(0), CLIENT));
+			// gbn drops segment 2 and repeats the ACK of 0, so the sender learns of the loss now
+			Segment ack = transfer.receive(segment(2), CLIENT);
+			assertNotNull(ack);
+			assertEquals(0, ack.getSq());
+			assertEquals(SEGMENT, ack.getOffset());
+		}
+	}
+
+	@Test
+	void delayIsCappedAtHalfTheWindow() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.GBN_MODE, 4), WireFormat.VERSION, 8, DiskWriter.SYNC_NONE)) {
+			assertNull(transfer.receive(segment(0), CLIENT));
+			assertNotNull(transfer.receive(segment(1), CLIENT));
+		}
+	}
+
+	@Test
+	void lastSegmentIsAcknowledgedAtOnce() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.GBN_MODE, 64), WireFormat.VERSION, 32, DiskWriter.SYNC_NONE)) {
+			for (int i = 0; i < segments() - 1; i++) {
+				assertNull(transfer.receive(segment(i), CLIENT));
+			}
+			Segment ack = transfer.receive(segment(segments() - 1), CLIENT);
+			assertNotNull(ack);
+			assertEquals(content.length, ack.getOffset());
+			assertTrue(transfer.isComplete());
+		}
+		assertArrayEquals(content, Files.readAllBytes(output));
+	}
+
+	@Test
+	void selectiveRepeatStagesSegmentsAheadOfTheGap() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.SR_MODE, 8), WireFormat.VERSION)) {
+			int[] order = {3, 1, 2};
+			for (int index : order) {
+				Segment ack = transfer.receive(segment(index), CLIENT);
+				assertEquals(-1, ack.getSq());   // nothing in order yet
+				assertEquals(0, ack.getOffset());
+				assertTrue(ack.getSack().get(index));
+			}
+			assertEquals(0, transfer.getCurrentTotal(), "staged segments are not written yet");
+
+			// the gap closes and the staged segments follow it into the file
+			Segment ack = transfer.receive(segment(0), CLIENT);
+			assertEquals(3, ack.getSq());
+			assertEquals(4 * SEGMENT, ack.getOffset());
+			assertTrue(ack.getSack().isEmpty());
+			for (int i = 4; i < segments(); i++) {
+				transfer.receive(segment(i), CLIENT);
+			}
+			assertTrue(transfer.isComplete());
+		}
+		assertArrayEquals(content, Files.readAllBytes(output));
+	}
+
+	@Test
+	void segmentBeyondTheWindowIsDropped() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.SR_MODE, 4), WireFormat.VERSION)) {
+			Segment ack = transfer.receive(segment(5), CLIENT);
+			assertEquals(-1, ack.getSq());
+			assertTrue(ack.getSack().isEmpty());
+			assertEquals(0, transfer.getCurrentTotal());
+		}
+	}
+
+	@Test
+	void goBackNReversedWindowArrivesWhole() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.GBN_MODE, 16), WireFormat.VERSION)) {
+			for (int i = segments() - 1; i >= 0; i--) {
+				transfer.receive(segment(i), CLIENT);
+			}
+			assertTrue(transfer.isComplete());
+		}
+		assertArrayEquals(content, Files.readAllBytes(output));
+	}
+
+	@Test
+	void interruptedTransferResumesFromItsJournal() throws IOException {
+		MetaData metaData = metaData(Protocol.SR_MODE, 8);
+		metaData.setContentHash(1234);
+		try (Transfer transfer = new Transfer(metaData, WireFormat.VERSION)) {
+			for (int i = 0; i < 4; i++) {
+				transfer.receive(segment(i), CLIENT);
+			}
+			transfer.receive(segment(6), CLIENT);   // staged ahead of the gap, not written
+		}
+		assertTrue(Files.exists(Path.of(output + Journal.SUFFIX)));
+
+		try (Transfer transfer = new Transfer(metaData, WireFormat.VERSION)) {
+			MetaData reply = WireFormat.decodeReply(transfer.reply(metaData));
+			assertEquals(4 * SEGMENT, reply.getResumeOffset());
+			assertEquals(4 * SEGMENT, transfer.getCurrentTotal());
+			for (int i = 4; i < segments(); i++) {
+				transfer.receive(segment(i), CLIENT);
+			}
+			assertTrue(transfer.isComplete());
+		}
+		assertArrayEquals(content, Files.readAllBytes(output));
+		assertFalse(Files.exists(Path.of(output + Journal.SUFFIX)));
+	}
+
+	@Test
+	void journalOfOtherContentIsNotResumed() throws IOException {
+		MetaData metaData = metaData(Protocol.SR_MODE, 8);
+		metaData.setContentHash(1234);
+		try (Transfer transfer = new Transfer(metaData, WireFormat.VERSION)) {
+			transfer.receive(segment(0), CLIENT);
+		}
+		metaData.setContentHash(5678);
+		try (Transfer transfer = new Transfer(metaData, WireFormat.VERSION)) {
+			assertEquals(0, WireFormat.decodeReply(transfer.reply(metaData)).getResumeOffset());
+			assertEquals(0, transfer.getCurrentTotal());
+		}
+	}
+
+	/* the metadata of a delta of content against an old file at the output, announcing the given content hash */
+	private MetaData deltaMetaData(byte[] old, int contentHash) throws IOException {
+		Files.write(output, old);
+		MetaData metaData = metaData(Protocol.SR_MODE, 8);
+		metaData.setDelta(true);
+		metaData.setContentHash(contentHash);
+		return metaData;
+	}
+
+	/* the CRC32C of content, as the client announces it */
+	private int contentHash() {
+		CRC32C crc = new CRC32C();
+		crc.update(content);
+		return crc.getValue() == 0 ? 1 : (int) crc.getValue();
+	}
+
+	/* a chunk of copies, each (first, count, source), carrying the given CRC32C */
+	private static ByteBuffer copies(int crc, long... entries) {
+		ByteBuffer request = ByteBuffer.allocate(WireFormat.DELTA_HEADER_SIZE + entries.length / 3 * WireFormat.COPY_ENTRY);
+		WireFormat.encodeDeltaHeader(WireFormat.MSG_COPY, 7, 0, 1, crc, request);
+		for (int i = 0; i < entries.length; i += 3) {
+			request.putInt((int) entries[i]);
+			request.putInt((int) entries[i + 1]);
+			request.putLong(entries[i + 2]);
+		}
+		return request.flip();
+	}
+
+	/* the CRC32C of the given ranges of content, each (from, to) */
+	private int crcOf(int... ranges) {
+		CRC32C crc = new CRC32C();
+		for (int i = 0; i < ranges.length; i += 2) {
+			crc.update(content, ranges[i], ranges[i + 1] - ranges[i]);
+		}
+		return (int) crc.getValue();
+	}
+
+	/* sends a delta message until the answer is no longer pending, and returns its count */
+	private static int answer(Transfer transfer, ByteBuffer request) throws Exception {
+		for (int attempt = 0; attempt < 2000; attempt++) {
+			int count = WireFormat.deltaCount(transfer.delta(request.duplicate()));
+			if (count >= 0) {
+				return count;
+			}
+			Thread.sleep(5);
+		}
+		return fail("No answer to the delta message");
+	}
+
+	/* sends a segment again, as the client does while its last ACK is missing, until it is acknowledged */
+	private Segment lastAck(Transfer transfer, int index) throws Exception {
+		for (int attempt = 0; attempt < 2000; attempt++) {
+			Segment ack = transfer.receive(segment(index), CLIENT);
+			if (ack != null) {
+				return ack;
+			}
+			Thread.sleep(5);
+		}
+		return fail("No last ACK");
+	}
+
+	/* content with segment 5 changed */
+	private byte[] oldContent() {
+		byte[] old = content.clone();
+		old[5 * SEGMENT + 7] ^= 1;
+		return old;
+	}
+
+	@Test
+	void deltaCopiesTheUnchangedSegments() throws Exception {
+		MetaData metaData = deltaMetaData(oldContent(), contentHash());
+		try (Transfer transfer = new Transfer(metaData, WireFormat.VERSION)) {
+			assertTrue(WireFormat.decodeReply(transfer.reply(metaData)).isDelta());
+			ByteBuffer signature = ByteBuffer.allocate(WireFormat.DELTA_HEADER_SIZE);
+			WireFormat.encodeDeltaHeader(WireFormat.MSG_SIG_REQUEST, 7, 0, 0, 0, signature);
+			assertEquals(content.length / SEGMENT, answer(transfer, signature.flip()));
+
+			int last = segments() - 6;
+			ByteBuffer request = copies(crcOf(0, 5 * SEGMENT, 6 * SEGMENT, content.length), 0, 5, 0, 6, last, 6 * SEGMENT);
+			assertEquals(2, answer(transfer, request));
+			assertEquals(2, answer(transfer, request));   // a repeat is answered the same and copies nothing again
+			assertEquals(content.length - SEGMENT, transfer.getCurrentTotal());
+
+			// the last segment is acknowledged once the file is checked
+			Segment ack = lastAck(transfer, 5);
+			assertEquals(segments() - 1, ack.getSq());
+			assertTrue(transfer.isComplete());
+		}
+		assertArrayEquals(content, Files.readAllBytes(output));
+		assertFalse(Files.exists(Path.of(output + Transfer.DELTA_SUFFIX)));
+	}
+
+	@Test
+	void copiesThatDoNotMatchAreRefused() throws Exception {
+		MetaData metaData = deltaMetaData(oldContent(), contentHash());
+		try (Transfer transfer = new Transfer(metaData, WireFormat.VERSION)) {
+			// the client believes segment 5 is unchanged too
+			assertEquals(0, answer(transfer, copies(crcOf(0, 6 * SEGMENT), 0, 6, 0)));
+			assertEquals(0, transfer.getCurrentTotal());
+			for (int i = 0; i < segments() - 1; i++) {
+				transfer.receive(segment(i), CLIENT);
+			}
+			lastAck(transfer, segments() - 1);
+			assertTrue(transfer.isComplete());
+		}
+		assertArrayEquals(content, Files.readAllBytes(output));
+	}
+
+	@Test
+	void copiesThatCompleteAFileThatDoesNotMatchAreRefused() throws Exception {
+		byte[] old = oldContent();
+		MetaData metaData = deltaMetaData(old, contentHash());
+		CRC32C crc = new CRC32C();
+		crc.update(old);
+		try (Transfer transfer = new Transfer(metaData, WireFormat.VERSION)) {
+			// the old file changed where the client's does, yet the chunk's CRC32C matches what is copied
+			assertEquals(0, answer(transfer, copies((int) crc.getValue(), 0, segments(), 0)));
+			assertEquals(0, transfer.getCurrentTotal());
+			assertFalse(transfer.isComplete());
+
+			// the client sends the segments of the refused copies instead
+			for (int i = 0; i < segments() - 1; i++) {
+				transfer.receive(segment(i), CLIENT);
+			}
+			assertEquals(segments() - 1, lastAck(transfer, segments() - 1).getSq());
+			assertTrue(transfer.isComplete());
+		}
+		assertArrayEquals(content, Files.readAllBytes(output));
+	}
+
+	@Test
+	void deltaOfAnotherContentKeepsTheOldFile() throws Exception {
+		byte[] old = oldContent();
+		MetaData metaData = deltaMetaData(old, contentHash() + 1);
+		try (Transfer transfer = new Transfer(metaData, WireFormat.VERSION)) {
+			assertEquals(1, answer(transfer, copies(crcOf(0, 5 * SEGMENT), 0, 5, 0)));
+			for (int i = 5; i < segments(); i++) {
+				transfer.receive(segment(i), CLIENT);
+			}
+			// the last ACK never comes, so the client reports the failure
+			for (int attempt = 0; attempt < 20; attempt++) {
+				assertNull(transfer.receive(segment(segments() - 1), CLIENT));
+				Thread.sleep(5);
+			}
+			assertFalse(transfer.isComplete());
+		}
+		assertArrayEquals(old, Files.readAllBytes(output));
+		assertFalse(Files.exists(Path.of(output + Transfer.DELTA_SUFFIX)));
+	}
+
+	@Test
+	void abandonedDeltaIsRemoved() throws Exception {
+		byte[] old = oldContent();
+		try (Transfer transfer = new Transfer(deltaMetaData(old, contentHash()), WireFormat.VERSION)) {
+			transfer.receive(segment(0), CLIENT);
+		}
+		assertArrayEquals(old, Files.readAllBytes(output));
+		assertFalse(Files.exists(Path.of(output + Transfer.DELTA_SUFFIX)));
+	}
+
+	/* the parity segment of class j of the group from start on, over groups of the given size */
+	private Segment parity(int start, int j, int group, int classes) {
+		ByteBuffer sum = ByteBuffer.allocate(SEGMENT);
+		for (int i = start + j; i < Math.min(start + group, segments()); i += classes) {
+			Fec.xor(sum, segment(i).getData());
+		}
+		Segment seg = new Segment();
+		seg.setType(SegmentType.Data);
+		seg.setParity(true);
+		seg.setTransferId(7);
+		seg.setSq(j);
+		seg.setOffset((long) start * SEGMENT);
+		seg.setSize(SEGMENT);
+		seg.setData(sum);
+		seg.setChecksum(Checksum.CRC32C.of(sum));
+		return seg;
+	}
+
+	/* the metadata of an sr transfer with parity */
+	private MetaData fecMetaData(int group, int classes) {
+		MetaData metaData = metaData(Protocol.SR_MODE, 16);
+		metaData.setFecGroup(group);
+		metaData.setFecParity(classes);
+		return metaData;
+	}
+
+	@Test
+	void paritySegmentRebuildsALostSegment() throws IOException {
+		MetaData metaData = fecMetaData(4, 1);
+		try (Transfer transfer = new Transfer(metaData, WireFormat.VERSION)) {
+			assertEquals(1, WireFormat.decodeReply(transfer.reply(metaData)).getFecGroup());   // the reply says the server rebuilds from parity
+			for (int i = 0; i < 4; i++) {
+				if (i != 2) {
+					transfer.receive(segment(i), CLIENT);
+				}
+			}
+			Segment ack = transfer.receive(parity(0, 0, 4, 1), CLIENT);
+			assertEquals(3, ack.getSq());
+			assertEquals(4 * SEGMENT, transfer.getCurrentTotal());
+			for (int i = 4; i < segments(); i++) {
+				transfer.receive(segment(i), CLIENT);
+			}
+		}
+		assertArrayEquals(content, Files.readAllBytes(output));
+	}
+
+	@Test
+	void parityWaitsUntilOneMemberIsMissing() throws IOException {
+		try (Transfer transfer = new Transfer(fecMetaData(4, 1), WireFormat.VERSION)) {
+			transfer.receive(segment(0), CLIENT);
+			transfer.receive(segment(2), CLIENT);
+			assertNull(transfer.receive(parity(0, 0, 4, 1), CLIENT));   // 1 and 3 are both missing
+			Segment ack = transfer.receive(segment(3), CLIENT);
+			assertEquals(3, ack.getSq());   // the waiting parity rebuilt 1, then 2 and 3 followed
+		}
+	}
+
+	@Test
+	void lastShortSegmentIsRebuiltAtItsLength() throws IOException {
+		int start = Fec.groupStart(segments() - 1, 0, 4);
+		try (Transfer transfer = new Transfer(fecMetaData(4, 1), WireFormat.VERSION)) {
+			for (int i = 0; i < segments() - 1; i++) {
+				transfer.receive(segment(i), CLIENT);
+			}
+			transfer.receive(parity(start, 0, 4, 1), CLIENT);
+			assertTrue(transfer.isComplete());
+		}
+		assertArrayEquals(content, Files.readAllBytes(output));
+	}
+
+	@Test
+	void parityIsIgnoredWithoutFec() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.SR_MODE, 16), WireFormat.VERSION)) {
+			transfer.receive(segment(0), CLIENT);
+			assertNull(transfer.receive(parity(0, 0, 4, 1), CLIENT));
+			assertEquals(SEGMENT, transfer.getCurrentTotal());
+		}
+	}
+
+	@Test
+	void outputNameStaysInTheWorkingDirectory() throws IOException {
+		Transfer.checkOutputName("out.bin");
+		Transfer.checkOutputName("sub/../out.bin");
+		for (String name : new String[] {"", ".", "..", "../out.bin", "sub/../../out.bin", dir.resolve("out.bin").toString(), "out\0.bin"}) {
+			assertThrows(IOException.class, () -> Transfer.checkOutputName(name), name);
+		}
+	}
+
+	@Test
+	void corruptedSegmentIsNotAcknowledged() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.GBN_MODE, 8), WireFormat.VERSION)) {
+			Segment seg = segment(0);
+			seg.setChecksum(seg.getChecksum() + 1);
+			assertNull(transfer.receive(seg, CLIENT));
+			assertEquals(0, transfer.getCurrentTotal());
+			assertFalse(transfer.isComplete());
+		}
+	}
+
+	@Test
+	void payloadLongerThanASegmentIsDropped() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.SR_MODE, 8), WireFormat.VERSION)) {
+			ByteBuffer payload = ByteBuffer.wrap(content, 0, SEGMENT + 1);
+			Segment seg = segment(0);
+			seg.setSize(SEGMENT + 1);
+			seg.setData(payload);
+			seg.setChecksum(Checksum.CRC32C.of(payload));
+			assertNull(transfer.receive(seg, CLIENT));
+			assertEquals(0, transfer.getCurrentTotal());
+
+			// the segment is taken once it arrives whole
+			assertEquals(0, transfer.receive(segment(0), CLIENT).getSq());
+			assertEquals(SEGMENT, transfer.getCurrentTotal());
+		}
+	}
+
+	@Test
+	void closedTransferStillAcknowledgesTheLastSegment() throws IOException {
+		Transfer transfer = new Transfer(metaData(Protocol.SR_MODE, 16), WireFormat.VERSION);
+		for (int i = 0; i < segments(); i++) {
+			transfer.receive(segment(i), CLIENT);
+		}
+		transfer.close();   // as a server does on a thread of its own
+		assertEquals(segments() - 1, transfer.receive(segment(segments() - 1), CLIENT).getSq());
+		assertArrayEquals(content, Files.readAllBytes(output));
+	}
+
+	@Test
+	void duplicateIsAcknowledgedAgainWithoutWriting() throws IOException {
+		try (Transfer transfer = new Transfer(metaData(Protocol.GBN_MODE, 8), WireFormat.VERSION)) {
+			transfer.receive(segment(0), CLIENT);
+			transfer.receive(segment(1), CLIENT);
+			Segment ack = transfer.receive(segment(0), CLIENT);
+			assertEquals(1, ack.getSq());
+			assertEquals(2 * SEGMENT, transfer.getCurrentTotal());
+		}
+	}
+}
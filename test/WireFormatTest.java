@@ -0,0 +1,259 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import org.junit.jupiter.api.Test;
+
+/* round trips and rejections of the binary wire format and of the legacy Java serialization */
+class WireFormatTest {
+
+	/* a data segment with every header field set */
+	private static Segment dataSegment(byte[] payload) {
+		Segment seg = new Segment();
+		seg.setType(SegmentType.Data);
+		seg.setTransferId(0x12345678);
+		seg.setSq(41);
+		seg.setOffset(5_000_000_000L);
+		seg.setSize(payload.length);
+		seg.setChecksum(-7);
+		seg.setDeflated(true);
+		seg.setData(ByteBuffer.wrap(payload));
+		return seg;
+	}
+
+	/* metadata a client of every feature would send */
+	private static MetaData metaData() {
+		MetaData metaData = new MetaData();
+		metaData.setName("dir/ünïcode.bin");
+		metaData.setSize(123_456_789L);
+		metaData.setMaxSegSize(1400);
+		metaData.setMode(Protocol.SR_MODE);
+		metaData.setWindow(64);
+		metaData.setTransferId(99);
+		metaData.setStreams(3);
+		metaData.setStream(2);
+		metaData.setMaxDatagram(1432);
+		metaData.setChecksum(Checksum.CRC32C);
+		metaData.setContentHash(0xCAFEBABE);
+		metaData.setDelta(true);
+		metaData.setFecGroup(8);
+		metaData.setFecParity(2);
+		return metaData;
+	}
+
+	/* the encoded form of a segment, flipped for reading */
+	private static ByteBuffer encoded(Segment seg) {
+		ByteBuffer buf = ByteBuffer.allocate(WireFormat.encodedSize(seg));
+		WireFormat.encode(seg, buf);
+		return buf.flip();
+	}
+
+	/* the encoded form of metadata, flipped for reading */
+	private static ByteBuffer encoded(MetaData metaData) {
+		ByteBuffer buf = ByteBuffer.allocate(WireFormat.MAX_DATAGRAM);
+		WireFormat.encode(metaData, buf);
+		return buf.flip();
+	}
+
+	@Test
+	void dataSegmentRoundTrips() throws IOException {
+		byte[] payload = new byte[256];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;   // every byte value, which a string payload would not survive
+		}
+		ByteBuffer buf = encoded(dataSegment(payload));
+		assertEquals(WireFormat.HEADER_SIZE + payload.length, buf.remaining());
+
+		Segment seg = WireFormat.decodeSegment(buf);
+		assertEquals(SegmentType.Data, seg.getType());
+		assertEquals(0x12345678, seg.getTransferId());
+		assertEquals(41, seg.getSq());
+		assertEquals(5_000_000_000L, seg.getOffset());
+		assertEquals(payload.length, seg.getSize());
+		assertEquals(-7, seg.getChecksum());
+		assertTrue(seg.isDeflated());
+		assertFalse(seg.isParity());
+		byte[] decoded = new byte[seg.getData().remaining()];
+		seg.getData().get(decoded);
+		assertArrayEquals(payload, decoded);
+		assertFalse(buf.hasRemaining());
+	}
+
+	@Test
+	void ackRoundTripsItsSack() throws IOException {
+		Segment ack = new Segment();
+		ack.setType(SegmentType.Ack);
+		ack.setSq(1000);
+		BitSet sack = new BitSet();
+		sack.set(0);
+		sack.set(5);
+		sack.set(63);
+		sack.set(200);
+		ack.setSack(sack);
+
+		Segment seg = WireFormat.decodeSegment(encoded(ack));
+		assertEquals(SegmentType.Ack, seg.getType());
+		assertEquals(1000, seg.getSq());
+		assertEquals(sack, seg.getSack());
+		assertNull(seg.getData());
+	}
+
+	@Test
+	void stringPayloadIsSentAsUtf8() throws IOException {
+		Segment legacy = new Segment();
+		legacy.setType(SegmentType.Data);
+		legacy.setPayLoad("héllo");
+		Segment seg = WireFormat.decodeSegment(encoded(legacy));
+		assertEquals("héllo", StandardCharsets.UTF_8.decode(seg.getData()).toString());
+	}
+
+	@Test
+	void metaDataRoundTrips() throws IOException {
+		ByteBuffer buf = encoded(metaData());
+		assertEquals(WireFormat.MSG_META, WireFormat.typeOf(buf));
+		Object message = WireFormat.decode(buf);
+		assertTrue(message instanceof MetaData);
+
+		MetaData metaData = (MetaData) message;
+		assertEquals("dir/ünïcode.bin", metaData.getName());
+		assertEquals(123_456_789L, metaData.getSize());
+		assertEquals(1400, metaData.getMaxSegSize());
+		assertEquals(Protocol.SR_MODE, metaData.getMode());
+		assertEquals(64, metaData.getWindow());
+		assertEquals(99, metaData.getTransferId());
+		assertEquals(3, metaData.getStreams());
+		assertEquals(2, metaData.getStream());
+		assertEquals(1432, metaData.getMaxDatagram());
+		assertEquals(Checksum.CRC32C, metaData.getChecksum());
+		assertEquals(0xCAFEBABE, metaData.getContentHash());
+		assertTrue(metaData.isDelta());
+		assertFalse(metaData.isBatch());
+		assertEquals(8, metaData.getFecGroup());
+		assertEquals(2, metaData.getFecParity());
+	}
+
+	@Test
+	void replyRoundTrips() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(WireFormat.REPLY_SIZE);
+		WireFormat.encodeReply(WireFormat.MSG_META_REPLY, (short) (WireFormat.FLAG_DELTA | WireFormat.FLAG_BATCH), 99, 1432, 2, 7_000_000_000L, buf);
+		MetaData reply = WireFormat.decodeReply(buf.flip());
+		assertEquals(99, reply.getTransferId());
+		assertEquals(1432, reply.getMaxDatagram());
+		assertEquals(2, reply.getStream());
+		assertEquals(7_000_000_000L, reply.getResumeOffset());
+		assertTrue(reply.isDelta());
+		assertTrue(reply.isBatch());
+		assertEquals(0, reply.getFecGroup());
+	}
+
+	@Test
+	void deltaHeaderRoundTrips() {
+		ByteBuffer buf = ByteBuffer.allocate(WireFormat.DELTA_HEADER_SIZE);
+		WireFormat.encodeDeltaHeader(WireFormat.MSG_COPY, 99, 3, -1, 0x80000001, buf);
+		buf.flip();
+		assertTrue(WireFormat.isDelta(buf));
+		assertEquals(WireFormat.MSG_COPY, WireFormat.typeOf(buf));
+		assertEquals(99, WireFormat.deltaTransferId(buf));
+		assertEquals(3, WireFormat.deltaChunk(buf));
+		assertEquals(-1, WireFormat.deltaCount(buf));
+		assertEquals(0x80000001, WireFormat.deltaBlockSize(buf));
+	}
+
+	@Test
+	void otherVersionsAreRejected() {
+		ByteBuffer buf = encoded(dataSegment(new byte[10]));
+		buf.put(0, (byte) (WireFormat.VERSION - 1));
+		assertEquals(-1, WireFormat.typeOf(buf));
+		assertThrows(IOException.class, () -> WireFormat.decodeSegment(buf));
+
+		ByteBuffer meta = encoded(metaData());
+		meta.put(0, (byte) (WireFormat.VERSION + 1));
+		assertThrows(IOException.class, () -> WireFormat.decodeMetaData(meta));
+	}
+
+	@Test
+	void truncatedDatagramsAreRejected() {
+		ByteBuffer segment = encoded(dataSegment(new byte[100]));
+		assertThrows(IOException.class, () -> WireFormat.decodeSegment(segment.limit(WireFormat.HEADER_SIZE - 1)));
+		assertThrows(IOException.class, () -> WireFormat.decodeSegment(segment.rewind().limit(WireFormat.HEADER_SIZE + 50)));
+
+		ByteBuffer meta = encoded(metaData());
+		assertThrows(IOException.class, () -> WireFormat.decodeMetaData(meta.limit(meta.limit() - 3)));
+	}
+
+	@Test
+	void dataSegmentsWithoutAPayloadAreRejected() throws IOException {
+		Segment empty = dataSegment(new byte[0]);
+		empty.setData(null);
+		assertThrows(IOException.class, () -> WireFormat.decodeSegment(encoded(empty)));
+		empty.setParity(true);
+		assertThrows(IOException.class, () -> WireFormat.decodeSegment(encoded(empty)));
+
+		Segment legacy = new Segment();
+		legacy.setType(SegmentType.Data);
+		byte[] bytes = WireFormat.serialize(legacy);
+		assertThrows(IOException.class, () -> WireFormat.decodeAny(ByteBuffer.wrap(bytes)));
+
+		// an ACK without a selective part is fine
+		Segment ack = new Segment();
+		ack.setType(SegmentType.Ack);
+		assertNull(WireFormat.decodeSegment(encoded(ack)).getSack());
+	}
+
+	@Test
+	void unusableMetaDataIsRejected() {
+		MetaData noSegments = metaData();
+		noSegments.setMaxSegSize(0);
+		assertThrows(IOException.class, () -> WireFormat.decodeMetaData(encoded(noSegments)));
+
+		MetaData badStream = metaData();
+		badStream.setStream(3);
+		assertThrows(IOException.class, () -> WireFormat.decodeMetaData(encoded(badStream)));
+
+		MetaData negative = metaData();
+		negative.setSize(-1);
+		assertThrows(IOException.class, () -> WireFormat.decodeMetaData(encoded(negative)));
+	}
+
+	@Test
+	void legacySegmentRoundTrips() throws IOException {
+		Segment legacy = new Segment();
+		legacy.setType(SegmentType.Data);
+		legacy.setSq(3);
+		legacy.setPayLoad("legacy payload");
+		legacy.setSack(new BitSet());
+		byte[] bytes = WireFormat.serialize(legacy);
+
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		assertEquals(WireFormat.LEGACY, WireFormat.versionOf(buf));
+		Segment seg = WireFormat.decodeAny(buf);
+		assertEquals(3, seg.getSq());
+		assertEquals("legacy payload", seg.getPayLoad());
+	}
+
+	@Test
+	void legacyFilterRejectsOtherClasses() throws IOException {
+		HashMap<String, String> map = new HashMap<>();
+		map.put("not", "allowed");
+		byte[] bytes = WireFormat.serialize(map);
+		assertThrows(IOException.class, () -> WireFormat.deserialize(bytes, 0, bytes.length));
+
+		byte[] list = WireFormat.serialize(new ArrayList<>());
+		assertThrows(IOException.class, () -> WireFormat.decode(ByteBuffer.wrap(list)));
+	}
+
+	@Test
+	void legacySegmentWithoutTypeIsRejected() throws IOException {
+		byte[] bytes = WireFormat.serialize(new Segment());
+		assertThrows(IOException.class, () -> WireFormat.decodeAny(ByteBuffer.wrap(bytes)));
+	}
+}